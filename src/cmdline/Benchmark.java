@@ -0,0 +1,588 @@
+package cmdline;
+
+import glacierHelper.ChunkChannel;
+import glacierHelper.ChunkPool;
+import glacierHelper.CompressionCodec;
+import glacierHelper.FakeGlacierClient;
+import glacierHelper.ParallelGzipOutputStream;
+import glacierHelper.PartBuffer;
+import glacierHelper.StreamUploader;
+import glacierHelper.TarGzStream;
+import glacierHelper.TreeHash;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+/**
+ * Throughput benchmarks for the hot paths of the uploaders.
+ * (Merely for measuring; nothing is sent to glacier).
+ *
+ * Each case is run once to warm up, then [iterations] times; the average
+ * throughput is reported. Input is generated in memory, so only CPU and
+ * memory bandwidth are measured, except for tar and upload, which read a
+ * directory tree: the given one, or trees written by DataGenerator into
+ * a temporary directory (warm in the page cache after the first run).
+ *
+ * example:
+ *   java -Xmx1G -jar benchmark.jar -target treehash [-min_size 1] [-max_size 4096] [-iterations 3]
+ *   java -Xmx1G -jar benchmark.jar -target gzip -max_size 1024 [-threads 32]
+ *   java -Xmx1G -jar benchmark.jar -target handoff -max_size 4096
+ *   java -Xmx1G -jar benchmark.jar -target fileread -file VM_IMAGE
+ *   java -Xmx1G -jar benchmark.jar -target tar [-dir DIRECTORY | -data_size MB] [-seed N]
+ *   java -Xmx1G -jar benchmark.jar -target upload [-dir DIRECTORY | -data_size MB] [-part_size MB] [-threads 8]
+ */
+public class Benchmark {
+    private static final long MB = 1024 * 1024;
+
+    private static String target = null;
+    private static long minSize = 1;      // in MB
+    private static long maxSize = 4096;   // in MB
+    private static int iterations = 3;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static String filePath = null;
+    private static String dirPath = null;
+    private static long dataSize = 256;   // in MB
+    private static long partSize = 16;    // in MB
+    private static long seed = 0;
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        try {
+            if (target.equals("treehash")) {
+                benchmarkTreeHash();
+            } else if (target.equals("gzip")) {
+                benchmarkGzip();
+            } else if (target.equals("handoff")) {
+                benchmarkHandoff();
+            } else if (target.equals("fileread")) {
+                benchmarkFileRead();
+            } else if (target.equals("tar")) {
+                benchmarkTar();
+            } else if (target.equals("upload")) {
+                benchmarkUpload();
+            } else {
+                System.err.println("Unknown target: " + target);
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reading a part into pooled chunks and then hashing it with the SDK's
+     * TreeHashGenerator (two passes) vs. hashing it with TreeHash while it is
+     * read (single pass), for part sizes from [min_size] to [max_size] MB,
+     * doubling each time.
+     */
+    private static void benchmarkTreeHash() throws Exception {
+        System.out.println("part size(MB)\tread+TreeHashGenerator(MB/s)\tread with TreeHash(MB/s)");
+        for (long size = minSize; size <= maxSize; size *= 2) {
+            final long length = size * MB;
+            if (length > Runtime.getRuntime().maxMemory() * 8 / 10) {
+                System.out.printf("%d\tskipped (needs a larger -Xmx)\n", size);
+                continue;
+            }
+            final ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, (int) size);
+            final String[] results = new String[2];
+
+            double twoPass = measure(new Case() {
+                public void run() throws Exception {
+                    PartBuffer part = new PartBuffer(pool, length);
+                    part.readFrom(new RepeatingInputStream(length));
+                    results[0] = TreeHashGenerator.calculateTreeHash(part.newInputStream());
+                    part.release();
+                }
+            }, length);
+
+            double singlePass = measure(new Case() {
+                public void run() throws Exception {
+                    PartBuffer part = new PartBuffer(pool, length);
+                    TreeHash hash = new TreeHash();
+                    part.readFrom(new RepeatingInputStream(length), hash);
+                    results[1] = hash.digestHex();
+                    part.release();
+                }
+            }, length);
+
+            if (!results[0].equals(results[1])) throw new IllegalStateException("tree hash mismatch");
+
+            System.out.printf("%d\t%.1f\t%.1f\n", size, twoPass, singlePass);
+        }
+    }
+
+    /**
+     * Single-threaded GzipCompressorOutputStream vs. ParallelGzipOutputStream
+     * with 1, 2, 4, .. [threads] threads, compressing [max_size] MB of
+     * log-like text.
+     */
+    private static void benchmarkGzip() throws Exception {
+        final long length = maxSize * MB;
+        final long[] compressedSize = new long[1];
+
+        double single = measure(new Case() {
+            public void run() throws Exception {
+                CountingOutputStream counter = new CountingOutputStream();
+                OutputStream gzOut = new GzipCompressorOutputStream(counter);
+                copy(new RepeatingInputStream(length, true), gzOut);
+                gzOut.close();
+                compressedSize[0] = counter.count;
+            }
+        }, length);
+        System.out.println("compressor\tthreads\tMB/s\tcompressed(MB)");
+        System.out.printf("GzipCompressorOutputStream\t1\t%.1f\t%.1f\n", single, (double) compressedSize[0] / MB);
+
+        for (int n = 1; n <= threads; n *= 2) {
+            final int t = n;
+            double parallel = measure(new Case() {
+                public void run() throws Exception {
+                    CountingOutputStream counter = new CountingOutputStream();
+                    OutputStream gzOut = new ParallelGzipOutputStream(counter, t);
+                    copy(new RepeatingInputStream(length, true), gzOut);
+                    gzOut.close();
+                    compressedSize[0] = counter.count;
+                }
+            }, length);
+            System.out.printf("ParallelGzipOutputStream\t%d\t%.1f\t%.1f\n", t, parallel, (double) compressedSize[0] / MB);
+        }
+    }
+
+    /**
+     * Handing [max_size] MB from a producer thread (writing 512 bytes at a
+     * time, like the gzip stream does) to a consumer filling 64MB part
+     * buffers: PipedOutputStream / PipedInputStream, as previously used by
+     * TarGzUploader, vs. ChunkChannel. Context switches of both threads are
+     * read from /proc (Linux only; -1 elsewhere).
+     */
+    private static void benchmarkHandoff() throws Exception {
+        final long length = maxSize * MB;
+        final long partBytes = Math.min(length, 64 * MB);
+        final int chunksPerPart = (int) (partBytes / ChunkPool.DEFAULT_CHUNK_SIZE);
+        final long[] switches = new long[2];
+
+        System.out.println("handoff\tMB/s\tproducer context switches\tconsumer context switches");
+
+        double pipe = measure(new Case() {
+            public void run() throws Exception {
+                final PipedOutputStream pipeOut = new PipedOutputStream();
+                PipedInputStream pipeIn = new PipedInputStream(pipeOut);
+                Thread producer = startProducer(new BufferedOutputStream(pipeOut, ChunkPool.DEFAULT_CHUNK_SIZE), length, switches);
+
+                long before = contextSwitches();
+                ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, chunksPerPart);
+                while (true) {
+                    PartBuffer part = new PartBuffer(pool, partBytes);
+                    long read = part.readFrom(pipeIn);
+                    part.release();
+                    if (read == 0) break;
+                }
+                switches[1] = contextSwitches() - before;
+                producer.join();
+            }
+        }, length);
+        System.out.printf("PipedInputStream\t%.1f\t%d\t%d\n", pipe, switches[0], switches[1]);
+
+        double channel = measure(new Case() {
+            public void run() throws Exception {
+                ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, chunksPerPart + 16);
+                ChunkChannel chunkChannel = new ChunkChannel(pool);
+                Thread producer = startProducer(chunkChannel.getOutputStream(), length, switches);
+
+                long before = contextSwitches();
+                while (true) {
+                    PartBuffer part = new PartBuffer(pool, partBytes);
+                    long read = part.fillFrom(chunkChannel, null);
+                    part.release();
+                    if (read == 0) break;
+                }
+                switches[1] = contextSwitches() - before;
+                producer.join();
+            }
+        }, length);
+        System.out.printf("ChunkChannel\t%.1f\t%d\t%d\n", channel, switches[0], switches[1]);
+    }
+
+    /**
+     * Reading [file] into a 1MB byte[] the way TarGzStream feeds the tar
+     * stream: IOUtils.copy over a FileInputStream (previous path) vs.
+     * FileChannel reads vs. memory-mapped 256MB regions.
+     * Run it on a file larger than RAM, or drop the page cache between
+     * runs, to include disk reads.
+     */
+    private static void benchmarkFileRead() throws Exception {
+        if (filePath == null) throw new IllegalArgumentException("-file is required for fileread");
+        final File file = new File(filePath);
+        final long length = file.length();
+
+        System.out.println("reader\tMB/s");
+
+        double stream = measure(new Case() {
+            public void run() throws Exception {
+                FileInputStream in = new FileInputStream(file);
+                IOUtils.copy(in, new CountingOutputStream());
+                in.close();
+            }
+        }, length);
+        System.out.printf("IOUtils.copy(FileInputStream)\t%.1f\n", stream);
+
+        double channel = measure(new Case() {
+            public void run() throws Exception {
+                FileInputStream in = new FileInputStream(file);
+                FileChannel fileChannel = in.getChannel();
+                byte[] copyBuffer = new byte[ChunkPool.DEFAULT_CHUNK_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(copyBuffer);
+                CountingOutputStream out = new CountingOutputStream();
+                int n;
+                while ((n = fileChannel.read(buffer)) != -1) {
+                    out.write(copyBuffer, 0, n);
+                    buffer.clear();
+                }
+                in.close();
+            }
+        }, length);
+        System.out.printf("FileChannel.read\t%.1f\n", channel);
+
+        double mapped = measure(new Case() {
+            public void run() throws Exception {
+                FileInputStream in = new FileInputStream(file);
+                FileChannel fileChannel = in.getChannel();
+                byte[] copyBuffer = new byte[ChunkPool.DEFAULT_CHUNK_SIZE];
+                CountingOutputStream out = new CountingOutputStream();
+                for (long position = 0; position < length; position += 256 * MB) {
+                    MappedByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(256 * MB, length - position));
+                    while (region.hasRemaining()) {
+                        int n = Math.min(copyBuffer.length, region.remaining());
+                        region.get(copyBuffer, 0, n);
+                        out.write(copyBuffer, 0, n);
+                    }
+                }
+                in.close();
+            }
+        }, length);
+        System.out.printf("FileChannel.map\t%.1f\n", mapped);
+    }
+
+    /**
+     * Writing tar entries with TarGzStream, with no compression and with
+     * gzip, on a tree of many small files and on one of a few huge files
+     * ([data_size] MB each), or on [dir]. The output is discarded.
+     * Throughput is of the files read.
+     */
+    private static void benchmarkTar() throws Exception {
+        System.out.println("tree\tfiles\tcodec\tMB/s\tfiles/s\toutput(MB)");
+        for (String shape : (dirPath != null) ? new String[] { null } : new String[] { "small", "huge" }) {
+            final File dir = (shape != null) ? generateTree(shape) : new File(dirPath);
+            try {
+                long[] tree = measureTree(dir);
+                for (final String codecName : new String[] { "none", "gzip" }) {
+                    final long[] outputSize = new long[1];
+                    double rate = measure(new Case() {
+                        public void run() throws Exception {
+                            TarGzStream tarGz = new TarGzStream(dir.getPath());
+                            tarGz.setVerbose(false);
+                            tarGz.setCodec(CompressionCodec.forName(codecName));
+                            CountingOutputStream counter = new CountingOutputStream();
+                            tarGz.prepareOutputStream(counter);
+                            tarGz.sendData();
+                            outputSize[0] = counter.count;
+                        }
+                    }, tree[1]);
+                    System.out.printf("%s\t%d\t%s\t%.1f\t%.0f\t%.1f\n", (shape != null) ? shape : dir.getPath(), tree[0],
+                            codecName, rate, rate * tree[0] / ((double) tree[1] / MB), (double) outputSize[0] / MB);
+                }
+            } finally {
+                if (shape != null) DataGenerator.delete(dir);
+            }
+        }
+    }
+
+    /**
+     * The whole upload path: TarGzStream (gzip) into a ChunkChannel,
+     * StreamUploader hashing and sending [part_size] MB parts to an
+     * in-process FakeGlacierClient, which reads and hashes them again (as
+     * the service would) without keeping them. With 1, 2, 4, .. [threads]
+     * parts in flight. The tree is a mixed one of [data_size] MB, or [dir].
+     */
+    private static void benchmarkUpload() throws Exception {
+        final File dir = (dirPath != null) ? new File(dirPath) : generateTree("mixed");
+        try {
+            long[] tree = measureTree(dir);
+            final long partBytes = partSize * MB;
+            final long[] archiveSize = new long[1];
+            System.out.println("concurrency\tMB/s\tarchive(MB)\tparts");
+            for (int n = 1; n <= threads; n *= 2) {
+                final int concurrency = n;
+                double rate = measure(new Case() {
+                    public void run() throws Exception {
+                        FakeGlacierClient client = new FakeGlacierClient();
+                        client.setKeepContent(false);
+                        StreamUploader uploader = new StreamUploader(client, "benchmark", "benchmark");
+                        uploader.setVerbose(false);
+                        uploader.setPartSize(partBytes);
+                        uploader.setConcurrency(concurrency);
+                        ChunkChannel channel = uploader.openChannel(16);
+
+                        TarGzStream tarGz = new TarGzStream(dir.getPath());
+                        tarGz.setVerbose(false);
+                        tarGz.prepareOutputStream(channel.getOutputStream());
+                        Thread tarThread = new Thread(tarGz);
+                        tarThread.start();
+                        uploader.uploadStream();
+                        tarThread.join();
+                        archiveSize[0] = uploader.getTotalLength();
+                    }
+                }, tree[1]);
+                System.out.printf("%d\t%.1f\t%.1f\t%d\n", concurrency, rate, (double) archiveSize[0] / MB,
+                        (archiveSize[0] + partBytes - 1) / partBytes);
+            }
+        } finally {
+            if (dirPath == null) DataGenerator.delete(dir);
+        }
+    }
+
+    /**
+     * @return a tree of [data_size] MB written by DataGenerator into a new temporary directory
+     */
+    private static File generateTree(String shape) throws IOException {
+        File dir = File.createTempFile("benchmark-" + shape, "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+        DataGenerator.generate(dir, shape, dataSize * MB, seed);
+        return dir;
+    }
+
+    /**
+     * @return number of files, and their total size
+     */
+    private static long[] measureTree(File dir) {
+        long[] tree = new long[2];
+        File[] children = dir.listFiles();
+        if (children == null) return tree;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                long[] sub = measureTree(child);
+                tree[0] += sub[0];
+                tree[1] += sub[1];
+            } else {
+                tree[0]++;
+                tree[1] += child.length();
+            }
+        }
+        return tree;
+    }
+
+    private static Thread startProducer(final OutputStream out, final long length, final long[] switches) {
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    long before = contextSwitches();
+                    InputStream in = new RepeatingInputStream(length);
+                    byte[] buffer = new byte[512];
+                    int read;
+                    while ((read = in.read(buffer, 0, buffer.length)) != -1) out.write(buffer, 0, read);
+                    out.close();
+                    switches[0] = contextSwitches() - before;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        producer.start();
+        return producer;
+    }
+
+    /**
+     * @return voluntary + involuntary context switches of the current thread so far, or -1 if unknown.
+     */
+    private static long contextSwitches() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/thread-self/status"));
+            try {
+                long total = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.contains("ctxt_switches:")) {
+                        total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                    }
+                }
+                return total;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) out.write(buffer, 0, read);
+    }
+
+    /**
+     * Discards everything, counting the bytes.
+     */
+    static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) { count++; }
+
+        @Override
+        public void write(byte[] b, int off, int len) { count += len; }
+    }
+
+    private interface Case {
+        void run() throws Exception;
+    }
+
+    /**
+     * @return average throughput of the case in MB/s
+     */
+    private static double measure(Case c, long bytesPerRun) throws Exception {
+        c.run(); // warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) c.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return ((double) bytesPerRun * iterations / MB) / seconds;
+    }
+
+    /**
+     * Endless generated content, cut at the given length. A fixed 16MB
+     * pattern is repeated so that large sizes do not need large heaps.
+     * The pattern is either random bytes, or log-like text that compresses
+     * about as well as real logs.
+     */
+    static class RepeatingInputStream extends InputStream {
+        private static byte[] randomPattern;
+        private static byte[] textPattern;
+        private byte[] pattern;
+        private long remaining;
+        private int pos = 0;
+
+        RepeatingInputStream(long length) {
+            this(length, false);
+        }
+
+        RepeatingInputStream(long length, boolean compressible) {
+            this.pattern = compressible ? getTextPattern() : getRandomPattern();
+            this.remaining = length;
+        }
+
+        private static synchronized byte[] getRandomPattern() {
+            if (randomPattern == null) {
+                randomPattern = new byte[16 * 1024 * 1024];
+                new Random(0).nextBytes(randomPattern);
+            }
+            return randomPattern;
+        }
+
+        private static synchronized byte[] getTextPattern() {
+            if (textPattern == null) {
+                String[] words = { "GET", "POST", "/index.html", "/api/v1/items", "200", "404", "500",
+                        "user", "session", "timeout", "connected", "INFO", "WARN", "ERROR" };
+                Random random = new Random(0);
+                StringBuilder sb = new StringBuilder();
+                while (sb.length() < 16 * 1024 * 1024) {
+                    sb.append("2012-11-").append(10 + random.nextInt(20)).append(' ')
+                    .append(random.nextInt(24)).append(':').append(random.nextInt(60)).append(' ');
+                    for (int i = 0; i < 6; i++) sb.append(words[random.nextInt(words.length)]).append(' ');
+                    sb.append(random.nextInt(100000)).append('\n');
+                }
+                textPattern = Arrays.copyOf(sb.toString().getBytes(), 16 * 1024 * 1024);
+            }
+            return textPattern;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) return -1;
+            int total = 0;
+            while (len > 0 && remaining > 0) {
+                int n = (int) Math.min(Math.min(len, pattern.length - pos), remaining);
+                System.arraycopy(pattern, pos, b, off, n);
+                pos = (pos + n) % pattern.length;
+                off += n;
+                len -= n;
+                remaining -= n;
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("target", true, "what to measure: treehash, gzip, handoff, fileread, tar, upload");
+        options.addOption("min_size", true, "(optional) smallest part size in MB (defaults to 1)");
+        options.addOption("max_size", true, "(optional) largest part size in MB, or data size for gzip / handoff (defaults to 4096)");
+        options.addOption("threads", true, "(optional) maximum number of threads (defaults to the number of processors)");
+        options.addOption("file", true, "file to read, for fileread");
+        options.addOption("dir", true, "(optional) directory to archive, for tar / upload (defaults to generated trees)");
+        options.addOption("data_size", true, "(optional) size of the generated trees in MB, for tar / upload (defaults to 256)");
+        options.addOption("part_size", true, "(optional) part size in MB, for upload (defaults to 16)");
+        options.addOption("seed", true, "(optional) seed of the generated trees (defaults to 0)");
+        options.addOption("iterations", true, "(optional) measured runs per case (defaults to 3)");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+            target = cmd.getOptionValue("target");
+            minSize = Long.parseLong(cmd.getOptionValue("min_size", String.valueOf(minSize)));
+            maxSize = Long.parseLong(cmd.getOptionValue("max_size", String.valueOf(maxSize)));
+            iterations = Integer.parseInt(cmd.getOptionValue("iterations", String.valueOf(iterations)));
+            threads = Integer.parseInt(cmd.getOptionValue("threads", String.valueOf(threads)));
+            filePath = cmd.getOptionValue("file");
+            dirPath = cmd.getOptionValue("dir");
+            dataSize = Long.parseLong(cmd.getOptionValue("data_size", String.valueOf(dataSize)));
+            partSize = Long.parseLong(cmd.getOptionValue("part_size", String.valueOf(partSize)));
+            seed = Long.parseLong(cmd.getOptionValue("seed", String.valueOf(seed)));
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (target == null) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -Xmx1G -jar benchmark.jar", options, true);
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package cmdline;
+
+import glacierHelper.JobWatcher;
+import glacierHelper.PartSizeChooser;
+import glacierHelper.RetrievalScheduler;
+import glacierHelper.VaultCatalog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * Downloads many archives of a vault into a directory, one file per
+ * archive, named after its ID.
+ *
+ * The archives are listed in a file (one ID per line, optionally followed
+ * by a tab and the size, as printed by ListVaultInventory -tsv), or taken
+ * from a vault catalog. Retrieval jobs are initiated a few at a time, and
+ * each job output is downloaded as soon as it is ready (see
+ * RetrievalScheduler). With a bookmark, an interrupted run resumes: the
+ * archives downloaded are skipped, and the jobs initiated are reused.
+ *
+ * example:
+ *   java -Xmx1G -Dfile.encoding=UTF-8 -jar bulkDownloader.jar -vault VAULT_NAME -dir DIRECTORY (-ids FILE | -catalog FILE [-source PATH]) [-bookmark BOOKMARK_NAME] [-max_jobs N] [-max_in_flight GB] [-retrieval_rate GB] [-downloads N] [-concurrency N] [-chunk_size MB] [-min_free GB] [-poll_interval S] [-notify] [-quiet] [-endpoint URL]
+ */
+public class BulkDownloader {
+    private static String credentialsFilename = "AwsCredentials.properties";
+    private static String region = "us-east-1";
+    private static String endpoint = null;
+
+    private static AWSCredentials credentials;
+
+    private static String vaultName = null;
+    private static String directoryPath = null;
+    private static String idsFile = null;
+    private static String catalogFile = null;
+    private static String sourcePrefix = null;
+    private static String bookmark = null;
+    private static int maxJobs = 100;
+    private static double maxInFlight = 50; // in GB
+    private static double retrievalRate = 0; // in GB per hour
+    private static int downloads = 2;
+    private static int concurrency = 8;
+    private static long chunkSize = 64; // in MB
+    private static double minFree = 1; // in GB
+    private static long pollInterval = 60; // in seconds
+    private static boolean notify = false;
+    private static boolean verbose = true;
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        long failed = 0;
+        try {
+            AmazonGlacierClient client = new AmazonGlacierClient(credentials);
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
+
+            RetrievalScheduler scheduler = new RetrievalScheduler(client, vaultName, new File(directoryPath));
+            scheduler.setMaxJobs(maxJobs);
+            scheduler.setMaxInFlight((long) (maxInFlight * 1024 * 1024 * 1024));
+            scheduler.setRetrievalRate((long) (retrievalRate * 1024 * 1024 * 1024));
+            scheduler.setDownloads(downloads);
+            scheduler.setConcurrency(concurrency);
+            scheduler.setChunkSize(chunkSize * 1024 * 1024);
+            scheduler.setMinFree((long) (minFree * 1024 * 1024 * 1024));
+            scheduler.setVerbose(verbose);
+            if (bookmark != null) scheduler.setJournal(bookmark);
+
+            if (catalogFile != null) {
+                VaultCatalog catalog = new VaultCatalog(new File(catalogFile), vaultName);
+                List<VaultCatalog.Entry> entries = (sourcePrefix != null) ? catalog.findBySource(sourcePrefix) : catalog.list();
+                for (VaultCatalog.Entry entry : entries) scheduler.add(entry.getArchiveId(), entry.getSize());
+            } else {
+                readIds(scheduler);
+            }
+            System.out.println("Downloading " + scheduler.getCount() + " archives from vault " + vaultName + " to directory " + directoryPath
+                    + ((scheduler.getSkipped() > 0) ? " (" + scheduler.getSkipped() + " downloaded before)" : ""));
+            System.out.println("Retrievals may take hours; please be patient...");
+
+            JobWatcher watcher = new JobWatcher(client, vaultName);
+            watcher.setPollInterval(pollInterval);
+            watcher.setVerbose(false);
+            try {
+                if (notify) {
+                    AmazonSNSClient snsClient = new AmazonSNSClient(credentials);
+                    snsClient.setEndpoint((endpoint != null) ? endpoint : "https://sns."+region+".amazonaws.com/");
+                    AmazonSQSClient sqsClient = new AmazonSQSClient(credentials);
+                    sqsClient.setEndpoint((endpoint != null) ? endpoint : "https://sqs."+region+".amazonaws.com/");
+                    watcher.openChannel(snsClient, sqsClient, "RETRIEVAL_" + Long.toString(System.currentTimeMillis(), 36));
+                }
+                scheduler.setJobWatcher(watcher);
+                failed = scheduler.run();
+            } finally {
+                watcher.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        if (failed > 0) {
+            System.err.println("Some archives could not be downloaded; run again" + ((bookmark != null) ? " with the same -bookmark" : "") + " to retry them.");
+            System.exit(1);
+        }
+        System.out.println("Download complete.");
+    }
+
+    /**
+     * Reads the archive IDs, and sizes if given, one per line.
+     */
+    private static void readIds(RetrievalScheduler scheduler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(idsFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                // archive IDs have no spaces, unlike messages saved along with the list
+                if (fields[0].indexOf(' ') >= 0) continue;
+                long size = -1;
+                if (fields.length > 1) {
+                    try {
+                        size = Long.parseLong(fields[1]);
+                    } catch (NumberFormatException e) {
+                        // not a size: only the ID is used
+                    }
+                }
+                scheduler.add(fields[0], size);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("vault", true, "vault name");
+        options.addOption("dir", true, "directory to download the archives into");
+        options.addOption("ids", true, "file listing the archive IDs, one per line, optionally followed by a tab and the size (e.g. the output of ListVaultInventory -tsv)");
+        options.addOption("catalog", true, "vault catalog file (see the uploaders' -catalog): download the archives it lists, instead of -ids");
+        options.addOption("source", true, "(optional) with -catalog, only download the archives made of this path or of what is under it");
+        options.addOption("bookmark", true, "(optional) name of a journal of the jobs initiated and archives downloaded, so that an interrupted run resumes where it stopped");
+        options.addOption("max_jobs", true, "(optional) number of archives initiated and not yet downloaded (defaults to 100)");
+        options.addOption("max_in_flight", true, "(optional) GB of archives initiated and not yet downloaded (defaults to 50). Job outputs expire a day after they complete.");
+        options.addOption("retrieval_rate", true, "(optional) GB of archives initiated per hour (defaults to no limit), to spread the retrievals");
+        options.addOption("downloads", true, "(optional) number of archives downloaded at once (defaults to 2)");
+        options.addOption("concurrency", true, "(optional) number of ranges downloaded in parallel, shared by the downloads (defaults to 8)");
+        options.addOption("chunk_size", true, "(optional) range size in MB: 1 times a power of two, up to 4096 (defaults to 64)");
+        options.addOption("min_free", true, "(optional) GB to leave free in the directory (defaults to 1); downloads wait for room");
+        options.addOption("poll_interval", true, "(optional) longest time in seconds between checks of a job status (defaults to 60)");
+        options.addOption("notify", false, "(optional) have the jobs notify their completion through an SNS topic and SQS queue (made for the run, then deleted), rather than waiting for the next check");
+        options.addOption("quiet", false, "(optional) do not print each job and download");
+        options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
+        options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+            vaultName = cmd.getOptionValue("vault");
+            directoryPath = cmd.getOptionValue("dir");
+            idsFile = cmd.getOptionValue("ids");
+            catalogFile = cmd.getOptionValue("catalog");
+            sourcePrefix = cmd.getOptionValue("source");
+            bookmark = cmd.getOptionValue("bookmark");
+            maxJobs = Integer.parseInt(cmd.getOptionValue("max_jobs", String.valueOf(maxJobs)));
+            maxInFlight = Double.parseDouble(cmd.getOptionValue("max_in_flight", String.valueOf(maxInFlight)));
+            retrievalRate = Double.parseDouble(cmd.getOptionValue("retrieval_rate", String.valueOf(retrievalRate)));
+            downloads = Integer.parseInt(cmd.getOptionValue("downloads", String.valueOf(downloads)));
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            chunkSize = Long.parseLong(cmd.getOptionValue("chunk_size", String.valueOf(chunkSize)));
+            minFree = Double.parseDouble(cmd.getOptionValue("min_free", String.valueOf(minFree)));
+            pollInterval = Long.parseLong(cmd.getOptionValue("poll_interval", String.valueOf(pollInterval)));
+            notify = cmd.hasOption("notify");
+            verbose = !cmd.hasOption("quiet");
+            credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
+            region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (vaultName == null || directoryPath == null || (idsFile == null) == (catalogFile == null)) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -Dfile.encoding=UTF-8 -Xmx1G -jar bulkDownloader.jar", options, true);
+            System.exit(0);
+        }
+
+        if (!PartSizeChooser.isValid(chunkSize * 1024 * 1024)) {
+            System.err.println("-chunk_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+
+        // read credentials
+        try {
+            credentials = new PropertiesCredentials(
+                    new FileInputStream(credentialsFilename)
+                    );
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
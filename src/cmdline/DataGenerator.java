@@ -0,0 +1,166 @@
+package cmdline;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Writes a directory tree of generated files, for benchmarks and tests.
+ * The same seed, shape and size always give the same tree, byte for byte.
+ *
+ * Shapes:
+ *   small: files of 1KB to 64KB, 100 per directory (source trees, mail, photos thumbnails)
+ *   huge:  4 files sharing the size (VM images, database dumps)
+ *   mixed: 90% of the bytes in small files, the rest in a few files of 64MB at most
+ *
+ * About 70% of the files are log-like text, which compresses about as well
+ * as real logs; the others are random bytes named *.jpg, which do not
+ * compress (see -adaptive). File content is cut from two 16MB patterns at
+ * random offsets, so that generating is about as fast as writing.
+ *
+ * example:
+ *   java -jar dataGenerator.jar -dir DIRECTORY [-shape small|huge|mixed] [-size MB] [-seed N]
+ */
+public class DataGenerator {
+    private static final long MB = 1024 * 1024;
+    private static final int PATTERN_SIZE = 16 * 1024 * 1024;
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private static String dirPath = null;
+    private static String shape = "mixed";
+    private static long size = 256; // in MB
+    private static long seed = 0;
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        try {
+            long start = System.currentTimeMillis();
+            int files = generate(new File(dirPath), shape, size * MB, seed);
+            System.out.printf("Wrote %d files, %d MB in %.1f s.\n", files, size, (System.currentTimeMillis() - start) / 1000.0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the tree into the directory, which is created if needed.
+     *
+     * @param totalBytes sum of the file sizes
+     * @return number of files written
+     */
+    public static int generate(File dir, String shape, long totalBytes, long seed) throws IOException {
+        if (!shape.equals("small") && !shape.equals("huge") && !shape.equals("mixed")) {
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        Random random = new Random(seed);
+        byte[] text = textPattern(random);
+        byte[] binary = new byte[PATTERN_SIZE];
+        random.nextBytes(binary);
+
+        long smallBytes = shape.equals("small") ? totalBytes : shape.equals("mixed") ? totalBytes / 10 * 9 : 0;
+        long written = 0;
+        int files = 0;
+        while (written < totalBytes) {
+            long fileSize;
+            if (written < smallBytes) {
+                // log-uniform between 1KB and 64KB
+                fileSize = Math.min((long) (1024 * Math.pow(64, random.nextDouble())), smallBytes - written);
+            } else if (shape.equals("huge")) {
+                fileSize = Math.min((totalBytes + 3) / 4, totalBytes - written);
+            } else {
+                fileSize = Math.min(64 * MB, totalBytes - written);
+            }
+            boolean compressible = random.nextDouble() < 0.7;
+            File subDir = new File(dir, String.format("d%03d/d%03d", files / FILES_PER_DIRECTORY / FILES_PER_DIRECTORY,
+                    files / FILES_PER_DIRECTORY % FILES_PER_DIRECTORY));
+            if (!subDir.isDirectory() && !subDir.mkdirs()) throw new IOException("Cannot create " + subDir);
+            File file = new File(subDir, String.format("f%06d.%s", files, compressible ? "log" : "jpg"));
+            writeFile(file, compressible ? text : binary, random.nextInt(PATTERN_SIZE), fileSize);
+            written += fileSize;
+            files++;
+        }
+        return files;
+    }
+
+    /**
+     * Deletes a tree written by generate().
+     */
+    public static void delete(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        dir.delete();
+    }
+
+    private static void writeFile(File file, byte[] pattern, int offset, long length) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+        try {
+            while (length > 0) {
+                int n = (int) Math.min(pattern.length - offset, length);
+                out.write(pattern, offset, n);
+                length -= n;
+                offset = 0;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] textPattern(Random random) {
+        String[] words = { "GET", "POST", "/index.html", "/api/v1/items", "200", "404", "500",
+                "user", "session", "timeout", "connected", "INFO", "WARN", "ERROR" };
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < PATTERN_SIZE) {
+            sb.append("2012-11-").append(10 + random.nextInt(20)).append(' ')
+            .append(random.nextInt(24)).append(':').append(random.nextInt(60)).append(' ');
+            for (int i = 0; i < 6; i++) sb.append(words[random.nextInt(words.length)]).append(' ');
+            sb.append(random.nextInt(100000)).append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(), PATTERN_SIZE);
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("dir", true, "directory to write the files into");
+        options.addOption("shape", true, "(optional) small, huge or mixed (defaults to mixed)");
+        options.addOption("size", true, "(optional) total size of the files in MB (defaults to 256)");
+        options.addOption("seed", true, "(optional) seed of the generated tree (defaults to 0)");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+            dirPath = cmd.getOptionValue("dir");
+            shape = cmd.getOptionValue("shape", shape);
+            size = Long.parseLong(cmd.getOptionValue("size", String.valueOf(size)));
+            seed = Long.parseLong(cmd.getOptionValue("seed", String.valueOf(seed)));
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (dirPath == null) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -jar dataGenerator.jar", options, true);
+            System.exit(0);
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package cmdline;
 
+import glacierHelper.ArchiveRetrieval;
+import glacierHelper.JobWatcher;
+import glacierHelper.PartSizeChooser;
+import glacierHelper.PartialDownloadStatus;
+import glacierHelper.RangedDownloader;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -14,28 +20,39 @@ import org.apache.commons.cli.PosixParser;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManager;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
 
 /**
  * Downloads archive from specified vault to specified file.
  *
- * example:
- *   java -Xmx1G -Dfile.encoding=UTF-8 -jar downloader.jar -vault VAULT_NAME -archive_id ARCHIVE_ID-out_file FILENAME
+ * Initiates an archive retrieval job (or reuses the one given, or recorded
+ * in the bookmark), waits for it to complete, then downloads its output in
+ * ranges fetched in parallel (see RangedDownloader). With a bookmark, an
+ * interrupted download resumes with the missing ranges.
  *
- * Code mostly copied & pasted from: http://awsdocs.s3.amazonaws.com/glacier/latest/glacier-dg.pdf
+ * example:
+ *   java -Xmx1G -Dfile.encoding=UTF-8 -jar downloader.jar -vault VAULT_NAME -archive_id ARCHIVE_ID -out_file FILENAME [-bookmark BOOKMARK_NAME] [-job_id JOB_ID] [-concurrency N] [-chunk_size MB] [-poll_interval S] [-notify] [-endpoint URL]
  *
  */
 public class Downloader {
     private static String credentialsFilename = "AwsCredentials.properties";
     private static String region = "us-east-1";
+    private static String endpoint = null;
 
     private static AWSCredentials credentials;
     private static AmazonGlacierClient client;
-    private static ArchiveTransferManager atm = null;
 
     private static String vaultName = null;
     private static String archiveId = null;
     private static String downloadFilePath = null;
+    private static String bookmarkFile = null;
+    private static String jobId = null;
+    private static int concurrency = 4;
+    private static long chunkSize = 64; // in MB
+    private static long pollInterval = 60; // in seconds
+    private static boolean notify = false;
 
     public static void main(String[] args) throws IOException {
         // deal with command line args
@@ -46,9 +63,48 @@ public class Downloader {
 
         try {
             client = new AmazonGlacierClient(credentials);
-            client.setEndpoint("https://glacier."+region+".amazonaws.com/");
-            atm = new ArchiveTransferManager(credentials);
-            atm.download(vaultName, archiveId, new File(downloadFilePath));
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
+
+            PartialDownloadStatus status = null;
+            if (bookmarkFile != null) {
+                status = new PartialDownloadStatus(bookmarkFile);
+                if (jobId == null && archiveId.equals(status.getArchiveId())
+                        && status.getChunkSize() == chunkSize * 1024 * 1024) {
+                    jobId = status.getJobId();
+                }
+            }
+
+            JobWatcher watcher = new JobWatcher(client, vaultName);
+            watcher.setPollInterval(pollInterval);
+            watcher.setVerbose(false);
+            DescribeJobResult job;
+            try {
+                if (notify) {
+                    AmazonSNSClient snsClient = new AmazonSNSClient(credentials);
+                    snsClient.setEndpoint((endpoint != null) ? endpoint : "https://sns."+region+".amazonaws.com/");
+                    AmazonSQSClient sqsClient = new AmazonSQSClient(credentials);
+                    sqsClient.setEndpoint((endpoint != null) ? endpoint : "https://sqs."+region+".amazonaws.com/");
+                    watcher.openChannel(snsClient, sqsClient, "RETRIEVAL_" + Long.toString(System.currentTimeMillis(), 36));
+                }
+                ArchiveRetrieval retrieval = new ArchiveRetrieval(client, vaultName);
+                retrieval.setJobWatcher(watcher);
+                job = retrieval.retrieve(archiveId, jobId);
+            } finally {
+                watcher.close();
+            }
+            jobId = job.getJobId();
+            if (status != null && (!jobId.equals(status.getJobId()) || status.getChunkSize() != chunkSize * 1024 * 1024)) {
+                // ranges recorded for another job or chunk size are not reused
+                status.deleteFile();
+                status = new PartialDownloadStatus(bookmarkFile);
+                status.setJob(jobId, archiveId, chunkSize * 1024 * 1024);
+            }
+
+            RangedDownloader downloader = new RangedDownloader(client, vaultName);
+            downloader.setConcurrency(concurrency);
+            downloader.setChunkSize(chunkSize * 1024 * 1024);
+            downloader.setPartialDownloadStatus(status);
+            downloader.download(jobId, job.getArchiveSizeInBytes(), ArchiveRetrieval.getTreeHash(job), new File(downloadFilePath));
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -62,8 +118,15 @@ public class Downloader {
         options.addOption("vault", true, "vault name");
         options.addOption("archive_id", true, "archive ID");
         options.addOption("out_file", true, "filename to which the downloaded content is written");
+        options.addOption("bookmark", true, "(optional) bookmark name to keep track of partial downloads. Specify an unique name if you may wish to stop and resume this download, or if you are resuming a previously aborted download.");
+        options.addOption("job_id", true, "(optional) ID of an archive retrieval job already initiated for the archive");
+        options.addOption("concurrency", true, "(optional) number of ranges downloaded in parallel (defaults to 4)");
+        options.addOption("chunk_size", true, "(optional) range size in MB: 1 times a power of two, up to 4096 (defaults to 64)");
+        options.addOption("poll_interval", true, "(optional) longest time in seconds between checks of the job status (defaults to 60)");
+        options.addOption("notify", false, "(optional) have a new job notify its completion through an SNS topic and SQS queue (made for the run, then deleted), rather than waiting for the next check");
         options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
         options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
@@ -71,11 +134,21 @@ public class Downloader {
             vaultName = cmd.getOptionValue("vault");
             archiveId = cmd.getOptionValue("archive_id");
             downloadFilePath = cmd.getOptionValue("out_file");
+            bookmarkFile = cmd.getOptionValue("bookmark");
+            jobId = cmd.getOptionValue("job_id");
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            chunkSize = Long.parseLong(cmd.getOptionValue("chunk_size", String.valueOf(chunkSize)));
+            pollInterval = Long.parseLong(cmd.getOptionValue("poll_interval", String.valueOf(pollInterval)));
+            notify = cmd.hasOption("notify");
             credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
             region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
         }
 
         // check mandatory options
@@ -85,6 +158,11 @@ public class Downloader {
             System.exit(0);
         }
 
+        if (!PartSizeChooser.isValid(chunkSize * 1024 * 1024)) {
+            System.err.println("-chunk_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+
         // read credentials
         try {
             credentials = new PropertiesCredentials(
@@ -96,4 +174,4 @@ public class Downloader {
         }
 
     }
-}
\ No newline at end of file
+}
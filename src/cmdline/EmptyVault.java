@@ -1,9 +1,14 @@
 package cmdline;
+import glacierHelper.BulkDeleter;
+import glacierHelper.InventoryArchive;
+import glacierHelper.InventoryReader;
+import glacierHelper.VaultCatalog;
 import glacierHelper.VaultInventory;
 
-import java.util.List;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,59 +21,157 @@ import org.apache.commons.cli.PosixParser;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
-import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
 
 public class EmptyVault {
     private static String credentialsFilename = "AwsCredentials.properties";
     private static String region = "us-east-1";
+    private static String endpoint = null;
 
     private static AWSCredentials credentials;
     private static AmazonGlacierClient client;
     private static String vaultName = null;
+    private static String catalogFile = null;
+    private static String sourcePrefix = null;
+    private static boolean dryRun = false;
+    private static String bookmark = null;
+    private static int concurrency = 8;
+    private static long maxRate = 0; // deletions per second
 
     public static void main(String[] args) {
         // deal with command line args
         treatCommandlineArgs(args);
 
-        System.out.println("Listing and deleting all content of the vault "+ vaultName + "...");
-
         try {
-            VaultInventory inventory = new VaultInventory(region, vaultName, credentials);
             client = new AmazonGlacierClient(credentials);
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
+
+            BulkDeleter deleter = new BulkDeleter(client, vaultName);
+            deleter.setConcurrency(concurrency);
+            deleter.setMaxRate(maxRate);
+            deleter.setVerbose(true);
+            if (bookmark != null) {
+                deleter.setJournal(bookmark);
+                if (deleter.getJournalSize() > 0) System.out.println("Resuming: " + deleter.getJournalSize() + " archives already deleted.");
+            }
+
+            if (catalogFile != null) {
+                deleteFromCatalog(new VaultCatalog(new File(catalogFile), vaultName), deleter);
+                return;
+            }
 
-            List<String> archiveIds = inventory.getArchiveIDs();
-            for (String id: archiveIds) {
-                System.out.println("Deleting Archive ID: " + id);
-                deleteArchive(client, vaultName, id);
+            VaultInventory inventory = new VaultInventory(region, endpoint, vaultName, credentials);
+            if (dryRun) {
+                listFromInventory(inventory, deleter.getInventoryJobId());
+                return;
+            }
+
+            System.out.println("Listing and deleting all content of the vault "+ vaultName + "...");
+            // archives are deleted as the inventory downloads
+            InventoryReader reader = inventory.openInventory(deleter.getInventoryJobId());
+            deleter.setInventoryJobId(inventory.getJobId());
+            deleter.start();
+            try {
+                InventoryArchive archive;
+                while ((archive = reader.read()) != null) deleter.submit(archive.getArchiveId());
+            } finally {
+                reader.close();
+            }
+            if (deleter.finish() > 0) {
+                System.err.println("Some archives could not be deleted; run again" + ((bookmark != null) ? " with the same -bookmark" : "") + " to retry them.");
+                System.exit(1);
             }
             System.out.println("Emptied vault "+ vaultName +". The vault is now ready to be deleted.");
-        } catch (IOException e) {
+        } catch (Exception e) {
             System.err.println("Deleting vault failed.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints what deleting all content of the vault would delete, from an
+     * inventory (that of the bookmark's job, while Glacier has it).
+     */
+    private static void listFromInventory(VaultInventory inventory, String previousJobId) throws IOException {
+        System.out.println("Listing the content of the vault "+ vaultName + "...");
+        InventoryReader reader = inventory.openInventory(previousJobId);
+        long count = 0;
+        long size = 0;
+        try {
+            InventoryArchive archive;
+            while ((archive = reader.read()) != null) {
+                System.out.println("Would delete Archive ID: " + archive.getArchiveId() + " (" + archive.getSize() + " bytes)");
+                count++;
+                size += archive.getSize();
+            }
+        } finally {
+            reader.close();
         }
+        System.out.printf("Would delete %d archives (%.2f GB) of the vault %s, as listed in its inventory.\n",
+                count, size / (1024.0 * 1024 * 1024), vaultName);
     }
 
-    private static void deleteArchive(AmazonGlacierClient client, String valutName, String archiveId) {
-        DeleteArchiveRequest request = new DeleteArchiveRequest()
-        .withVaultName(vaultName)
-        .withArchiveId(archiveId);
-        client.deleteArchive(request);
+    /**
+     * Deletes the archives listed in the catalog (those made of -source, if
+     * given), without an inventory retrieval job, and records the deletions.
+     */
+    private static void deleteFromCatalog(VaultCatalog catalog, BulkDeleter deleter) throws IOException, InterruptedException {
+        List<VaultCatalog.Entry> entries = (sourcePrefix != null) ? catalog.findBySource(sourcePrefix) : catalog.list();
+        long size = 0;
+        for (VaultCatalog.Entry entry : entries) size += entry.getSize();
+        System.out.printf("%s %d archives (%.2f GB) of the vault %s, as listed in the catalog.\n", dryRun ? "Would delete" : "Deleting",
+                entries.size(), size / (1024.0 * 1024 * 1024), vaultName);
+        if (dryRun) {
+            for (VaultCatalog.Entry entry : entries) {
+                System.out.println("Would delete Archive ID: " + entry.getArchiveId()
+                        + ((entry.getSourcePath() != null) ? " (" + entry.getSourcePath() + ")" : ""));
+            }
+            return;
+        }
+        deleter.setCatalog(catalog);
+        deleter.start();
+        for (VaultCatalog.Entry entry : entries) deleter.submit(entry.getArchiveId());
+        if (deleter.finish() > 0) {
+            System.err.println("Some archives could not be deleted; run again to retry them.");
+            System.exit(1);
+        }
+        if (sourcePrefix == null) {
+            System.out.println("Emptied vault "+ vaultName +" of the archives in the catalog. Archives uploaded without -catalog are only found by ListVaultInventory -catalog FILE -reconcile.");
+        }
     }
 
     private static void treatCommandlineArgs(String args[]) {
         Options options = new Options();
         options.addOption("vault", true, "vault name");
+        options.addOption("catalog", true, "(optional) vault catalog file (see the uploaders' -catalog): delete the archives it lists, without an inventory retrieval job");
+        options.addOption("source", true, "(optional) with -catalog, only delete the archives made of this path or of what is under it");
+        options.addOption("dry_run", false, "(optional) only print what would be deleted (without -catalog, from an inventory retrieval job)");
+        options.addOption("bookmark", true, "(optional) name of a journal of the deletions done, so that an interrupted run resumes where it stopped (and reuses its inventory job while Glacier has it)");
+        options.addOption("concurrency", true, "(optional) number of deletions in flight (defaults to 8)");
+        options.addOption("max_rate", true, "(optional) maximum deletions per second (defaults to no limit); the rate is lowered when Glacier throttles");
         options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
         options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
             cmd = parser.parse(options, args);
             vaultName = cmd.getOptionValue("vault");
+            catalogFile = cmd.getOptionValue("catalog");
+            sourcePrefix = cmd.getOptionValue("source");
+            dryRun = cmd.hasOption("dry_run");
+            bookmark = cmd.getOptionValue("bookmark");
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            maxRate = Long.parseLong(cmd.getOptionValue("max_rate", String.valueOf(maxRate)));
             credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
             region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
         }
 
         // check mandatory options
@@ -78,6 +181,12 @@ public class EmptyVault {
             System.exit(0);
         }
 
+        // without the catalog, the whole vault would be deleted
+        if (sourcePrefix != null && catalogFile == null) {
+            System.err.println("-source needs -catalog: without it, all content of the vault is deleted");
+            System.exit(1);
+        }
+
         // read credentials
         try {
             credentials = new PropertiesCredentials(
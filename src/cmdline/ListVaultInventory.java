@@ -1,8 +1,17 @@
 package cmdline;
+import glacierHelper.InventoryArchive;
+import glacierHelper.InventoryReader;
+import glacierHelper.VaultCatalog;
 import glacierHelper.VaultInventory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -18,42 +27,124 @@ import com.amazonaws.auth.PropertiesCredentials;
 public class ListVaultInventory {
     private static String credentialsFilename = "AwsCredentials.properties";
     private static String region = "us-east-1";
+    private static String endpoint = null;
 
     private static AWSCredentials credentials;
 
     private static String vaultName = null;
-
+    private static boolean tsv = false;
+    private static String catalogFile = null;
+    private static boolean reconcile = false;
+    private static String sourcePrefix = null;
 
     public static void main(String[] args) {
         // deal with command line args
         treatCommandlineArgs(args);
 
         try {
-            VaultInventory inventory = new VaultInventory(region, vaultName, credentials);
-            System.out.println(inventory.getResponseString());
+            if (catalogFile != null && !reconcile) {
+                // no inventory job: the catalog answers right away
+                printCatalog(new VaultCatalog(new File(catalogFile), vaultName));
+                return;
+            }
+            VaultInventory inventory = new VaultInventory(region, endpoint, vaultName, credentials);
+            if (reconcile) {
+                VaultCatalog catalog = new VaultCatalog(new File(catalogFile), vaultName);
+                InventoryReader reader = inventory.openInventory();
+                try {
+                    System.out.println("Reconciled the catalog with the inventory: " + catalog.reconcile(reader));
+                } finally {
+                    reader.close();
+                }
+            } else if (tsv) {
+                printArchives(inventory.openInventory());
+            } else {
+                copy(inventory.openInventoryStream());
+            }
         } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints one line per archive: ID, size, creation date, tree hash and description, tab-separated.
+     */
+    private static void printArchives(InventoryReader reader) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            InventoryArchive archive;
+            while ((archive = reader.read()) != null) {
+                System.out.println(archive.getArchiveId() + "\t" + archive.getSize() + "\t"
+                        + ((archive.getCreationDate() != null) ? format.format(archive.getCreationDate()) : "") + "\t"
+                        + archive.getTreeHash() + "\t" + archive.getDescription());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Prints one line per archive of the catalog: ID, size, upload date, tree hash, description and source path.
+     */
+    private static void printCatalog(VaultCatalog catalog) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<VaultCatalog.Entry> entries = (sourcePrefix != null) ? catalog.findBySource(sourcePrefix) : catalog.list();
+        long size = 0;
+        for (VaultCatalog.Entry entry : entries) {
+            System.out.println(entry.getArchiveId() + "\t" + entry.getSize() + "\t" + format.format(new Date(entry.getCreated())) + "\t"
+                    + entry.getTreeHash() + "\t" + entry.getDescription() + "\t" + ((entry.getSourcePath() != null) ? entry.getSourcePath() : ""));
+            size += entry.getSize();
+        }
+        System.err.printf("%d archives, %.2f GB. Last inventory reconciled: %s\n", entries.size(), size / (1024.0 * 1024 * 1024),
+                (catalog.getInventoryDate() > 0) ? format.format(new Date(catalog.getInventoryDate())) : "none");
+    }
+
+    /**
+     * Prints the inventory JSON as it is downloaded.
+     */
+    private static void copy(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) System.out.write(buffer, 0, n);
+            System.out.println();
+        } finally {
+            in.close();
         }
     }
 
     private static void treatCommandlineArgs(String args[]) {
         Options options = new Options();
         options.addOption("vault", true, "vault name");
+        options.addOption("tsv", false, "(optional) print one line per archive (ID, size, creation date, tree hash, description, tab-separated) instead of the JSON");
+        options.addOption("catalog", true, "(optional) vault catalog file (see the uploaders' -catalog): list the archives from it, without an inventory retrieval job");
+        options.addOption("reconcile", false, "(optional) with -catalog, retrieve the inventory and bring the catalog in line with it instead");
+        options.addOption("source", true, "(optional) with -catalog, only list the archives made of this path or of what is under it");
         options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
         options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
             cmd = parser.parse(options, args);
             vaultName = cmd.getOptionValue("vault");
+            tsv = cmd.hasOption("tsv");
+            catalogFile = cmd.getOptionValue("catalog");
+            reconcile = cmd.hasOption("reconcile");
+            sourcePrefix = cmd.getOptionValue("source");
             credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
             region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
         }
 
         // check mandatory options
-        if (vaultName == null) {
+        if (vaultName == null || (reconcile && catalogFile == null)) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("java -Dfile.encoding=UTF-8 -Xmx1G -jar listVaultInventory.jar", options, true);
             System.exit(0);
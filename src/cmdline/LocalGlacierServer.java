@@ -0,0 +1,131 @@
+package cmdline;
+
+import glacierHelper.LocalGlacier;
+import glacierHelper.MetricsReporter;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Runs a local Glacier-compatible server (see LocalGlacier), to load test
+ * the uploaders and downloaders with -endpoint http://localhost:PORT and
+ * any credentials file. Prints a per-operation summary of the requests
+ * when stopped (Ctrl-C).
+ *
+ * example:
+ *   java -jar localGlacierServer.jar [-port N] [-data DIRECTORY] [-latency MS] [-bandwidth MB/s] [-throttle N] [-failure_rate R] [-failure_status STATUS] [-failure_code CODE] [-job_delay S] [-log FILE] [-metrics_json FILE] [-metrics_prom FILE] [-metrics_interval S]
+ */
+public class LocalGlacierServer {
+    private static int port = 8080;
+    private static String dataPath = null;
+    private static String region = "us-east-1";
+    private static long latency = 0; // in ms
+    private static double bandwidth = 0; // in MB/s, 0 for no limit
+    private static int throttle = 0; // requests per second, 0 for no limit
+    private static double failureRate = 0;
+    private static int failureStatus = 500;
+    private static String failureCode = "ServiceUnavailableException";
+    private static long jobDelay = 0; // in seconds
+    private static String logFile = null;
+    private static String metricsJson = null;
+    private static String metricsPrometheus = null;
+    private static long metricsInterval = 10; // in seconds
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        try {
+            File dataDir;
+            if (dataPath != null) {
+                dataDir = new File(dataPath);
+            } else {
+                dataDir = File.createTempFile("local-glacier", "");
+                dataDir.delete();
+            }
+            if (!dataDir.isDirectory() && !dataDir.mkdirs()) throw new IOException("Cannot create " + dataDir);
+
+            final LocalGlacier glacier = new LocalGlacier(dataDir, region);
+            glacier.setLatency(latency);
+            glacier.setBandwidth((long) (bandwidth * 1024 * 1024));
+            glacier.setThrottle(throttle);
+            glacier.setFailures(failureRate, failureStatus, failureCode);
+            glacier.setJobDelay(jobDelay);
+            if (logFile != null) glacier.setRequestLog(new File(logFile));
+            final MetricsReporter metricsReporter = (metricsJson != null || metricsPrometheus != null)
+                    ? new MetricsReporter(glacier.getMetrics(), metricsJson, metricsPrometheus, metricsInterval) : null;
+
+            glacier.start(port);
+            if (metricsReporter != null) metricsReporter.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    glacier.stop();
+                    if (metricsReporter != null) metricsReporter.stop();
+                    glacier.printSummary(System.out);
+                }
+            });
+            System.out.println("Serving Glacier at " + glacier.getEndpoint() + ", archives in " + dataDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("port", true, "(optional) port to listen on (defaults to 8080)");
+        options.addOption("data", true, "(optional) directory to keep archives in (defaults to a new temporary directory)");
+        options.addOption("region", true, "(optional) region in ARNs (defaults to 'us-east-1')");
+        options.addOption("latency", true, "(optional) milliseconds added to each request");
+        options.addOption("bandwidth", true, "(optional) MB/s shared by all request and response bodies");
+        options.addOption("throttle", true, "(optional) requests per second above which requests get ThrottlingException");
+        options.addOption("failure_rate", true, "(optional) fraction of the requests to fail, e.g. 0.05");
+        options.addOption("failure_status", true, "(optional) HTTP status of the failures, 0 to drop the connection (defaults to 500)");
+        options.addOption("failure_code", true, "(optional) error code of the failures (defaults to ServiceUnavailableException)");
+        options.addOption("job_delay", true, "(optional) seconds before retrieval jobs complete (defaults to 0)");
+        options.addOption("log", true, "(optional) file to append a tab-separated line per request to");
+        options.addOption("metrics_json", true, "(optional) file to append per-operation request metrics to, as a JSON line every -metrics_interval");
+        options.addOption("metrics_prom", true, "(optional) file to write the same metrics to in the Prometheus text format");
+        options.addOption("metrics_interval", true, "(optional) seconds between metrics reports (defaults to 10)");
+        options.addOption("help", false, "print this help");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+            port = Integer.parseInt(cmd.getOptionValue("port", String.valueOf(port)));
+            dataPath = cmd.getOptionValue("data");
+            region = cmd.getOptionValue("region", region);
+            latency = Long.parseLong(cmd.getOptionValue("latency", String.valueOf(latency)));
+            bandwidth = Double.parseDouble(cmd.getOptionValue("bandwidth", String.valueOf(bandwidth)));
+            throttle = Integer.parseInt(cmd.getOptionValue("throttle", String.valueOf(throttle)));
+            failureRate = Double.parseDouble(cmd.getOptionValue("failure_rate", String.valueOf(failureRate)));
+            failureStatus = Integer.parseInt(cmd.getOptionValue("failure_status", String.valueOf(failureStatus)));
+            failureCode = cmd.getOptionValue("failure_code", failureCode);
+            jobDelay = Long.parseLong(cmd.getOptionValue("job_delay", String.valueOf(jobDelay)));
+            logFile = cmd.getOptionValue("log");
+            metricsJson = cmd.getOptionValue("metrics_json");
+            metricsPrometheus = cmd.getOptionValue("metrics_prom");
+            metricsInterval = Long.parseLong(cmd.getOptionValue("metrics_interval", String.valueOf(metricsInterval)));
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        if (cmd.hasOption("help")) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -jar localGlacierServer.jar", options, true);
+            System.exit(0);
+        }
+    }
+}
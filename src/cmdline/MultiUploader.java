@@ -0,0 +1,337 @@
+package cmdline;
+
+import glacierHelper.CompressionCodec;
+import glacierHelper.Metrics;
+import glacierHelper.MetricsReporter;
+import glacierHelper.PartSizeChooser;
+import glacierHelper.RateController;
+import glacierHelper.RateSchedule;
+import glacierHelper.TarGzStream;
+import glacierHelper.UploadEngine;
+import glacierHelper.VaultCatalog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+
+public class MultiUploader {
+    private static String credentialsFilename = "AwsCredentials.properties";
+    private static String region = "us-east-1";
+    private static String endpoint = null;
+
+    private static AmazonGlacierClient client;
+
+    private static String vaultName = null;
+    private static List<String> directories = new ArrayList<String>();
+    private static List<String> streams = new ArrayList<String>();
+    private static String bookmarkPrefix = null;
+    private static String catalogFile = null;
+    private static VaultCatalog catalog = null;
+    private static int workers = 8;
+    private static int maxArchives = 4;
+    private static int concurrency = 2;
+    private static long partSize = 0; // in MB, 0 to choose it for each archive
+    private static boolean prescan = false;
+    private static long memoryBudget = 0; // in MB, 0 for 3/4 of the heap
+    private static double maxRate = 0; // in MB/s, 0 for no limit
+    private static String rateSchedule = null;
+    private static String rateControlFile = null;
+    private static RateController rateController = null;
+    private static String metricsJson = null;
+    private static String metricsPrometheus = null;
+    private static long metricsInterval = 10; // in seconds
+    private static MetricsReporter metricsReporter = null;
+    private static int gzipThreads = 1;
+    private static String codecName = CompressionCodec.DEFAULT;
+    private static int level = CompressionCodec.DEFAULT_LEVEL;
+    private static boolean adaptive = false;
+    private static int ioThreads = 4;
+
+    /**
+     * Uploads several directories (as tar.gz, like TarGzUploader) and/or
+     * files or named pipes (as they are, like PipedUploader) to the vault,
+     * one archive each, from a single process. The archives share the
+     * upload workers and HTTP connections, a bandwidth limit and a memory
+     * budget for part buffers; at most -archives of them are in progress
+     * at a time. With -bookmark, each archive keeps its own bookmark, named
+     * after the prefix and the path, so the same command resumes the
+     * archives that did not complete.
+     *
+     * example:
+     *   java -Xmx4G -Dfile.encoding=UTF-8 -jar multiUploader.jar -vault VAULT_NAME -dir DIR1 -dir DIR2 [-stream FILE] [-list LIST_FILE] [-bookmark PREFIX] [-catalog FILE] [-workers N] [-archives N] [-concurrency N] [-part_size MB] [-prescan] [-memory MB] [-max_rate MB/s] [-rate_schedule SCHEDULE] [-rate_control FILE] [-metrics_json FILE] [-metrics_prom FILE] [-metrics_interval S] [-codec gzip|zstd|lz4|none] [-level N] [-adaptive] [-gzip_threads N] [-io_threads N] [-endpoint URL]
+     *
+     * LIST_FILE has one archive per line: "dir PATH" or "stream PATH". Lines starting with # are ignored.
+     */
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        long budget = (memoryBudget > 0) ? memoryBudget * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4 * 3;
+        UploadEngine engine = new UploadEngine(client, workers, maxArchives, budget);
+        engine.setConcurrency(concurrency);
+        if (catalog != null) engine.setCatalog(catalog);
+        if (partSize > 0) engine.setPartSize(partSize * 1024 * 1024);
+        if (rateController != null) {
+            rateController.start();
+            engine.setRateLimiter(rateController.getLimiter());
+        }
+        if (metricsReporter != null) metricsReporter.start();
+
+        System.out.println("Uploading " + (directories.size() + streams.size()) + " archives to the vault " + vaultName + "...");
+
+        List<String> names = new ArrayList<String>();
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            for (String dir : directories) {
+                TarGzStream tarGz = new TarGzStream(dir);
+                tarGz.setCodec(createCodec());
+                tarGz.setAdaptiveCompression(adaptive);
+                tarGz.setIoThreads(ioThreads);
+                String description = CompressionCodec.tagDescription(describe(dir), createCodec());
+                UploadEngine.Archive archive = UploadEngine.Archive.fromDirectory(dir, vaultName, description, bookmarkFor(dir), tarGz);
+                archive.setPrescan(prescan);
+                names.add(dir);
+                results.add(engine.submit(archive));
+            }
+            for (String path : streams) {
+                UploadEngine.Archive archive = path.equals("-")
+                        ? UploadEngine.Archive.fromStream(path, vaultName, describe(path), bookmarkFor(path), System.in)
+                        : UploadEngine.Archive.fromFile(path, vaultName, describe(path), bookmarkFor(path), new File(path));
+                names.add(path);
+                results.add(engine.submit(archive));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        // report in the order given
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                String archiveId = results.get(i).get();
+                System.out.println(names.get(i) + "\tArchive ID:" + archiveId);
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(names.get(i) + "\tFAILED:");
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        try {
+            engine.shutdown();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (metricsReporter != null) metricsReporter.stop();
+
+        if (failed > 0) {
+            System.err.println(failed + " of " + results.size() + " archives failed."
+                    + ((bookmarkPrefix != null) ? " Run the same command again to resume them." : ""));
+            System.exit(1);
+        }
+        System.out.println("Upload complete.");
+    }
+
+    private static CompressionCodec createCodec() {
+        CompressionCodec codec = CompressionCodec.forName(codecName);
+        codec.setLevel(level);
+        codec.setThreads(gzipThreads);
+        return codec;
+    }
+
+    private static String describe(String path) {
+        try {
+            // looks like archive name has to be in ascii (or check sum does not match during upload?)
+            return "Archive of " + URLEncoder.encode(path, "UTF-8") + ", " + (new Date());
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String bookmarkFor(String path) {
+        if (bookmarkPrefix == null) return null;
+        return bookmarkPrefix + "." + path.replaceAll("[^A-Za-z0-9._-]+", "_");
+    }
+
+    private static void readList(String listFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+", 2);
+                if (fields.length == 2 && fields[0].equals("dir")) {
+                    directories.add(fields[1]);
+                } else if (fields.length == 2 && fields[0].equals("stream")) {
+                    streams.add(fields[1]);
+                } else {
+                    throw new IOException("Invalid line in " + listFile + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("vault", true, "vault name");
+        options.addOption("dir", true, "directory to upload as tar.gz. Can be given several times.");
+        options.addOption("stream", true, "file or named pipe to upload as it is ('-' for stdin). Can be given several times.");
+        options.addOption("list", true, "file listing the archives to upload, one per line: 'dir PATH' or 'stream PATH'");
+        options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
+        options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
+        options.addOption("catalog", true, "(optional) vault catalog file to record the archives in (see ListVaultInventory -catalog)");
+        options.addOption("bookmark", true, "(optional) prefix of the bookmark names, one per archive. Specify it if you may wish to stop and resume these uploads, or if you are resuming them.");
+        options.addOption("workers", true, "(optional) number of parts uploaded in parallel over all archives, and of HTTP connections (defaults to 8)");
+        options.addOption("archives", true, "(optional) number of archives in progress at a time (defaults to 4)");
+        options.addOption("concurrency", true, "(optional) number of parts of one archive uploaded in parallel (defaults to 2)");
+        options.addOption("part_size", true, "(optional) part size in MB: 1 times a power of two, up to 4096 (defaults to a size chosen for each archive from its size, or 128 if it is unknown)");
+        options.addOption("prescan", false, "(optional) walk each directory as its upload starts, to choose its part size from the size of the archive. Streams from regular files use the file size.");
+        options.addOption("memory", true, "(optional) MB of part buffers over all archives (defaults to 3/4 of -Xmx). An archive waits until its buffers fit.");
+        options.addOption("max_rate", true, "(optional) upload bandwidth limit over all archives, in MB/s (defaults to no limit)");
+        options.addOption("rate_schedule", true, "(optional) bandwidth limit by local time of day, e.g. '08:00-19:00=2,10' (MB/s; 0 for no limit, 'pause' to start no new part). Overrides -max_rate.");
+        options.addOption("rate_control", true, "(optional) file that, while it exists, overrides the bandwidth limit at run time: a rate, 'pause' or a schedule. Checked every 5 seconds.");
+        options.addOption("metrics_json", true, "(optional) file to append throughput, queue depth, latency and retry metrics to, as a JSON line every -metrics_interval");
+        options.addOption("metrics_prom", true, "(optional) file to write the same metrics to in the Prometheus text format, e.g. for node_exporter's textfile collector");
+        options.addOption("metrics_interval", true, "(optional) seconds between metrics reports (defaults to 10)");
+        options.addOption("gzip_threads", true, "(optional) number of threads compressing in parallel, per archive (defaults to 1)");
+        options.addOption("codec", true, "(optional) compression of directories: gzip, zstd, lz4 or none (defaults to gzip)");
+        options.addOption("level", true, "(optional) compression level of the codec (defaults to the codec's default)");
+        options.addOption("adaptive", false, "(optional) store already-compressed files without deflating them. gzip only.");
+        options.addOption("io_threads", true, "(optional) number of threads listing directories and reading files ahead, per archive (defaults to 4)");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+            vaultName = cmd.getOptionValue("vault");
+            if (cmd.hasOption("dir")) {
+                for (String dir : cmd.getOptionValues("dir")) directories.add(dir);
+            }
+            if (cmd.hasOption("stream")) {
+                for (String stream : cmd.getOptionValues("stream")) streams.add(stream);
+            }
+            if (cmd.hasOption("list")) readList(cmd.getOptionValue("list"));
+            bookmarkPrefix = cmd.getOptionValue("bookmark");
+            catalogFile = cmd.getOptionValue("catalog");
+            workers = Integer.parseInt(cmd.getOptionValue("workers", String.valueOf(workers)));
+            maxArchives = Integer.parseInt(cmd.getOptionValue("archives", String.valueOf(maxArchives)));
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            partSize = Long.parseLong(cmd.getOptionValue("part_size", String.valueOf(partSize)));
+            prescan = cmd.hasOption("prescan");
+            memoryBudget = Long.parseLong(cmd.getOptionValue("memory", String.valueOf(memoryBudget)));
+            maxRate = Double.parseDouble(cmd.getOptionValue("max_rate", String.valueOf(maxRate)));
+            rateSchedule = cmd.getOptionValue("rate_schedule");
+            rateControlFile = cmd.getOptionValue("rate_control");
+            metricsJson = cmd.getOptionValue("metrics_json");
+            metricsPrometheus = cmd.getOptionValue("metrics_prom");
+            metricsInterval = Long.parseLong(cmd.getOptionValue("metrics_interval", String.valueOf(metricsInterval)));
+            gzipThreads = Integer.parseInt(cmd.getOptionValue("gzip_threads", String.valueOf(gzipThreads)));
+            codecName = cmd.getOptionValue("codec", codecName);
+            level = Integer.parseInt(cmd.getOptionValue("level", String.valueOf(level)));
+            adaptive = cmd.hasOption("adaptive");
+            ioThreads = Integer.parseInt(cmd.getOptionValue("io_threads", String.valueOf(ioThreads)));
+            credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
+            region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (IOException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (vaultName == null || (directories.isEmpty() && streams.isEmpty())) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -Dfile.encoding=UTF-8 -Xmx4G -jar multiUploader.jar", options, true);
+            System.exit(0);
+        }
+        if (partSize > 0 && !PartSizeChooser.isValid(partSize * 1024 * 1024)) {
+            System.err.println("-part_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+        for (String dir : directories) {
+            if (!new File(dir).isDirectory()) {
+                System.err.println("Not a directory: " + dir);
+                System.exit(1);
+            }
+        }
+        // set up bandwidth limit
+        if (maxRate > 0 || rateSchedule != null || rateControlFile != null) {
+            try {
+                RateSchedule schedule = (rateSchedule != null) ? RateSchedule.parse(rateSchedule)
+                        : RateSchedule.constant((long) (maxRate * 1024 * 1024));
+                rateController = new RateController(schedule, rateControlFile);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // set up metrics export
+        if (metricsJson != null || metricsPrometheus != null) {
+            metricsReporter = new MetricsReporter(Metrics.global(), metricsJson, metricsPrometheus, metricsInterval);
+        }
+
+        try {
+            createCodec();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        // open the catalog the archives are recorded in
+        if (catalogFile != null) {
+            try {
+                catalog = new VaultCatalog(new File(catalogFile), vaultName);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        // read credentials. One client, with a connection per worker, is shared by all uploads.
+        try {
+            AWSCredentials credentials = new PropertiesCredentials(
+                    new FileInputStream(credentialsFilename)
+                    );
+            client = new AmazonGlacierClient(credentials, new ClientConfiguration().withMaxConnections(workers));
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+    }
+}
@@ -2,6 +2,7 @@ package cmdline;
 
 import glacierHelper.*;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Date;
@@ -20,18 +21,32 @@ import com.amazonaws.services.glacier.AmazonGlacierClient;
 public class PipedUploader {
     private static String credentialsFilename = "AwsCredentials.properties";
     private static String region = "us-east-1";
+    private static String endpoint = null;
 
     private static AmazonGlacierClient client;
 
     private static String vaultName = null;
     private static String archiveDescription = null;
     private static String bookmarkFile = null;
+    private static String catalogFile = null;
+    private static VaultCatalog catalog = null;
+    private static int concurrency = 1;
+    private static long partSize = 0; // in MB, 0 to choose it from the archive size
+    private static long sizeHint = -1;
+    private static double maxRate = 0; // in MB/s, 0 for no limit
+    private static String rateSchedule = null;
+    private static String rateControlFile = null;
+    private static RateController rateController = null;
+    private static String metricsJson = null;
+    private static String metricsPrometheus = null;
+    private static long metricsInterval = 10; // in seconds
+    private static MetricsReporter metricsReporter = null;
 
     /**
      * Sends whatever comes into stdin to the specified glacier vault.
      *
      * example:
-     *   tar -cvzf - DIRECTORY | java -Xmx1G -Dfile.encoding=UTF-8 -jar pipedUploader.jar -vault VAULE_NAME [-bookmark BOOKMARK_NAME] [-desc ARCHIVE_DESCRIPTION]
+     *   tar -cvzf - DIRECTORY | java -Xmx1G -Dfile.encoding=UTF-8 -jar pipedUploader.jar -vault VAULE_NAME [-bookmark BOOKMARK_NAME] [-catalog FILE] [-desc ARCHIVE_DESCRIPTION] [-concurrency N] [-part_size MB] [-size SIZE] [-max_rate MB/s] [-rate_schedule SCHEDULE] [-rate_control FILE] [-metrics_json FILE] [-metrics_prom FILE] [-metrics_interval S] [-endpoint URL]
      * 
      */
     public static void main(String[] args) {
@@ -42,10 +57,26 @@ public class PipedUploader {
 
         // read stdin and send it to the vault
         StreamUploader uploader = new StreamUploader(client, vaultName, archiveDescription, System.in);
+        PartialUploadStatus status = null;
         if (bookmarkFile != null) {
-            uploader.setPartialUploadStatus(new PartialUploadStatus(bookmarkFile));
+            status = new PartialUploadStatus(bookmarkFile);
+            uploader.setPartialUploadStatus(status);
         }
+        if (catalog != null) uploader.setCatalog(catalog, null);
+        uploader.setConcurrency(concurrency);
+        // choose the part size from the archive size, if known. A resumed upload keeps its part size.
+        PartSizeChooser chooser = new PartSizeChooser();
+        chooser.setConcurrency(concurrency);
+        if (partSize > 0) chooser.setPartSize(partSize * 1024 * 1024);
+        if (sizeHint >= 0) chooser.setSizeHint(sizeHint);
+        uploader.setPartSize(chooser.choose(status));
+        if (rateController != null) {
+            rateController.start();
+            uploader.setRateLimiter(rateController.getLimiter());
+        }
+        if (metricsReporter != null) metricsReporter.start();
         String archiveId = uploader.startProcessingStream();
+        if (metricsReporter != null) metricsReporter.stop();
 
         System.out.println("Upload complete.");
         System.out.println("Archive ID:"+archiveId);
@@ -56,8 +87,19 @@ public class PipedUploader {
         options.addOption("vault", true, "vault name");
         options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
         options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
         options.addOption("desc", true, "(optional) archive description");
+        options.addOption("catalog", true, "(optional) vault catalog file to record the archive in (see ListVaultInventory -catalog)");
         options.addOption("bookmark", true, "(optional) bookmark name to keep track of partial uploads. Specify an unique name if you may wish to stop and resume this upload, or if you are resuming a previously aborted upload.");
+        options.addOption("concurrency", true, "(optional) number of parts uploaded in parallel (defaults to 1). Each part in flight needs its own part-sized buffer, so raise -Xmx accordingly.");
+        options.addOption("part_size", true, "(optional) part size in MB: 1 times a power of two, up to 4096 (defaults to a size chosen from the archive size, or 128 if it is unknown)");
+        options.addOption("size", true, "(optional) expected archive size, e.g. 500G or 1.5T, to choose the part size from. Archives over 10,000 parts fail, so give it for archives over ~1TB.");
+        options.addOption("max_rate", true, "(optional) upload bandwidth limit in MB/s (defaults to no limit)");
+        options.addOption("rate_schedule", true, "(optional) bandwidth limit by local time of day, e.g. '08:00-19:00=2,10' (MB/s; 0 for no limit, 'pause' to start no new part). Overrides -max_rate.");
+        options.addOption("rate_control", true, "(optional) file that, while it exists, overrides the bandwidth limit at run time: a rate, 'pause' or a schedule. Checked every 5 seconds.");
+        options.addOption("metrics_json", true, "(optional) file to append throughput, queue depth, latency and retry metrics to, as a JSON line every -metrics_interval");
+        options.addOption("metrics_prom", true, "(optional) file to write the same metrics to in the Prometheus text format, e.g. for node_exporter's textfile collector");
+        options.addOption("metrics_interval", true, "(optional) seconds between metrics reports (defaults to 10)");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
@@ -65,11 +107,28 @@ public class PipedUploader {
             vaultName = cmd.getOptionValue("vault");
             archiveDescription = cmd.getOptionValue("desc");
             bookmarkFile = cmd.getOptionValue("bookmark");
+            catalogFile = cmd.getOptionValue("catalog");
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            partSize = Long.parseLong(cmd.getOptionValue("part_size", String.valueOf(partSize)));
+            if (cmd.hasOption("size")) sizeHint = PartSizeChooser.parseSize(cmd.getOptionValue("size"));
+            maxRate = Double.parseDouble(cmd.getOptionValue("max_rate", String.valueOf(maxRate)));
+            rateSchedule = cmd.getOptionValue("rate_schedule");
+            rateControlFile = cmd.getOptionValue("rate_control");
+            metricsJson = cmd.getOptionValue("metrics_json");
+            metricsPrometheus = cmd.getOptionValue("metrics_prom");
+            metricsInterval = Long.parseLong(cmd.getOptionValue("metrics_interval", String.valueOf(metricsInterval)));
             credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
             region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (IllegalArgumentException e1) {
+            System.err.println(e1.getMessage());
+            System.exit(1);
         }
 
         // check mandatory options
@@ -79,18 +138,50 @@ public class PipedUploader {
             System.exit(0);
         }
 
+        if (partSize > 0 && !PartSizeChooser.isValid(partSize * 1024 * 1024)) {
+            System.err.println("-part_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+
+        // set up bandwidth limit
+        if (maxRate > 0 || rateSchedule != null || rateControlFile != null) {
+            try {
+                RateSchedule schedule = (rateSchedule != null) ? RateSchedule.parse(rateSchedule)
+                        : RateSchedule.constant((long) (maxRate * 1024 * 1024));
+                rateController = new RateController(schedule, rateControlFile);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // set up metrics export
+        if (metricsJson != null || metricsPrometheus != null) {
+            metricsReporter = new MetricsReporter(Metrics.global(), metricsJson, metricsPrometheus, metricsInterval);
+        }
+
         // set description
         if (archiveDescription == null) {
             archiveDescription = "Archive created on "+(new Date());
         }
 
+        // open the catalog the archive is recorded in
+        if (catalogFile != null) {
+            try {
+                catalog = new VaultCatalog(new File(catalogFile), vaultName);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
         // read credentials
         try {
             AWSCredentials credentials = new PropertiesCredentials(
                     new FileInputStream(credentialsFilename)
                     );
             client = new AmazonGlacierClient(credentials);
-            client.setEndpoint("https://glacier."+region+".amazonaws.com/");
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -0,0 +1,204 @@
+package cmdline;
+
+import glacierHelper.ArchiveRetrieval;
+import glacierHelper.JobWatcher;
+import glacierHelper.CompressionCodec;
+import glacierHelper.PartSizeChooser;
+import glacierHelper.RangedDownloader;
+import glacierHelper.TarExtractor;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * Restores an archive made by TarGzUploader (or MultiUploader) into a
+ * directory, extracting it while it downloads, without an intermediate
+ * file.
+ *
+ * Ranges of the job output are fetched in parallel ahead of the
+ * decompression (see RangedDownloader.openStream()), and files are
+ * written by another thread (see TarExtractor). The codec is detected from
+ * the start of the archive. With -include, only the matching paths are
+ * written; the whole archive is still downloaded and decompressed.
+ *
+ * example:
+ *   java -Xmx1G -Dfile.encoding=UTF-8 -jar tarGzRestorer.jar -vault VAULT_NAME -archive_id ARCHIVE_ID -dir DIRECTORY [-include PATTERN ...] [-job_id JOB_ID] [-concurrency N] [-chunk_size MB] [-poll_interval S] [-notify] [-quiet] [-endpoint URL]
+ */
+public class TarGzRestorer {
+    private static String credentialsFilename = "AwsCredentials.properties";
+    private static String region = "us-east-1";
+    private static String endpoint = null;
+
+    private static AWSCredentials credentials;
+
+    private static String vaultName = null;
+    private static String archiveId = null;
+    private static String directoryPath = null;
+    private static String[] includes = null;
+    private static String jobId = null;
+    private static int concurrency = 4;
+    private static long chunkSize = 16; // in MB
+    private static long pollInterval = 60; // in seconds
+    private static boolean notify = false;
+    private static boolean verbose = true;
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        System.out.println("Restoring from vault "+vaultName+" to directory "+directoryPath);
+        System.out.println("Retrieval may take hours; please be patient...");
+
+        InputStream in = null;
+        try {
+            AmazonGlacierClient client = new AmazonGlacierClient(credentials);
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
+
+            JobWatcher watcher = new JobWatcher(client, vaultName);
+            watcher.setPollInterval(pollInterval);
+            watcher.setVerbose(false);
+            DescribeJobResult job;
+            try {
+                if (notify) {
+                    AmazonSNSClient snsClient = new AmazonSNSClient(credentials);
+                    snsClient.setEndpoint((endpoint != null) ? endpoint : "https://sns."+region+".amazonaws.com/");
+                    AmazonSQSClient sqsClient = new AmazonSQSClient(credentials);
+                    sqsClient.setEndpoint((endpoint != null) ? endpoint : "https://sqs."+region+".amazonaws.com/");
+                    watcher.openChannel(snsClient, sqsClient, "RETRIEVAL_" + Long.toString(System.currentTimeMillis(), 36));
+                }
+                ArchiveRetrieval retrieval = new ArchiveRetrieval(client, vaultName);
+                retrieval.setJobWatcher(watcher);
+                job = retrieval.retrieve(archiveId, jobId);
+            } finally {
+                watcher.close();
+            }
+
+            RangedDownloader downloader = new RangedDownloader(client, vaultName);
+            downloader.setConcurrency(concurrency);
+            downloader.setChunkSize(chunkSize * 1024 * 1024);
+            downloader.setVerbose(verbose);
+            in = new BufferedInputStream(downloader.openStream(job.getJobId(), job.getArchiveSizeInBytes(),
+                    ArchiveRetrieval.getTreeHash(job)), 64 * 1024);
+
+            in.mark(4);
+            byte[] head = new byte[4];
+            int length = 0;
+            int n;
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) length += n;
+            in.reset();
+            CompressionCodec codec = CompressionCodec.fromHeader(head, length);
+            System.out.println("Archive codec: " + codec.getName());
+
+            TarExtractor extractor = new TarExtractor(new File(directoryPath));
+            extractor.setVerbose(verbose);
+            if (includes != null) {
+                for (String include : includes) extractor.addInclude(include);
+            }
+            InputStream tarStream = codec.decompress(in);
+            extractor.extract(tarStream);
+            // reads to the end, where the archive tree hash is checked
+            byte[] rest = new byte[64 * 1024];
+            while (tarStream.read(rest) > 0) {
+                // padding after the end of the tar
+            }
+            while (in.read(rest) > 0) {
+                // data after the end of the compressed stream
+            }
+            System.out.printf("Restored %d files (%.2f GB).\n", extractor.getFileCount(),
+                    extractor.getByteCount() / (1024.0 * 1024 * 1024));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        System.out.println("Restore complete.");
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("vault", true, "vault name");
+        options.addOption("archive_id", true, "archive ID");
+        options.addOption("dir", true, "directory to extract the archive into");
+        options.addOption("include", true, "(optional) only extract the entries matching this pattern, and what is under them, e.g. 'root/photos/2012*'. '*' and '?' do not match '/', '**' does. May be repeated.");
+        options.addOption("job_id", true, "(optional) ID of an archive retrieval job already initiated for the archive");
+        options.addOption("concurrency", true, "(optional) number of ranges downloaded in parallel (defaults to 4)");
+        options.addOption("chunk_size", true, "(optional) range size in MB: 1 times a power of two, up to 4096 (defaults to 16). concurrency + 1 ranges are kept in memory.");
+        options.addOption("poll_interval", true, "(optional) longest time in seconds between checks of the job status (defaults to 60)");
+        options.addOption("notify", false, "(optional) have a new job notify its completion through an SNS topic and SQS queue (made for the run, then deleted), rather than waiting for the next check");
+        options.addOption("quiet", false, "(optional) do not print each file and range");
+        options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
+        options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+            vaultName = cmd.getOptionValue("vault");
+            archiveId = cmd.getOptionValue("archive_id");
+            directoryPath = cmd.getOptionValue("dir");
+            includes = cmd.getOptionValues("include");
+            jobId = cmd.getOptionValue("job_id");
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            chunkSize = Long.parseLong(cmd.getOptionValue("chunk_size", String.valueOf(chunkSize)));
+            pollInterval = Long.parseLong(cmd.getOptionValue("poll_interval", String.valueOf(pollInterval)));
+            notify = cmd.hasOption("notify");
+            verbose = !cmd.hasOption("quiet");
+            credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
+            region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (vaultName == null || archiveId == null || directoryPath == null) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -Dfile.encoding=UTF-8 -Xmx1G -jar tarGzRestorer.jar", options, true);
+            System.exit(0);
+        }
+
+        if (!PartSizeChooser.isValid(chunkSize * 1024 * 1024)) {
+            System.err.println("-chunk_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+
+        // read credentials
+        try {
+            credentials = new PropertiesCredentials(
+                    new FileInputStream(credentialsFilename)
+                    );
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
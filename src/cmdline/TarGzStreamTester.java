@@ -1,11 +1,10 @@
 package cmdline;
+import glacierHelper.ChunkChannel;
+import glacierHelper.ChunkPool;
+import glacierHelper.CompressionCodec;
 import glacierHelper.TarGzStream;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Arrays;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,28 +19,33 @@ import org.apache.commons.cli.PosixParser;
  * (Merely for testing TarGzStream class).
  * 
  * example:
- *   java -Xmx1G -Dfile.encoding=UTF-8 -jar tarGzStreamTester.jar -dir DIRECTORY > OUTPUT_TAR_GZ_FILENAME
+ *   java -Xmx1G -Dfile.encoding=UTF-8 -jar tarGzStreamTester.jar -dir DIRECTORY [-codec gzip|zstd|lz4|none] [-level N] [-adaptive] [-gzip_threads N] [-io_threads N] [-mmap_threshold MB] > OUTPUT_TAR_GZ_FILENAME
  */
 public class TarGzStreamTester {
 
-    private static int bufferSize = 1024 * 1024;
+    private static int chunkCount = 16;
     private static String filePath = null;
-
-    private InputStream pipedIn;
-
-    public TarGzStreamTester(InputStream pipedIn) {
-        this.pipedIn = pipedIn;
+    private static int gzipThreads = 1;
+    private static String codecName = CompressionCodec.DEFAULT;
+    private static int level = CompressionCodec.DEFAULT_LEVEL;
+    private static CompressionCodec codec;
+    private static boolean adaptive = false;
+    private static int ioThreads = 4;
+    private static long mmapThreshold = 64; // in MB
+
+    private ChunkChannel channel;
+
+    public TarGzStreamTester(ChunkChannel channel) {
+        this.channel = channel;
     }
 
     public void startProcessingStream() throws IOException {
-        byte[] buffer = new byte[bufferSize];
-
         while (true) {
-            int read = pipedIn.read(buffer, 0, buffer.length);
-            if (read == -1) break;
+            ChunkChannel.Chunk chunk = channel.take();
+            if (chunk == null) break;
 
-            byte[] bytesRead = Arrays.copyOf(buffer, read);
-            System.out.write(bytesRead);
+            System.out.write(chunk.getData(), 0, chunk.getLength());
+            channel.getPool().release(chunk.getData());
         }
         System.out.flush();
     }
@@ -52,44 +56,57 @@ public class TarGzStreamTester {
 
         TarGzStream tarGz = new TarGzStream(filePath);
         tarGz.setVerbose(false);
+        tarGz.setCodec(codec);
+        tarGz.setAdaptiveCompression(adaptive);
+        tarGz.setIoThreads(ioThreads);
+        tarGz.setMmapThreshold(mmapThreshold * 1024 * 1024);
 
-        PipedOutputStream tarGzStream = tarGz.prepareOutputStream();
-        PipedInputStream pipeIn = new PipedInputStream();
-        try {
-            pipeIn.connect(tarGzStream);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+        ChunkChannel channel = new ChunkChannel(new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, chunkCount));
+        tarGz.prepareOutputStream(channel.getOutputStream());
 
-        TarGzStreamTester reader = new TarGzStreamTester(pipeIn);
-        Thread tarThread = new Thread(tarGz);
-        tarThread.start();
+        TarGzStreamTester reader = new TarGzStreamTester(channel);
+        Thread tarThread = tarGz.startSendingData(channel);
         try {
             reader.startProcessingStream();
         } catch (IOException e1) {
+            channel.abort(e1);
             e1.printStackTrace();
             System.exit(1);
-        }
-
-        try {
-            tarThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        } finally {
+            try {
+                tarThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     private static void treatCommandlineArgs(String args[]) {
         Options options = new Options();
         options.addOption("dir", true, "directory to process");
+        options.addOption("gzip_threads", true, "(optional) number of threads compressing in parallel: gzip blocks or zstd workers (defaults to 1)");
+        options.addOption("codec", true, "(optional) compression: gzip, zstd, lz4 or none (defaults to gzip). zstd and lz4 need zstd-jni / lz4-java on the classpath.");
+        options.addOption("level", true, "(optional) compression level of the codec (defaults to the codec's default)");
+        options.addOption("adaptive", false, "(optional) store already-compressed files (jpg, mp4, gz, zip, ...) without deflating them. gzip only.");
+        options.addOption("io_threads", true, "(optional) number of threads listing directories and reading files ahead (defaults to 4)");
+        options.addOption("mmap_threshold", true, "(optional) files of this size in MB or larger are read through memory-mapping (defaults to 64)");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
             cmd = parser.parse(options, args);
             filePath = cmd.getOptionValue("dir");
+            gzipThreads = Integer.parseInt(cmd.getOptionValue("gzip_threads", String.valueOf(gzipThreads)));
+            codecName = cmd.getOptionValue("codec", codecName);
+            level = Integer.parseInt(cmd.getOptionValue("level", String.valueOf(level)));
+            adaptive = cmd.hasOption("adaptive");
+            ioThreads = Integer.parseInt(cmd.getOptionValue("io_threads", String.valueOf(ioThreads)));
+            mmapThreshold = Long.parseLong(cmd.getOptionValue("mmap_threshold", String.valueOf(mmapThreshold)));
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
         }
 
         // check mandatory options
@@ -98,5 +115,15 @@ public class TarGzStreamTester {
             formatter.printHelp("java -Dfile.encoding=UTF-8 -Xmx1G -jar tarGzStreamTester.jar", options, true);
             System.exit(0);
         }
+
+        // set up compression
+        try {
+            codec = CompressionCodec.forName(codecName);
+            codec.setLevel(level);
+            codec.setThreads(gzipThreads);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
     }
 }
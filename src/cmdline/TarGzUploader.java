@@ -1,13 +1,20 @@
 package cmdline;
 
+import glacierHelper.ChunkChannel;
+import glacierHelper.CompressionCodec;
+import glacierHelper.Metrics;
+import glacierHelper.MetricsReporter;
+import glacierHelper.PartSizeChooser;
 import glacierHelper.PartialUploadStatus;
+import glacierHelper.RateController;
+import glacierHelper.RateSchedule;
 import glacierHelper.StreamUploader;
 import glacierHelper.TarGzStream;
+import glacierHelper.VaultCatalog;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Date;
@@ -26,6 +33,9 @@ import com.amazonaws.services.glacier.AmazonGlacierClient;
 public class TarGzUploader {
     private static String credentialsFilename = "AwsCredentials.properties";
     private static String region = "us-east-1";
+    private static String endpoint = null;
+    // chunks (1MB each) the tar.gz stream may fill ahead of the uploader
+    private static final int CHANNEL_SLACK_CHUNKS = 16;
 
     private static AmazonGlacierClient client;
 
@@ -33,6 +43,27 @@ public class TarGzUploader {
     private static String filePath = null;
     private static String archiveDescription = null;
     private static String bookmarkFile = null;
+    private static String catalogFile = null;
+    private static VaultCatalog catalog = null;
+    private static int concurrency = 1;
+    private static long partSize = 0; // in MB, 0 to choose it from the archive size
+    private static long sizeHint = -1;
+    private static boolean prescan = false;
+    private static int gzipThreads = 1;
+    private static String codecName = CompressionCodec.DEFAULT;
+    private static int level = CompressionCodec.DEFAULT_LEVEL;
+    private static CompressionCodec codec;
+    private static boolean adaptive = false;
+    private static int ioThreads = 4;
+    private static long mmapThreshold = 64; // in MB
+    private static double maxRate = 0; // in MB/s, 0 for no limit
+    private static String rateSchedule = null;
+    private static String rateControlFile = null;
+    private static RateController rateController = null;
+    private static String metricsJson = null;
+    private static String metricsPrometheus = null;
+    private static long metricsInterval = 10; // in seconds
+    private static MetricsReporter metricsReporter = null;
 
     /**
      * Creates tar.gz archive of the specified directory on the fly, and
@@ -42,7 +73,7 @@ public class TarGzUploader {
      *  you cannot trust the code in TarGzStream.java...)
      *
      * example:
-     *   java -Xmx1G -Dfile.encoding=UTF-8 -jar tarGzUploader.jar -vault VAULT_NAME -dir DIRECTORY [-bookmark BOOKMARK_NAME] [-desc ARCHIVE_DESCRIPTION]
+     *   java -Xmx1G -Dfile.encoding=UTF-8 -jar tarGzUploader.jar -vault VAULT_NAME -dir DIRECTORY [-bookmark BOOKMARK_NAME] [-catalog FILE] [-desc ARCHIVE_DESCRIPTION] [-concurrency N] [-part_size MB] [-size SIZE | -prescan] [-codec gzip|zstd|lz4|none] [-level N] [-adaptive] [-gzip_threads N] [-io_threads N] [-mmap_threshold MB] [-max_rate MB/s] [-rate_schedule SCHEDULE] [-rate_control FILE] [-metrics_json FILE] [-metrics_prom FILE] [-metrics_interval S] [-endpoint URL]
      */
     public static void main(String[] args) {
         // deal with command line args
@@ -50,45 +81,93 @@ public class TarGzUploader {
 
         System.out.println("Uploading all contents of directory "+filePath+" as tar.gz...");
 
-        // prepare tar.gz stream
+        // prepare uploader, and tar.gz stream writing into the uploader's channel
+        StreamUploader uploader = new StreamUploader(client, vaultName, archiveDescription);
+        PartialUploadStatus status = null;
+        if (bookmarkFile != null) {
+            status = new PartialUploadStatus(bookmarkFile);
+            uploader.setPartialUploadStatus(status);
+        }
+        if (catalog != null) uploader.setCatalog(catalog, new File(filePath).getAbsolutePath());
+        uploader.setConcurrency(concurrency);
+        if (rateController != null) {
+            rateController.start();
+            uploader.setRateLimiter(rateController.getLimiter());
+        }
+        if (metricsReporter != null) metricsReporter.start();
+
         TarGzStream tarGz = new TarGzStream(filePath);
-        PipedOutputStream tarGzStream = tarGz.prepareOutputStream();
-        PipedInputStream pipeIn = new PipedInputStream();
-        try {
-            pipeIn.connect(tarGzStream);
-        } catch (IOException e) {
-            System.out.println(e);
-            System.exit(1);
+        tarGz.setCodec(codec);
+        tarGz.setAdaptiveCompression(adaptive);
+        tarGz.setIoThreads(ioThreads);
+        tarGz.setMmapThreshold(mmapThreshold * 1024 * 1024);
+
+        // choose the part size from the archive size, if known. A resumed upload keeps its part size.
+        PartSizeChooser chooser = new PartSizeChooser();
+        chooser.setConcurrency(concurrency);
+        if (partSize > 0) chooser.setPartSize(partSize * 1024 * 1024);
+        if (sizeHint >= 0) chooser.setSizeHint(sizeHint);
+        else if (prescan && !PartSizeChooser.isResuming(status)) chooser.setSizeHint(tarGz.estimateSize());
+        uploader.setPartSize(chooser.choose(status));
+        ChunkChannel channel = uploader.openChannel(CHANNEL_SLACK_CHUNKS);
+
+        if (status != null) {
+            // checkpoint the archive, and when resuming, start it at the first missing part
+            tarGz.setCheckpoints(status, uploader.getPartSize());
+            uploader.setStartOffset(tarGz.resumeFrom(uploader.getResumeOffset()));
         }
+        tarGz.prepareOutputStream(channel.getOutputStream());
 
         // read and compress directory in one thread, upload in another thread.
-        StreamUploader uploader = new StreamUploader(client, vaultName, archiveDescription, pipeIn);
-        if (bookmarkFile != null) {
-            uploader.setPartialUploadStatus(new PartialUploadStatus(bookmarkFile));
+        // whichever side fails first aborts the channel, so that the other one stops as well.
+        Thread tarThread = tarGz.startSendingData(channel);
+        String archiveId = null;
+        try {
+            archiveId = uploader.uploadStream();
+        } catch (Exception e) {
+            channel.abort(e);
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            try {
+                tarThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
-        Thread tarThread = new Thread(tarGz);
-        tarThread.start();
-        String archiveId = uploader.startProcessingStream();
+        if (metricsReporter != null) metricsReporter.stop();
 
         System.out.println("Upload complete.");
         System.out.println("Archive ID:"+archiveId);
-
-        // cleanup
-        try {
-            tarThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
 
+
     private static void treatCommandlineArgs(String args[]) {
         Options options = new Options();
         options.addOption("vault", true, "vault name");
         options.addOption("dir", true, "directory to upload");
         options.addOption("credentials", true, "AWS credentials file name (defaults to 'AwsCredentials.properties')");
         options.addOption("region", true, "AWS region (defaults to 'us-east-1')");
+        options.addOption("endpoint", true, "(optional) service URL to use instead of the region's, e.g. http://localhost:8080 for a LocalGlacierServer");
         options.addOption("desc", true, "(optional) archive description");
-        options.addOption("bookmark", true, "(optional) bookmark name to keep track of partial uploads. Specify an unique name if you may wish to stop and resume this upload, or if you are resuming a previously aborted upload.");
+        options.addOption("catalog", true, "(optional) vault catalog file to record the archive in (see ListVaultInventory -catalog)");
+        options.addOption("bookmark", true, "(optional) bookmark name to keep track of partial uploads. Specify an unique name if you may wish to stop and resume this upload, or if you are resuming a previously aborted upload. With gzip, a resumed upload starts reading the directory near the first missing part.");
+        options.addOption("concurrency", true, "(optional) number of parts uploaded in parallel (defaults to 1). Each part in flight needs its own part-sized buffer, so raise -Xmx accordingly.");
+        options.addOption("part_size", true, "(optional) part size in MB: 1 times a power of two, up to 4096 (defaults to a size chosen from the archive size, or 128 if it is unknown)");
+        options.addOption("size", true, "(optional) expected archive size, e.g. 500G or 1.5T, to choose the part size from. Archives over 10,000 parts fail, so give it for archives over ~1TB.");
+        options.addOption("prescan", false, "(optional) walk the directory first, to know the archive size (an upper bound) when -size is not given");
+        options.addOption("gzip_threads", true, "(optional) number of threads compressing in parallel: gzip blocks or zstd workers (defaults to 1)");
+        options.addOption("codec", true, "(optional) compression: gzip, zstd, lz4 or none (defaults to gzip). zstd and lz4 need zstd-jni / lz4-java on the classpath.");
+        options.addOption("level", true, "(optional) compression level of the codec (defaults to the codec's default)");
+        options.addOption("adaptive", false, "(optional) store already-compressed files (jpg, mp4, gz, zip, ...) without deflating them. gzip only.");
+        options.addOption("io_threads", true, "(optional) number of threads listing directories and reading files ahead (defaults to 4)");
+        options.addOption("mmap_threshold", true, "(optional) files of this size in MB or larger are read through memory-mapping (defaults to 64)");
+        options.addOption("max_rate", true, "(optional) upload bandwidth limit in MB/s (defaults to no limit)");
+        options.addOption("rate_schedule", true, "(optional) bandwidth limit by local time of day, e.g. '08:00-19:00=2,10' (MB/s; 0 for no limit, 'pause' to start no new part). Overrides -max_rate.");
+        options.addOption("rate_control", true, "(optional) file that, while it exists, overrides the bandwidth limit at run time: a rate, 'pause' or a schedule. Checked every 5 seconds.");
+        options.addOption("metrics_json", true, "(optional) file to append throughput, queue depth, latency and retry metrics to, as a JSON line every -metrics_interval");
+        options.addOption("metrics_prom", true, "(optional) file to write the same metrics to in the Prometheus text format, e.g. for node_exporter's textfile collector");
+        options.addOption("metrics_interval", true, "(optional) seconds between metrics reports (defaults to 10)");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
         try {
@@ -97,11 +176,35 @@ public class TarGzUploader {
             filePath = cmd.getOptionValue("dir");
             archiveDescription = cmd.getOptionValue("desc");
             bookmarkFile = cmd.getOptionValue("bookmark");
+            catalogFile = cmd.getOptionValue("catalog");
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            partSize = Long.parseLong(cmd.getOptionValue("part_size", String.valueOf(partSize)));
+            if (cmd.hasOption("size")) sizeHint = PartSizeChooser.parseSize(cmd.getOptionValue("size"));
+            prescan = cmd.hasOption("prescan");
+            gzipThreads = Integer.parseInt(cmd.getOptionValue("gzip_threads", String.valueOf(gzipThreads)));
+            codecName = cmd.getOptionValue("codec", codecName);
+            level = Integer.parseInt(cmd.getOptionValue("level", String.valueOf(level)));
+            adaptive = cmd.hasOption("adaptive");
+            ioThreads = Integer.parseInt(cmd.getOptionValue("io_threads", String.valueOf(ioThreads)));
+            mmapThreshold = Long.parseLong(cmd.getOptionValue("mmap_threshold", String.valueOf(mmapThreshold)));
+            maxRate = Double.parseDouble(cmd.getOptionValue("max_rate", String.valueOf(maxRate)));
+            rateSchedule = cmd.getOptionValue("rate_schedule");
+            rateControlFile = cmd.getOptionValue("rate_control");
+            metricsJson = cmd.getOptionValue("metrics_json");
+            metricsPrometheus = cmd.getOptionValue("metrics_prom");
+            metricsInterval = Long.parseLong(cmd.getOptionValue("metrics_interval", String.valueOf(metricsInterval)));
             credentialsFilename = cmd.getOptionValue("credentials", credentialsFilename);
             region = cmd.getOptionValue("region", region);
+            endpoint = cmd.getOptionValue("endpoint");
         } catch (ParseException e1) {
             e1.printStackTrace();
             System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (IllegalArgumentException e1) {
+            System.err.println(e1.getMessage());
+            System.exit(1);
         }
 
         // check mandatory options
@@ -111,6 +214,38 @@ public class TarGzUploader {
             System.exit(0);
         }
 
+        if (partSize > 0 && !PartSizeChooser.isValid(partSize * 1024 * 1024)) {
+            System.err.println("-part_size must be 1 times a power of two, up to 4096");
+            System.exit(1);
+        }
+
+        // set up compression
+        try {
+            codec = CompressionCodec.forName(codecName);
+            codec.setLevel(level);
+            codec.setThreads(gzipThreads);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        // set up bandwidth limit
+        if (maxRate > 0 || rateSchedule != null || rateControlFile != null) {
+            try {
+                RateSchedule schedule = (rateSchedule != null) ? RateSchedule.parse(rateSchedule)
+                        : RateSchedule.constant((long) (maxRate * 1024 * 1024));
+                rateController = new RateController(schedule, rateControlFile);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // set up metrics export
+        if (metricsJson != null || metricsPrometheus != null) {
+            metricsReporter = new MetricsReporter(Metrics.global(), metricsJson, metricsPrometheus, metricsInterval);
+        }
+
         // set description
         if (archiveDescription == null) {
             try {
@@ -123,6 +258,18 @@ public class TarGzUploader {
                 System.exit(1);
             }
         }
+        // record the codec, so that restores know how to decode the archive
+        archiveDescription = CompressionCodec.tagDescription(archiveDescription, codec);
+
+        // open the catalog the archive is recorded in
+        if (catalogFile != null) {
+            try {
+                catalog = new VaultCatalog(new File(catalogFile), vaultName);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
 
         // read credentials
         try {
@@ -130,7 +277,7 @@ public class TarGzUploader {
                     new FileInputStream(credentialsFilename)
                     );
             client = new AmazonGlacierClient(credentials);
-            client.setEndpoint("https://glacier."+region+".amazonaws.com/");
+            client.setEndpoint((endpoint != null) ? endpoint : "https://glacier."+region+".amazonaws.com/");
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -0,0 +1,124 @@
+package cmdline;
+
+import glacierHelper.CircuitBreaker;
+import glacierHelper.FakeGlacierClient;
+import glacierHelper.RetryPolicy;
+import glacierHelper.StreamUploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+/**
+ * Uploads a file to an in-memory fake of Glacier that fails on purpose,
+ * and checks that the archive it ends up with is the file.
+ * (Merely for testing the retries of StreamUploader).
+ *
+ * example:
+ *   java -Xmx1G -jar uploadTester.jar -file FILE [-part_size MB] [-concurrency N] [-failure_rate 0.2] [-failure_status 500] [-failure_code InternalFailure] [-throttle N] [-max_attempts N] [-base_delay ms]
+ *
+ * -failure_status 0 injects network errors; 4xx statuses other than 408 / 429 are fatal, and should make the upload fail.
+ */
+public class UploadTester {
+    private static String filePath = null;
+    private static long partSize = 1; // in MB
+    private static int concurrency = 2;
+    private static double failureRate = 0.2;
+    private static int failureStatus = 500;
+    private static String failureCode = "InternalFailure";
+    private static int throttles = 0;
+    private static int maxAttempts = 10;
+    private static long baseDelay = 100; // in ms
+
+    public static void main(String[] args) {
+        // deal with command line args
+        treatCommandlineArgs(args);
+
+        FakeGlacierClient client = new FakeGlacierClient();
+        client.setFailureRate(failureRate, failureStatus, failureCode);
+        if (throttles > 0) client.failNext(FakeGlacierClient.UPLOAD_PART, throttles, 400, "ThrottlingException");
+
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxAttempts(maxAttempts);
+        retryPolicy.setBaseDelay(baseDelay);
+        retryPolicy.setMaxDelay(baseDelay * 20);
+        retryPolicy.setCircuitBreaker(new CircuitBreaker(3, 10 * baseDelay, 10 * baseDelay));
+
+        long start = System.currentTimeMillis();
+        String archiveId = null;
+        try {
+            StreamUploader uploader = new StreamUploader(client, "test", "test", new FileInputStream(filePath));
+            uploader.setVerbose(false);
+            uploader.setPartSize(partSize * 1024 * 1024);
+            uploader.setConcurrency(concurrency);
+            uploader.setRetryPolicy(retryPolicy);
+            archiveId = uploader.uploadStream();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Upload FAILED after " + client.getInjectedFailureCount(FakeGlacierClient.UPLOAD_PART) + " injected part failures.");
+            System.exit(1);
+        }
+
+        System.out.printf("Uploaded in %.1f s: %d part requests, %d injected failures.\n",
+                (System.currentTimeMillis() - start) / 1000.0,
+                client.getRequestCount(FakeGlacierClient.UPLOAD_PART),
+                client.getInjectedFailureCount(FakeGlacierClient.UPLOAD_PART));
+
+        String expected = TreeHashGenerator.calculateTreeHash(new File(filePath));
+        String actual = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(client.getArchive(archiveId)));
+        if (!expected.equals(actual)) {
+            System.out.println("Archive content DIFFERS from the file.");
+            System.exit(1);
+        }
+        System.out.println("Archive content matches the file.");
+    }
+
+    private static void treatCommandlineArgs(String args[]) {
+        Options options = new Options();
+        options.addOption("file", true, "file to upload");
+        options.addOption("part_size", true, "(optional) part size in MB (defaults to 1)");
+        options.addOption("concurrency", true, "(optional) number of parts uploaded in parallel (defaults to 2)");
+        options.addOption("failure_rate", true, "(optional) probability of a part upload failing (defaults to 0.2)");
+        options.addOption("failure_status", true, "(optional) HTTP status of the failures, 0 for network errors (defaults to 500)");
+        options.addOption("failure_code", true, "(optional) error code of the failures (defaults to InternalFailure)");
+        options.addOption("throttle", true, "(optional) number of part uploads to throttle first (defaults to 0)");
+        options.addOption("max_attempts", true, "(optional) attempts per request (defaults to 10)");
+        options.addOption("base_delay", true, "(optional) base of the retry backoff in ms (defaults to 100)");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+            filePath = cmd.getOptionValue("file");
+            partSize = Long.parseLong(cmd.getOptionValue("part_size", String.valueOf(partSize)));
+            concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", String.valueOf(concurrency)));
+            failureRate = Double.parseDouble(cmd.getOptionValue("failure_rate", String.valueOf(failureRate)));
+            failureStatus = Integer.parseInt(cmd.getOptionValue("failure_status", String.valueOf(failureStatus)));
+            failureCode = cmd.getOptionValue("failure_code", failureCode);
+            throttles = Integer.parseInt(cmd.getOptionValue("throttle", String.valueOf(throttles)));
+            maxAttempts = Integer.parseInt(cmd.getOptionValue("max_attempts", String.valueOf(maxAttempts)));
+            baseDelay = Long.parseLong(cmd.getOptionValue("base_delay", String.valueOf(baseDelay)));
+        } catch (ParseException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        } catch (NumberFormatException e1) {
+            e1.printStackTrace();
+            System.exit(1);
+        }
+
+        // check mandatory options
+        if (filePath == null) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -Xmx1G -jar uploadTester.jar", options, true);
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package glacierHelper;
+
+/**
+ * Implemented by compressing streams that hold threads or native memory,
+ * so that they can be released when the output is given up on, without
+ * close() finishing (and so writing) it.
+ */
+public interface AbortableCompression {
+
+    /**
+     * Releases the stream's threads and native memory. Nothing more is
+     * written to the underlying stream, which is left open.
+     */
+    void abort();
+}
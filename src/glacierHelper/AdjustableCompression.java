@@ -0,0 +1,18 @@
+package glacierHelper;
+
+import java.io.IOException;
+
+/**
+ * Implemented by compressing streams whose compression level can be changed
+ * while data is being written, e.g. to store already-compressed files
+ * without deflating them (level 0).
+ */
+public interface AdjustableCompression {
+
+    /**
+     * Applies the level to the data written from now on.
+     */
+    void setLevel(int level) throws IOException;
+
+    int getLevel();
+}
@@ -0,0 +1,37 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIPOutputStream whose deflate level can be changed between writes.
+ * Until setLevel() is called, the output is the same as GZIPOutputStream's
+ * (and so GzipCompressorOutputStream's).
+ */
+public class AdjustableGzipOutputStream extends GZIPOutputStream implements AdjustableCompression, AbortableCompression {
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    public AdjustableGzipOutputStream(OutputStream out) throws IOException {
+        super(out);
+    }
+
+    @Override
+    public void setLevel(int level) {
+        if (level == this.level) return;
+        def.setLevel(level);
+        this.level = level;
+    }
+
+    @Override
+    public int getLevel() { return level; }
+
+    /**
+     * Frees the deflater's native memory, without writing the trailer.
+     */
+    @Override
+    public void abort() {
+        def.end();
+    }
+}
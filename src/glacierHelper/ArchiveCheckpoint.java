@@ -0,0 +1,86 @@
+package glacierHelper;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * State of TarGzStream at a point of the archive from which it can be
+ * produced again without going through what comes before.
+ *
+ * The tar writer holds back the last 512-byte record written, so at a
+ * checkpoint the compressor has seen the tar stream up to the start of
+ * that record. Checkpoints are only taken where that record is file
+ * content, which can be read again: entry [entryIndex] (in scanner order)
+ * from [contentOffset] on.
+ */
+public class ArchiveCheckpoint {
+    private long entryIndex;
+    private String entryName;
+    private long entrySize;
+    private long contentOffset;
+    private long tarOffset;
+    private long compressedOffset;
+    private long crc;
+    private int level;
+
+    public ArchiveCheckpoint(long entryIndex, String entryName, long entrySize, long contentOffset,
+            ParallelGzipOutputStream.Checkpoint gzip, int level) {
+        this.entryIndex = entryIndex;
+        this.entryName = entryName;
+        this.entrySize = entrySize;
+        this.contentOffset = contentOffset;
+        this.tarOffset = gzip.getUncompressedOffset();
+        this.compressedOffset = gzip.getCompressedOffset();
+        this.crc = gzip.getCrc();
+        this.level = level;
+    }
+
+    public long getEntryIndex() { return entryIndex; }
+    public String getEntryName() { return entryName; }
+    public long getEntrySize() { return entrySize; }
+    /** offset in the file where the tar stream continues, a multiple of 512 */
+    public long getContentOffset() { return contentOffset; }
+    /** offset in the (uncompressed) tar stream */
+    public long getTarOffset() { return tarOffset; }
+    /** offset in the archive, as uploaded */
+    public long getCompressedOffset() { return compressedOffset; }
+    /** compression level in use at the checkpoint */
+    public int getLevel() { return level; }
+
+    public ParallelGzipOutputStream.Checkpoint getGzipCheckpoint() {
+        return new ParallelGzipOutputStream.Checkpoint(compressedOffset, tarOffset, crc);
+    }
+
+    /**
+     * @return single line form, read back by parse().
+     */
+    @Override
+    public String toString() {
+        try {
+            return entryIndex + "," + entrySize + "," + contentOffset + "," + tarOffset + ","
+                    + compressedOffset + "," + crc + "," + level + "," + URLEncoder.encode(entryName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the checkpoint written by toString(), or null if the string is malformed.
+     */
+    public static ArchiveCheckpoint parse(String s) {
+        String[] fields = s.split(",", 8);
+        if (fields.length != 8) return null;
+        try {
+            return new ArchiveCheckpoint(Long.parseLong(fields[0]),
+                    URLDecoder.decode(fields[7], "UTF-8"), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    new ParallelGzipOutputStream.Checkpoint(Long.parseLong(fields[4]), Long.parseLong(fields[3]),
+                            Long.parseLong(fields[5])),
+                    Integer.parseInt(fields[6]));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package glacierHelper;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.JobParameters;
+
+/**
+ * Gets a completed archive retrieval job: reuses a job initiated earlier
+ * (e.g. by an interrupted download) while it has not expired, or initiates
+ * a new one, then waits for it with a JobWatcher (notified through its
+ * channel if it has one, else polling DescribeJob).
+ */
+public class ArchiveRetrieval {
+    private AmazonGlacierClient client;
+    private String vaultName;
+    private long pollInterval = 60; // in seconds
+    private boolean verbose = true;
+    private JobWatcher watcher = null;
+
+    public ArchiveRetrieval(AmazonGlacierClient client, String vaultName) {
+        this.client = client;
+        this.vaultName = vaultName;
+    }
+
+    /**
+     * @param pollInterval longest time in seconds between DescribeJob calls,
+     * for the watcher made here when none is set
+     */
+    public void setPollInterval(long pollInterval) { this.pollInterval = pollInterval; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    /** a watcher shared with other retrievals, e.g. one with a notification channel */
+    public void setJobWatcher(JobWatcher watcher) { this.watcher = watcher; }
+
+    /**
+     * @param jobId job to reuse if it still exists, or null
+     * @return the completed job retrieving the archive
+     */
+    public DescribeJobResult retrieve(String archiveId, String jobId) throws InterruptedException {
+        if (jobId != null) {
+            try {
+                DescribeJobResult job = waitFor(jobId);
+                if (!archiveId.equals(job.getArchiveId())) {
+                    throw new IllegalArgumentException("Job " + jobId + " retrieves another archive: " + job.getArchiveId());
+                }
+                if (verbose) System.out.println("Reusing job " + jobId);
+                return job;
+            } catch (AmazonServiceException e) {
+                // jobs expire about a day after they complete
+                if (!"ResourceNotFoundException".equals(e.getErrorCode())) throw e;
+                if (verbose) System.out.println("Job " + jobId + " no longer exists, starting a new one.");
+            }
+        }
+        return waitFor(initiate(archiveId));
+    }
+
+    /**
+     * @return ID of the new archive retrieval job
+     */
+    public String initiate(String archiveId) {
+        String jobId = client.initiateJob(new InitiateJobRequest()
+        .withVaultName(vaultName)
+        .withJobParameters(new JobParameters()
+        .withType("archive-retrieval")
+        .withArchiveId(archiveId)
+        .withSNSTopic(getJobWatcher().getTopicARN()))).getJobId();
+        if (verbose) System.out.println("Started retrieval job " + jobId);
+        return jobId;
+    }
+
+    /**
+     * Waits for the job to complete; retrievals typically take 3 to 5 hours.
+     */
+    public DescribeJobResult waitFor(String jobId) throws InterruptedException {
+        if (verbose) System.out.println("Waiting for job " + jobId + " to complete...");
+        return getJobWatcher().waitFor(jobId);
+    }
+
+    private synchronized JobWatcher getJobWatcher() {
+        if (watcher == null) {
+            watcher = new JobWatcher(client, vaultName);
+            watcher.setPollInterval(pollInterval);
+            watcher.setVerbose(false);
+        }
+        return watcher;
+    }
+
+    /**
+     * @return tree hash of the whole archive, as reported by the job
+     */
+    public static String getTreeHash(DescribeJobResult job) {
+        return (job.getArchiveSHA256TreeHash() != null) ? job.getArchiveSHA256TreeHash() : job.getSHA256TreeHash();
+    }
+}
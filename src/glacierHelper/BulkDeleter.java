@@ -0,0 +1,291 @@
+package glacierHelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+
+/**
+ * Deletes archives in parallel, as they are submitted (e.g. while the
+ * inventory is still being read), at a rate that adapts to throttling.
+ *
+ * The rate starts at the maximum given (or unlimited). When Glacier
+ * throttles, it is halved (from the rate actually achieved, if there was no
+ * limit), at most once a second; after each second without throttling it
+ * grows back by 5%, up to the maximum. Throttled deletions are retried
+ * with the RetryPolicy's backoff.
+ *
+ * With a journal (a 'bookmark' file), deleted IDs are recorded as they
+ * complete, forced to disk in batches, and skipped when the deletion is
+ * run again. The journal also keeps the inventory job, so that a rerun
+ * within a day reuses its output rather than waiting for a new one.
+ * Archives already gone count as deleted.
+ */
+public class BulkDeleter {
+    private static final String JOB = "job ";
+    private static final int SYNC_BATCH = 64;
+    private static final long SYNC_INTERVAL = 1000;
+    private static final long REPORT_INTERVAL = 10000;
+
+    private AmazonGlacierClient client;
+    private String vaultName;
+    private int concurrency = 8;
+    private long maxRate = 0; // deletions per second, 0 for no limit
+    private boolean verbose = false;
+    private RetryPolicy retryPolicy;
+    private RateLimiter limiter;
+    private VaultCatalog catalog = null;
+
+    private ExecutorService workers;
+    private Semaphore slots;
+
+    private File journalFile = null;
+    private Set<String> done = new HashSet<String>();
+    private String inventoryJobId = null;
+    private FileOutputStream journal = null;
+    private int unsynced = 0;
+    private long lastSync = 0;
+
+    private AtomicLong deleted = new AtomicLong();
+    private AtomicLong skipped = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong throttled = new AtomicLong();
+    private long lastRateChange = System.currentTimeMillis();
+    private long startTime;
+    private long lastReport;
+    private long deletedAtLastReport = 0;
+
+    private static final Metrics.Counter deletions = Metrics.global().counter("glacier_deletions_total", "Archives deleted");
+
+    public BulkDeleter(AmazonGlacierClient client, String vaultName) {
+        this.client = client;
+        this.vaultName = vaultName;
+        this.retryPolicy = new RetryPolicy();
+        this.retryPolicy.setVerbose(false);
+    }
+
+    /**
+     * @param concurrency number of deletions in flight
+     */
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    /**
+     * @param maxRate deletions per second, 0 for no limit
+     */
+    public void setMaxRate(long maxRate) { this.maxRate = Math.max(0, maxRate); }
+    /** prints each archive deleted */
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    public void setRetryPolicy(RetryPolicy retryPolicy) { this.retryPolicy = retryPolicy; }
+    /** records the deletions in the catalog as well */
+    public void setCatalog(VaultCatalog catalog) { this.catalog = catalog; }
+
+    /**
+     * Records progress in the journal of the given name, and reads what it
+     * holds from a previous run. Must be called before start().
+     */
+    public void setJournal(String name) throws IOException {
+        journalFile = new File(PartialUploadStatus.basePath + "bulkDeleteStatus." + name + ".journal");
+        if (!journalFile.exists()) return;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(JOB)) {
+                    inventoryJobId = line.substring(JOB.length());
+                } else if (line.length() > 0) {
+                    // a torn last line matches no archive
+                    done.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return inventory job recorded by a previous run, or null
+     */
+    public String getInventoryJobId() { return inventoryJobId; }
+
+    /**
+     * @return number of archives the journal holds as deleted
+     */
+    public int getJournalSize() { return done.size(); }
+
+    public void setInventoryJobId(String jobId) throws IOException {
+        if (jobId == null || jobId.equals(inventoryJobId)) return;
+        inventoryJobId = jobId;
+        record(JOB + jobId);
+    }
+
+    public synchronized void start() throws IOException {
+        if (journalFile != null) journal = new FileOutputStream(journalFile, true);
+        limiter = new RateLimiter(maxRate);
+        workers = Executors.newFixedThreadPool(concurrency);
+        // a few deletions queued per worker, so that they never wait for the reader
+        slots = new Semaphore(concurrency * 4);
+        startTime = System.currentTimeMillis();
+        lastReport = startTime;
+    }
+
+    /**
+     * Queues the deletion of the archive, waiting while the queue is full.
+     */
+    public void submit(final String archiveId) throws InterruptedException {
+        if (done.contains(archiveId)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        slots.acquire();
+        workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    delete(archiveId);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+        report(false);
+    }
+
+    /**
+     * Waits for the queued deletions, and deletes the journal if none failed.
+     *
+     * @return number of deletions that failed
+     */
+    public long finish() throws InterruptedException, IOException {
+        workers.shutdown();
+        while (!workers.awaitTermination(REPORT_INTERVAL, TimeUnit.MILLISECONDS)) report(false);
+        report(true);
+        synchronized (this) {
+            if (journal != null) {
+                journal.getFD().sync();
+                journal.close();
+                journal = null;
+            }
+        }
+        if (journalFile != null && failed.get() == 0) journalFile.delete();
+        return failed.get();
+    }
+
+    public long getDeleted() { return deleted.get(); }
+    public long getSkipped() { return skipped.get(); }
+    public long getFailed() { return failed.get(); }
+
+    private void delete(final String archiveId) {
+        try {
+            retryPolicy.call("Deleting " + archiveId, new Callable<Void>() {
+                public Void call() throws Exception {
+                    limiter.acquire(1);
+                    try {
+                        client.deleteArchive(new DeleteArchiveRequest()
+                        .withVaultName(vaultName)
+                        .withArchiveId(archiveId));
+                    } catch (AmazonServiceException e) {
+                        if (retryPolicy.isThrottling(e)) slowDown();
+                        // already gone, e.g. deleted by a run that could not record it
+                        if (!"ResourceNotFoundException".equals(e.getErrorCode())) throw e;
+                    }
+                    return null;
+                }
+            });
+            speedUp();
+            deleted.incrementAndGet();
+            deletions.increment();
+            if (verbose) System.out.println("Deleted Archive ID: " + archiveId);
+            record(archiveId);
+            if (catalog != null) catalog.remove(archiveId);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            System.err.println("Failed to delete " + archiveId + ": " + e);
+        }
+    }
+
+    /**
+     * Halves the rate, at most once a second (throttling errors come in bursts).
+     */
+    private synchronized void slowDown() {
+        throttled.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (now - lastRateChange < 1000) return;
+        long rate = limiter.getRate();
+        if (rate <= 0) {
+            // no limit yet: start from the rate achieved so far
+            rate = deleted.get() * 1000 / Math.max(1000, now - startTime);
+        }
+        limiter.setRate(Math.max(1, rate / 2));
+        lastRateChange = now;
+    }
+
+    /**
+     * Raises the rate by 5% after each second without throttling.
+     */
+    private synchronized void speedUp() {
+        long rate = limiter.getRate();
+        if (rate <= 0) return;
+        long now = System.currentTimeMillis();
+        if (now - lastRateChange < 1000) return;
+        long raised = Math.max(rate + 1, rate * 105 / 100);
+        limiter.setRate((maxRate > 0 && raised >= maxRate) ? maxRate : raised);
+        lastRateChange = now;
+    }
+
+    private synchronized void record(String line) throws IOException {
+        if (journal == null) {
+            if (line.startsWith(JOB) && journalFile != null) {
+                // the job is recorded before start()
+                FileOutputStream out = new FileOutputStream(journalFile, true);
+                try {
+                    out.write((line + "\n").getBytes("UTF-8"));
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            }
+            return;
+        }
+        journal.write((line + "\n").getBytes("UTF-8"));
+        unsynced++;
+        long now = System.currentTimeMillis();
+        if (unsynced >= SYNC_BATCH || now - lastSync >= SYNC_INTERVAL) {
+            journal.getFD().sync();
+            unsynced = 0;
+            lastSync = now;
+        }
+    }
+
+    /**
+     * Prints the progress every REPORT_INTERVAL, or now if final.
+     */
+    private synchronized void report(boolean last) {
+        long now = System.currentTimeMillis();
+        if (!last && now - lastReport < REPORT_INTERVAL) return;
+        long count = deleted.get();
+        double recent = (count - deletedAtLastReport) * 1000.0 / Math.max(1, now - lastReport);
+        double average = count * 1000.0 / Math.max(1, now - startTime);
+        long rate = limiter.getRate();
+        if (last) {
+            System.out.printf("Deleted %d archives in %.0f s (%.1f/s); %d skipped (deleted before), %d failed, %d throttled.\n",
+                    count, (now - startTime) / 1000.0, average, skipped.get(), failed.get(), throttled.get());
+        } else {
+            System.out.printf("Deleted %d archives: %.1f/s now, %.1f/s on average; limit %s; %d skipped, %d failed, %d throttled.\n",
+                    count, recent, average, (rate > 0) ? rate + "/s" : "none", skipped.get(), failed.get(), throttled.get());
+        }
+        lastReport = now;
+        deletedAtLastReport = count;
+    }
+}
@@ -0,0 +1,212 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hands data from a producer thread to a consumer thread in whole chunks
+ * taken from a ChunkPool, as a replacement for PipedOutputStream /
+ * PipedInputStream.
+ *
+ * The producer writes into getOutputStream(). Each chunk is passed on once
+ * it is full (only the last one may be shorter), so the consumer wakes up
+ * once per chunk rather than once per 1KB pipe buffer. A consumer using the
+ * same pool (e.g. StreamUploader) can keep the chunks it takes as part of
+ * its part buffer, so the data is not copied again after the producer wrote
+ * it. The number of chunks in the channel is bounded by the pool.
+ *
+ * If either side fails, abort() makes the other side fail as well, rather
+ * than wait forever or see a normal end of data.
+ */
+public class ChunkChannel {
+    private static final Chunk EOF = new Chunk(null, 0);
+    private static final Chunk ABORTED = new Chunk(null, 0);
+
+    private ChunkPool pool;
+    private LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+    private boolean eofReached = false;
+    private volatile Throwable abortCause = null;
+
+    private static final Metrics.Counter producerWaits = Metrics.global().waitPoint("archiver_waits_for_uploader");
+    private static final Metrics.Counter consumerWaits = Metrics.global().waitPoint("uploader_waits_for_data");
+
+    public ChunkChannel(ChunkPool pool) {
+        this.pool = pool;
+    }
+
+    public ChunkPool getPool() { return pool; }
+
+    /**
+     * @return number of filled chunks not taken yet
+     */
+    public int getQueuedChunks() { return queue.size(); }
+
+    /**
+     * A filled chunk. data belongs to the pool and must be released to it
+     * by whoever ends up holding it.
+     */
+    public static class Chunk {
+        private byte[] data;
+        private int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        public byte[] getData() { return data; }
+        public int getLength() { return length; }
+    }
+
+    /**
+     * Waits for the next chunk.
+     *
+     * @return the next chunk, or null once the producer has closed the stream.
+     */
+    public Chunk take() throws IOException {
+        if (eofReached) return null;
+        try {
+            long waitStart = System.nanoTime();
+            Chunk chunk = queue.take();
+            consumerWaits.add(System.nanoTime() - waitStart);
+            if (chunk == ABORTED) {
+                queue.add(ABORTED);
+                throw new IOException("Producer failed", abortCause);
+            }
+            if (chunk == EOF) {
+                eofReached = true;
+                return null;
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+    }
+
+    /**
+     * Fails the channel: the consumer's take() and the producer's writes
+     * throw from now on. Chunks not taken yet go back to the pool, which
+     * also wakes a producer waiting for a free chunk.
+     */
+    public void abort(Throwable cause) {
+        if (abortCause != null) return;
+        abortCause = (cause != null) ? cause : new IOException("Channel aborted");
+        Chunk chunk;
+        while ((chunk = queue.poll()) != null) {
+            if (chunk.getData() != null) pool.release(chunk.getData());
+        }
+        queue.add(ABORTED);
+    }
+
+    /**
+     * @return stream to be written by the producer. close() marks the end of data.
+     */
+    public OutputStream getOutputStream() {
+        return new ChannelOutputStream();
+    }
+
+    /**
+     * @return a plain stream over the chunks, for consumers that cannot take
+     * chunks directly. Chunks are released as soon as they are read.
+     */
+    public InputStream getInputStream() {
+        return new ChannelInputStream();
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        private byte[] current = null;
+        private int length = 0;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            while (len > 0) {
+                if (abortCause != null) throw new IOException("Consumer failed", abortCause);
+                if (current == null) {
+                    try {
+                        long waitStart = System.nanoTime();
+                        current = pool.take();
+                        producerWaits.add(System.nanoTime() - waitStart);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+                    }
+                    length = 0;
+                }
+                int n = Math.min(len, current.length - length);
+                System.arraycopy(b, off, current, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == current.length) {
+                    queue.add(new Chunk(current, length));
+                    current = null;
+                }
+            }
+        }
+
+        /**
+         * Does nothing; chunks are passed on only when full, so that the
+         * consumer always gets whole chunks.
+         */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (current != null) {
+                queue.add(new Chunk(current, length));
+                current = null;
+            }
+            queue.add(EOF);
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+        private Chunk current = null;
+        private int pos = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (current == null) {
+                current = take();
+                pos = 0;
+                if (current == null) return -1;
+            }
+            int n = Math.min(len, current.getLength() - pos);
+            System.arraycopy(current.getData(), pos, b, off, n);
+            pos += n;
+            if (pos == current.getLength()) {
+                pool.release(current.getData());
+                current = null;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                pool.release(current.getData());
+                current = null;
+            }
+        }
+    }
+}
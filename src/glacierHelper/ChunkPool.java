@@ -0,0 +1,59 @@
+package glacierHelper;
+
+import java.util.LinkedList;
+
+/**
+ * A bounded pool of fixed-size byte[] chunks.
+ *
+ * Part buffers are assembled from these chunks instead of being allocated per
+ * part, so that the heap used for buffering stays constant during an upload
+ * and part sizes are not limited by the maximum array length.
+ * Chunks are allocated lazily, up to maxChunks, and recycled afterwards.
+ * take() blocks while all chunks are in use.
+ */
+public class ChunkPool {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB, same as tree hash leaves
+
+    private final int chunkSize;
+    private final int maxChunks;
+    private int allocated = 0;
+    private LinkedList<byte[]> free = new LinkedList<byte[]>();
+
+    public ChunkPool(int chunkSize, int maxChunks) {
+        if (chunkSize <= 0 || maxChunks <= 0) throw new IllegalArgumentException("chunkSize and maxChunks must be positive");
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+    }
+
+    public int getChunkSize() { return chunkSize; }
+    public int getMaxChunks() { return maxChunks; }
+
+    /**
+     * @return total size of the chunks allocated so far, in bytes.
+     */
+    public synchronized long getAllocatedBytes() { return (long)allocated * chunkSize; }
+
+    /**
+     * Returns a free chunk, allocating a new one if the pool has not reached
+     * its limit yet. Blocks until a chunk is released otherwise.
+     */
+    public synchronized byte[] take() throws InterruptedException {
+        while (free.isEmpty()) {
+            if (allocated < maxChunks) {
+                allocated++;
+                return new byte[chunkSize];
+            }
+            wait();
+        }
+        return free.removeFirst();
+    }
+
+    /**
+     * Returns the chunk to the pool. Contents are not cleared.
+     */
+    public synchronized void release(byte[] chunk) {
+        if (chunk.length != chunkSize) throw new IllegalArgumentException("chunk does not belong to this pool");
+        free.addFirst(chunk);
+        notify();
+    }
+}
@@ -0,0 +1,86 @@
+package glacierHelper;
+
+/**
+ * Stops all workers for a while when the service throttles repeatedly,
+ * instead of each of them backing off on its own and hitting it again.
+ *
+ * [threshold] throttling errors within [window] open the breaker for
+ * [cooldown]; workers wait in awaitClosed() before each request. If it
+ * opens again before any request succeeded, the cooldown doubles, up to
+ * [maxCooldown]. A success resets it.
+ */
+public class CircuitBreaker {
+    private int threshold = 3;
+    private long window = 10 * 1000;
+    private long baseCooldown = 30 * 1000;
+    private long maxCooldown = 5 * 60 * 1000;
+    private boolean verbose = true;
+
+    private long cooldown = baseCooldown;
+    private long openUntil = 0;
+    private int throttles = 0;
+    private long windowStart = 0;
+
+    private static final Metrics.Counter opens = Metrics.global().counter("glacier_circuit_breaker_opens_total",
+            "Times requests were paused for repeated throttling");
+    private static final Metrics.Counter waits = Metrics.global().waitPoint("circuit_breaker_open");
+
+    /**
+     * @param threshold throttling errors that open the breaker
+     * @param window in ms
+     * @param cooldown in ms
+     */
+    public CircuitBreaker(int threshold, long window, long cooldown) {
+        this.threshold = threshold;
+        this.window = window;
+        this.baseCooldown = cooldown;
+        this.cooldown = cooldown;
+        this.maxCooldown = Math.max(maxCooldown, cooldown);
+    }
+
+    public CircuitBreaker() {
+    }
+
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    public synchronized void recordThrottling() {
+        long now = System.currentTimeMillis();
+        if (now < openUntil) return; // requests sent before it opened
+        if (now - windowStart > window) {
+            windowStart = now;
+            throttles = 0;
+        }
+        if (++throttles < threshold) return;
+
+        openUntil = now + cooldown;
+        opens.increment();
+        if (verbose) System.out.printf("Throttled %d times within %d s: pausing all requests for %d s\n", throttles, window / 1000, cooldown / 1000);
+        cooldown = Math.min(maxCooldown, cooldown * 2);
+        throttles = 0;
+        windowStart = 0;
+    }
+
+    public synchronized void recordSuccess() {
+        cooldown = baseCooldown;
+        throttles = 0;
+    }
+
+    public synchronized boolean isOpen() {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    /**
+     * Waits until the breaker is closed.
+     */
+    public void awaitClosed() throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = openUntil - System.currentTimeMillis();
+            }
+            if (wait <= 0) return;
+            Thread.sleep(wait);
+            waits.add(wait * 1000000);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package glacierHelper;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Guesses whether a file is already compressed (and thus not worth
+ * deflating), from its extension, its magic bytes, or, failing both, by
+ * deflating a sample of its first bytes at the fastest level.
+ */
+public class CompressibilityDetector {
+    private static final int MIN_FILE_SIZE = 64 * 1024; // smaller files are not worth the trouble
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double INCOMPRESSIBLE_RATIO = 0.95;
+
+    private static final Set<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "flac",
+            "mp4", "m4v", "mov", "mkv", "avi", "webm",
+            "gz", "tgz", "bz2", "xz", "lz4", "zst", "7z", "rar", "zip", "jar",
+            "docx", "xlsx", "pptx", "odt", "epub", "apk"));
+
+    private static final byte[][] MAGIC = {
+        { (byte) 0xff, (byte) 0xd8, (byte) 0xff },            // jpeg
+        { (byte) 0x89, 'P', 'N', 'G' },                       // png
+        { 'G', 'I', 'F', '8' },                               // gif
+        { 0x1f, (byte) 0x8b },                                // gzip
+        { 'P', 'K', 0x03, 0x04 },                             // zip and friends
+        { 'B', 'Z', 'h' },                                    // bzip2
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 },            // xz
+        { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },   // 7z
+        { 'R', 'a', 'r', '!' },                               // rar
+        { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },             // zstd
+        { 0x04, 0x22, 0x4d, 0x18 },                           // lz4
+        { 'I', 'D', '3' },                                    // mp3
+        { 0x1a, 0x45, (byte) 0xdf, (byte) 0xa3 },             // mkv / webm
+    };
+
+    private Deflater probe = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] probeOutput = new byte[SAMPLE_SIZE + 1024];
+
+    /**
+     * @param name file name
+     * @param size file size
+     * @param head first bytes of the file
+     * @param headLength number of valid bytes in head
+     */
+    public boolean isIncompressible(String name, long size, byte[] head, int headLength) {
+        if (size < MIN_FILE_SIZE) return false;
+
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase())) return true;
+
+        for (byte[] magic : MAGIC) {
+            if (startsWith(head, headLength, magic, 0)) return true;
+        }
+        // mp4 / mov: "ftyp" box at offset 4
+        if (startsWith(head, headLength, new byte[] { 'f', 't', 'y', 'p' }, 4)) return true;
+
+        return probeRatio(head, headLength) > INCOMPRESSIBLE_RATIO;
+    }
+
+    private static boolean startsWith(byte[] head, int headLength, byte[] magic, int offset) {
+        if (headLength < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (head[offset + i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return compressed size / original size of a sample, at the fastest level.
+     */
+    private double probeRatio(byte[] head, int headLength) {
+        int sampleLength = Math.min(SAMPLE_SIZE, headLength);
+        if (sampleLength == 0) return 0;
+
+        probe.reset();
+        probe.setInput(head, 0, sampleLength);
+        probe.finish();
+        int compressed = 0;
+        while (!probe.finished()) {
+            compressed += probe.deflate(probeOutput);
+        }
+        return (double) compressed / sampleLength;
+    }
+}
@@ -0,0 +1,113 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compression applied to the tar stream by TarGzStream (and undone on restore).
+ *
+ * Available codecs: gzip (default), zstd, lz4, none.
+ * zstd needs zstd-jni, and lz4 needs lz4-java, on the classpath; they are
+ * only loaded when selected.
+ *
+ * The codec name is recorded in the archive description (see
+ * tagDescription()), so that a restore knows how to decode the archive.
+ * Descriptions without a tag are gzip.
+ */
+public abstract class CompressionCodec {
+    public static final String DEFAULT = "gzip";
+    public static final int DEFAULT_LEVEL = -1;
+
+    private static final Pattern DESCRIPTION_TAG = Pattern.compile(" \\[codec:([a-z0-9]+)\\]$");
+
+    protected int level = DEFAULT_LEVEL;
+    protected int threads = 1;
+    protected boolean adjustable = false;
+
+    /**
+     * @param name gzip, zstd, lz4 or none
+     */
+    public static CompressionCodec forName(String name) {
+        if (name.equals("gzip")) return new GzipCodec();
+        if (name.equals("zstd")) return new ZstdCodec();
+        if (name.equals("lz4")) return new Lz4Codec();
+        if (name.equals("none")) return new StoredCodec();
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    public abstract String getName();
+
+    /**
+     * @param level codec specific compression level. DEFAULT_LEVEL for the codec's default.
+     */
+    public void setLevel(int level) { this.level = level; }
+    public int getLevel() { return level; }
+
+    /**
+     * @param threads number of threads compressing, for codecs that can use several.
+     */
+    public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+    /**
+     * Asks for a stream implementing AdjustableCompression where the codec
+     * supports it, so that the level can be changed per file.
+     */
+    public void setAdjustable(boolean adjustable) { this.adjustable = adjustable; }
+
+    /**
+     * @return bytes of heap the compressing stream may hold at most, with
+     * the current settings, for memory budgets (see UploadEngine)
+     */
+    public abstract long getMemoryFootprint();
+
+    /**
+     * @return stream compressing into out. Closing it closes out.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * @return stream decompressing what is read from in.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Records the codec in the archive description. Nothing is added for
+     * gzip, so that default archives keep their usual descriptions.
+     */
+    public static String tagDescription(String archiveDescription, CompressionCodec codec) {
+        if (codec.getName().equals(DEFAULT)) return archiveDescription;
+        return archiveDescription + " [codec:" + codec.getName() + "]";
+    }
+
+    /**
+     * @return the codec recorded in the archive description by tagDescription().
+     */
+    public static CompressionCodec fromDescription(String archiveDescription) {
+        if (archiveDescription != null) {
+            Matcher matcher = DESCRIPTION_TAG.matcher(archiveDescription);
+            if (matcher.find()) return forName(matcher.group(1));
+        }
+        return forName(DEFAULT);
+    }
+
+    /**
+     * @return the codec whose format starts with these bytes; none (a plain tar) for anything else.
+     */
+    public static CompressionCodec fromHeader(byte[] head, int length) {
+        if (startsWith(head, length, 0x1f, 0x8b)) return forName("gzip");
+        if (startsWith(head, length, 0x28, 0xb5, 0x2f, 0xfd)) return forName("zstd");
+        if (startsWith(head, length, 0x04, 0x22, 0x4d, 0x18)) return forName("lz4");
+        return forName("none");
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        if (length < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xff) != magic[i]) return false;
+        }
+        return true;
+    }
+}
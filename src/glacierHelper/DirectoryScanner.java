@@ -0,0 +1,179 @@
+package glacierHelper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Walks a directory tree, listing directories in parallel on a fork-join
+ * pool ahead of the caller.
+ *
+ * Entries are returned by next() in a deterministic depth-first order:
+ * a directory first, then its children sorted by name. When the caller
+ * enters a directory, the listings of its subdirectories (and of their
+ * subdirectories, down to [lookahead] levels) are started in the
+ * background, so that listing and stat latency (e.g. on NFS) overlaps with
+ * the processing of the entries already returned.
+ */
+public class DirectoryScanner {
+    public static final int DEFAULT_LOOKAHEAD = 2;
+
+    private ForkJoinPool pool;
+    private int lookahead;
+
+    private Entry rootEntry;
+    private DirectoryNode rootNode = null;
+    private LinkedList<Frame> stack = new LinkedList<Frame>();
+
+    /**
+     * A file or directory found by the scanner.
+     */
+    public static class Entry {
+        private File file;
+        private String name;
+        private boolean directory;
+        private boolean regular;
+
+        Entry(File file, String name, boolean directory, boolean regular) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.regular = regular;
+        }
+
+        public File getFile() { return file; }
+        /** path relative to the parent of the scanned root, e.g. "root/dir/file" */
+        public String getName() { return name; }
+        public boolean isDirectory() { return directory; }
+        /** false for directories, and for what has no content to read: dangling symlinks, FIFOs, devices... */
+        public boolean isFile() { return regular; }
+    }
+
+    /**
+     * @param rootPath directory (or file) to scan
+     * @param parallelism number of threads listing directories
+     */
+    public DirectoryScanner(String rootPath, int parallelism) {
+        this(rootPath, parallelism, DEFAULT_LOOKAHEAD);
+    }
+
+    public DirectoryScanner(String rootPath, int parallelism, int lookahead) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.lookahead = lookahead;
+
+        File root = new File(rootPath);
+        rootEntry = new Entry(root, root.getName(), root.isDirectory(), root.isFile());
+        if (rootEntry.isDirectory()) {
+            rootNode = new DirectoryNode(root, rootEntry.getName(), lookahead);
+            rootNode.start();
+        }
+    }
+
+    /**
+     * @return the next entry, or null when the whole tree has been returned.
+     */
+    public Entry next() {
+        if (rootEntry != null) {
+            Entry entry = rootEntry;
+            rootEntry = null;
+            if (rootNode != null) stack.add(new Frame(rootNode));
+            return entry;
+        }
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.getLast();
+            DirectoryNode node = frame.node;
+            if (frame.index == 0) {
+                node.join();
+                // entering this directory: list what is below it in the background
+                for (DirectoryNode subdir : node.subdirs) {
+                    if (subdir != null) subdir.start(lookahead);
+                }
+            }
+            if (frame.index >= node.children.length) {
+                stack.removeLast();
+                continue;
+            }
+
+            int i = frame.index++;
+            File child = node.children[i];
+            DirectoryNode subdir = node.subdirs[i];
+            if (subdir != null) {
+                stack.add(new Frame(subdir));
+                return new Entry(child, subdir.name, true, false);
+            } else {
+                return new Entry(child, node.name + "/" + child.getName(), false, node.regular[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the listing threads. Entries must not be requested afterwards.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static class Frame {
+        DirectoryNode node;
+        int index = 0;
+
+        Frame(DirectoryNode node) { this.node = node; }
+    }
+
+    /**
+     * Lists one directory, and starts listing its subdirectories while
+     * there is lookahead budget left.
+     */
+    private class DirectoryNode extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        File dir;
+        String name;
+        volatile int budget;
+        File[] children;
+        DirectoryNode[] subdirs; // non-null for the children that are directories
+        boolean[] regular; // true for the children that are regular files
+        private AtomicBoolean started = new AtomicBoolean(false);
+
+        DirectoryNode(File dir, String name, int budget) {
+            this.dir = dir;
+            this.name = name;
+            this.budget = budget;
+        }
+
+        void start() {
+            if (started.compareAndSet(false, true)) pool.execute(this);
+        }
+
+        /**
+         * Starts with at least the given lookahead budget, unless already started.
+         */
+        void start(int minBudget) {
+            if (!started.get()) budget = Math.max(budget, minBudget);
+            start();
+        }
+
+        @Override
+        protected void compute() {
+            File[] listed = dir.listFiles();
+            children = (listed != null) ? listed : new File[0];
+            Arrays.sort(children);
+
+            subdirs = new DirectoryNode[children.length];
+            regular = new boolean[children.length];
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].isDirectory()) {
+                    subdirs[i] = new DirectoryNode(children[i], name + "/" + children[i].getName(), budget - 1);
+                    if (budget > 0) subdirs[i].start();
+                } else {
+                    regular[i] = children[i].isFile();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package glacierHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * In-memory stand-in for Glacier's multipart upload, for trying out the
+ * uploaders without an AWS account, and injecting failures into them.
+ *
+ * Checks what the service checks (part ranges and checksums, archive size
+ * and checksum) and keeps completed archives, so that they can be compared
+ * with what was sent. Failures are thrown before the request is processed,
+ * as AmazonServiceExceptions with the given status and error code, or as
+ * a network error for status 0.
+ *
+ * With setKeepContent(false), part bodies are only hashed on the fly, and
+ * archives are checked against the part checksums: memory then stays flat,
+ * e.g. for benchmarking uploads of many GB.
+ */
+public class FakeGlacierClient extends AmazonGlacierClient {
+    public static final String INITIATE = "initiate";
+    public static final String UPLOAD_PART = "uploadPart";
+    public static final String COMPLETE = "complete";
+
+    private Map<String, TreeMap<Long, Part>> uploads = new HashMap<String, TreeMap<Long, Part>>();
+    private Map<String, byte[]> archives = new HashMap<String, byte[]>();
+    private Map<String, Integer> requests = new HashMap<String, Integer>();
+    private Map<String, Integer> injected = new HashMap<String, Integer>();
+
+    // failures to throw on the next calls of an operation
+    private Map<String, Integer> failNextCount = new HashMap<String, Integer>();
+    private Map<String, Integer> failNextStatus = new HashMap<String, Integer>();
+    private Map<String, String> failNextCode = new HashMap<String, String>();
+    // random failures of part uploads
+    private double failureRate = 0;
+    private int failureStatus;
+    private String failureCode;
+    private Random random = new Random();
+    private boolean keepContent = true;
+
+    private static class Part {
+        long length;
+        String checksum;
+        byte[] body; // null unless content is kept
+    }
+
+    public FakeGlacierClient() {
+        super(new BasicAWSCredentials("fake", "fake"));
+    }
+
+    /**
+     * @param keepContent false to discard part bodies once hashed; getArchive() then returns null
+     */
+    public void setKeepContent(boolean keepContent) { this.keepContent = keepContent; }
+
+    /**
+     * Makes the next [count] calls of the operation fail.
+     *
+     * @param statusCode HTTP status, or 0 for a network error
+     */
+    public synchronized void failNext(String operation, int count, int statusCode, String errorCode) {
+        failNextCount.put(operation, count);
+        failNextStatus.put(operation, statusCode);
+        failNextCode.put(operation, errorCode);
+    }
+
+    /**
+     * Makes part uploads fail at random, with the given probability.
+     *
+     * @param statusCode HTTP status, or 0 for a network error
+     */
+    public synchronized void setFailureRate(double rate, int statusCode, String errorCode) {
+        this.failureRate = rate;
+        this.failureStatus = statusCode;
+        this.failureCode = errorCode;
+    }
+
+    public synchronized int getRequestCount(String operation) {
+        return requests.containsKey(operation) ? requests.get(operation) : 0;
+    }
+
+    public synchronized int getInjectedFailureCount(String operation) {
+        return injected.containsKey(operation) ? injected.get(operation) : 0;
+    }
+
+    /**
+     * @return content of a completed archive, or null
+     */
+    public synchronized byte[] getArchive(String archiveId) {
+        return archives.get(archiveId);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        beginRequest(INITIATE);
+        String uploadId = UUID.randomUUID().toString();
+        synchronized (this) {
+            uploads.put(uploadId, new TreeMap<Long, Part>());
+        }
+        return new InitiateMultipartUploadResult().withUploadId(uploadId).withLocation("/-/vaults/" + request.getVaultName() + "/multipart-uploads/" + uploadId);
+    }
+
+    @Override
+    public UploadMultipartPartResult uploadMultipartPart(UploadMultipartPartRequest request) {
+        beginRequest(UPLOAD_PART);
+        Part part = new Part();
+        try {
+            if (keepContent) {
+                part.body = readFully(request.getBody());
+                part.length = part.body.length;
+                part.checksum = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(part.body));
+            } else {
+                TreeHash hash = new TreeHash();
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = request.getBody().read(buffer)) > 0) hash.update(buffer, 0, n);
+                part.length = hash.getLength();
+                part.checksum = hash.digestHex();
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to read the request body", e);
+        }
+
+        String range = request.getRange(); // "bytes START-END/*"
+        long start, end;
+        try {
+            start = Long.parseLong(range.substring(6, range.indexOf('-')));
+            end = Long.parseLong(range.substring(range.indexOf('-') + 1, range.indexOf('/')));
+        } catch (RuntimeException e) {
+            throw serviceException(400, "InvalidParameterValueException", "Invalid Content-Range: " + range);
+        }
+        if (end - start + 1 != part.length) {
+            throw serviceException(400, "InvalidParameterValueException", "Content-Range does not match the body length");
+        }
+        if (!part.checksum.equals(request.getChecksum())) {
+            throw serviceException(400, "InvalidParameterValueException", "Checksum mismatch");
+        }
+
+        synchronized (this) {
+            TreeMap<Long, Part> parts = uploads.get(request.getUploadId());
+            if (parts == null) throw serviceException(404, "ResourceNotFoundException", "Unknown upload ID");
+            parts.put(start, part);
+        }
+        return new UploadMultipartPartResult().withChecksum(part.checksum);
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        beginRequest(COMPLETE);
+        TreeMap<Long, Part> parts;
+        synchronized (this) {
+            parts = uploads.get(request.getUploadId());
+        }
+        if (parts == null) throw serviceException(404, "ResourceNotFoundException", "Unknown upload ID");
+
+        ByteArrayOutputStream archive = keepContent ? new ByteArrayOutputStream() : null;
+        TreeHash archiveHash = new TreeHash();
+        long size = 0;
+        synchronized (this) {
+            for (Map.Entry<Long, Part> part : parts.entrySet()) {
+                if (part.getKey() != size) {
+                    throw serviceException(400, "InvalidParameterValueException", "Missing part at " + size);
+                }
+                if (archive != null) archive.write(part.getValue().body, 0, part.getValue().body.length);
+                archiveHash.appendDigest(BinaryUtils.fromHex(part.getValue().checksum));
+                size += part.getValue().length;
+            }
+        }
+        byte[] content = (archive != null) ? archive.toByteArray() : null;
+        if (Long.parseLong(request.getArchiveSize()) != size) {
+            throw serviceException(400, "InvalidParameterValueException", "Archive size mismatch");
+        }
+        String checksum = (content != null) ? TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(content))
+                : archiveHash.digestHex();
+        if (!checksum.equals(request.getChecksum())) {
+            throw serviceException(400, "InvalidParameterValueException", "Archive checksum mismatch");
+        }
+
+        String archiveId = UUID.randomUUID().toString();
+        synchronized (this) {
+            uploads.remove(request.getUploadId());
+            archives.put(archiveId, content);
+        }
+        return new CompleteMultipartUploadResult().withArchiveId(archiveId).withChecksum(request.getChecksum())
+                .withLocation("/-/vaults/" + request.getVaultName() + "/archives/" + archiveId);
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        synchronized (this) {
+            uploads.remove(request.getUploadId());
+        }
+    }
+
+    /**
+     * Counts the request, and throws the failure due for it, if any.
+     */
+    private void beginRequest(String operation) {
+        int status;
+        String code;
+        synchronized (this) {
+            increment(requests, operation);
+            Integer count = failNextCount.get(operation);
+            if (count != null && count > 0) {
+                failNextCount.put(operation, count - 1);
+                status = failNextStatus.get(operation);
+                code = failNextCode.get(operation);
+            } else if (operation.equals(UPLOAD_PART) && failureRate > 0 && random.nextDouble() < failureRate) {
+                status = failureStatus;
+                code = failureCode;
+            } else {
+                return;
+            }
+            increment(injected, operation);
+        }
+        if (status == 0) throw new AmazonClientException("Unable to execute HTTP request: Connection reset", new SocketException("Connection reset"));
+        throw serviceException(status, code, "Injected failure");
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        counts.put(key, (counts.containsKey(key) ? counts.get(key) : 0) + 1);
+    }
+
+    private static AmazonServiceException serviceException(int status, String code, String message) {
+        AmazonServiceException e = new AmazonServiceException(message);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        e.setServiceName("AmazonGlacier");
+        return e;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,193 @@
+package glacierHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+/**
+ * Read-ahead stage between a DirectoryScanner and the tar writer.
+ *
+ * For the next [window] entries, the tar header is prepared (stat) and the
+ * file is opened and its first [headSize] bytes are read on background
+ * threads, while the current entry is being written. Small files are thus
+ * read completely ahead of time. Entries are returned in scanner order.
+ * Only regular files are opened: other entries (dangling symlinks, FIFOs,
+ * devices) get a header without content, as a FIFO would block the reader.
+ */
+public class FilePrefetcher {
+    public static final int DEFAULT_WINDOW = 128;
+    public static final int DEFAULT_HEAD_SIZE = 256 * 1024;
+
+    private DirectoryScanner scanner;
+    private ExecutorService readers;
+    private int window;
+    private int headSize;
+    private LinkedList<Future<PrefetchedFile>> pending = new LinkedList<Future<PrefetchedFile>>();
+    private boolean scannerDone = false;
+
+    private static final Metrics.Stage readStage = Metrics.global().stage("read");
+    private static final Metrics.Counter writerWaits = Metrics.global().waitPoint("archiver_waits_for_files");
+
+    /**
+     * An entry ready to be written: its tar header, and for files the
+     * first bytes of the content plus a stream for the rest.
+     */
+    public static class PrefetchedFile {
+        private DirectoryScanner.Entry entry;
+        private TarArchiveEntry tarEntry;
+        private byte[] head;
+        private int headLength;
+        private FileInputStream rest;
+
+        public DirectoryScanner.Entry getEntry() { return entry; }
+        public TarArchiveEntry getTarEntry() { return tarEntry; }
+        public byte[] getHead() { return head; }
+        public int getHeadLength() { return headLength; }
+        /** stream positioned after the head, or null if the head is the whole file */
+        public InputStream getRest() { return rest; }
+        /** channel positioned after the head, or null if the head is the whole file */
+        public FileChannel getRestChannel() { return (rest != null) ? rest.getChannel() : null; }
+
+        public void close() throws IOException {
+            if (rest != null) rest.close();
+        }
+    }
+
+    public FilePrefetcher(DirectoryScanner scanner, int threads) {
+        this(scanner, threads, DEFAULT_WINDOW, DEFAULT_HEAD_SIZE);
+    }
+
+    /**
+     * @param scanner from which entries are taken
+     * @param threads number of threads reading ahead
+     * @param window number of entries prefetched ahead of the writer
+     * @param headSize number of bytes read ahead from each file
+     */
+    public FilePrefetcher(DirectoryScanner scanner, int threads, int window, int headSize) {
+        this.scanner = scanner;
+        this.window = window;
+        this.headSize = headSize;
+        this.readers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "file-prefetcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the next entry, or null when all entries have been returned.
+     * The returned file must be closed by the caller.
+     */
+    public PrefetchedFile next() throws IOException {
+        fillWindow();
+        if (pending.isEmpty()) return null;
+
+        Future<PrefetchedFile> future = pending.removeFirst();
+        fillWindow();
+        try {
+            long waitStart = System.nanoTime();
+            PrefetchedFile file = future.get();
+            writerWaits.add(System.nanoTime() - waitStart);
+            return file;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Reading ahead failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return number of entries being read ahead or ready
+     */
+    public int getPendingCount() { return pending.size(); }
+
+    /**
+     * Passes over the next entries of the scanner without reading them.
+     * Must be called before next().
+     *
+     * @return number of entries skipped, less than count if the scanner ran out.
+     */
+    public long skip(long count) {
+        if (!pending.isEmpty()) throw new IllegalStateException("entries already read ahead");
+        long skipped = 0;
+        while (skipped < count && scanner.next() != null) skipped++;
+        if (skipped < count) scannerDone = true;
+        return skipped;
+    }
+
+    /**
+     * Stops the background threads. Files opened ahead but not returned yet are closed.
+     */
+    public void close() {
+        for (Future<PrefetchedFile> future : pending) {
+            try {
+                future.get().close();
+            } catch (Exception e) {
+                // nothing to clean up
+            }
+        }
+        pending.clear();
+        readers.shutdownNow();
+        scanner.close();
+    }
+
+    private void fillWindow() {
+        while (!scannerDone && pending.size() < window) {
+            final DirectoryScanner.Entry entry = scanner.next();
+            if (entry == null) {
+                scannerDone = true;
+                break;
+            }
+            pending.add(readers.submit(new Callable<PrefetchedFile>() {
+                public PrefetchedFile call() throws IOException {
+                    return prefetch(entry);
+                }
+            }));
+        }
+    }
+
+    private PrefetchedFile prefetch(DirectoryScanner.Entry entry) throws IOException {
+        PrefetchedFile prefetched = new PrefetchedFile();
+        prefetched.entry = entry;
+        File f = entry.getFile();
+        prefetched.tarEntry = new TarArchiveEntry(f, entry.getName());
+
+        if (!entry.isFile()) {
+            // header only; the size of a FIFO or a device means nothing
+            if (!entry.isDirectory()) prefetched.tarEntry.setSize(0);
+        } else {
+            int toRead = (int) Math.min(headSize, f.length());
+            prefetched.head = new byte[toRead];
+            long start = System.nanoTime();
+            FileInputStream in = new FileInputStream(f);
+            int read = 0;
+            while (read < toRead) {
+                int n = in.read(prefetched.head, read, toRead - read);
+                if (n == -1) break;
+                read += n;
+            }
+            prefetched.headLength = read;
+            readStage.record(read, start);
+            if (read < toRead || read == f.length()) {
+                in.close(); // whole file read (or it shrank)
+            } else {
+                prefetched.rest = in;
+            }
+        }
+        return prefetched;
+    }
+}
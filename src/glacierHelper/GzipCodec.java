@@ -0,0 +1,51 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+/**
+ * gzip. With one thread and the default level, the plain
+ * GzipCompressorOutputStream is used, as it always was (or the equivalent
+ * AdjustableGzipOutputStream if the level is to be changed per file);
+ * otherwise the block-parallel ParallelGzipOutputStream.
+ */
+public class GzipCodec extends CompressionCodec {
+
+    @Override
+    public String getName() { return "gzip"; }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (threads == 1 && level == DEFAULT_LEVEL) {
+            if (adjustable) return new AdjustableGzipOutputStream(out);
+            return new GzipCompressorOutputStream(out);
+        }
+        return new ParallelGzipOutputStream(out, threads, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, level);
+    }
+
+    /**
+     * That of the block-parallel stream, which the single-threaded one stays well below.
+     */
+    @Override
+    public long getMemoryFootprint() {
+        return ParallelGzipOutputStream.getMemoryFootprint(threads, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Always the block-parallel stream, as it can take checkpoints.
+     *
+     * @param resumeFrom checkpoint to continue the stream from, or null for a new stream.
+     */
+    public ParallelGzipOutputStream compressResumable(OutputStream out, ParallelGzipOutputStream.Checkpoint resumeFrom) throws IOException {
+        return new ParallelGzipOutputStream(out, threads, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, level, resumeFrom);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GzipCompressorInputStream(in);
+    }
+}
@@ -0,0 +1,28 @@
+package glacierHelper;
+
+import java.util.Date;
+
+/**
+ * An archive as listed in a vault inventory.
+ */
+public class InventoryArchive {
+    private String archiveId;
+    private String description;
+    private Date creationDate;
+    private long size;
+    private String treeHash;
+
+    public InventoryArchive(String archiveId, String description, Date creationDate, long size, String treeHash) {
+        this.archiveId = archiveId;
+        this.description = description;
+        this.creationDate = creationDate;
+        this.size = size;
+        this.treeHash = treeHash;
+    }
+
+    public String getArchiveId() { return archiveId; }
+    public String getDescription() { return description; }
+    public Date getCreationDate() { return creationDate; }
+    public long getSize() { return size; }
+    public String getTreeHash() { return treeHash; }
+}
@@ -0,0 +1,125 @@
+package glacierHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Date;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Reads the archives of a vault inventory (the output of an inventory
+ * retrieval job) one at a time, as they come from the stream, so that
+ * memory stays constant whatever the size of the vault and callers can
+ * act on the first archives while the rest is still downloading.
+ *
+ * read() returns null at the end of the list, like ChunkChannel.take().
+ */
+public class InventoryReader implements Closeable {
+    private JsonParser parser;
+    private DateUtils dateUtils = new DateUtils();
+    private String vaultARN = null;
+    private String inventoryDate = null;
+    private boolean inList = false;
+    private boolean done = false;
+    private long count = 0;
+
+    public InventoryReader(InputStream in) throws IOException {
+        parser = new JsonFactory().createJsonParser(in);
+        if (parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Not an inventory: expected a JSON object");
+    }
+
+    /**
+     * @return ARN of the vault, once read (it comes before the archives)
+     */
+    public String getVaultARN() { return vaultARN; }
+    public String getInventoryDate() { return inventoryDate; }
+
+    /**
+     * @return number of archives read so far
+     */
+    public long getCount() { return count; }
+
+    /**
+     * @return the next archive, or null after the last one
+     */
+    public InventoryArchive read() throws IOException {
+        if (done) return null;
+        if (!inList && !enterList()) {
+            done = true;
+            return null;
+        }
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            done = true;
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) throw new IOException("Unexpected " + token + " in ArchiveList");
+
+        String archiveId = null;
+        String description = null;
+        Date creationDate = null;
+        long size = -1;
+        String treeHash = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("ArchiveId")) {
+                archiveId = parser.getText();
+            } else if (field.equals("ArchiveDescription")) {
+                description = parser.getText();
+            } else if (field.equals("CreationDate")) {
+                creationDate = parseDate(parser.getText());
+            } else if (field.equals("Size")) {
+                size = parser.getLongValue();
+            } else if (field.equals("SHA256TreeHash")) {
+                treeHash = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (archiveId == null) throw new IOException("Archive without ArchiveId in the inventory");
+        count++;
+        return new InventoryArchive(archiveId, description, creationDate, size, treeHash);
+    }
+
+    /**
+     * Reads the fields of the inventory up to the start of ArchiveList.
+     *
+     * @return false if the inventory has no ArchiveList
+     */
+    private boolean enterList() throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("ArchiveList") && token == JsonToken.START_ARRAY) {
+                inList = true;
+                return true;
+            } else if (field.equals("VaultARN")) {
+                vaultARN = parser.getText();
+            } else if (field.equals("InventoryDate")) {
+                inventoryDate = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    private Date parseDate(String date) throws IOException {
+        try {
+            return dateUtils.parseIso8601Date(date);
+        } catch (ParseException e) {
+            throw new IOException("Invalid date in the inventory: " + date, e);
+        }
+    }
+
+    public void close() throws IOException {
+        parser.close();
+    }
+}
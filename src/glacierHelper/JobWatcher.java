@@ -0,0 +1,402 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.policy.Policy;
+import com.amazonaws.auth.policy.Principal;
+import com.amazonaws.auth.policy.Resource;
+import com.amazonaws.auth.policy.Statement;
+import com.amazonaws.auth.policy.Statement.Effect;
+import com.amazonaws.auth.policy.actions.SQSActions;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.DeleteTopicRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * Waits for the completion of many Glacier jobs of a vault at once, and
+ * hands each one to a Future.
+ *
+ * With a notification channel (openChannel(): one SNS topic, given to the
+ * jobs as they are initiated, and one SQS queue subscribed to it), a single
+ * thread long-polls the queue and completes the jobs' futures as soon as
+ * Glacier notifies them. Notifications may arrive before the job is
+ * watched (e.g. for jobs that complete at once), so they are kept until it
+ * is. DescribeJob is still called every 15 minutes, in case a notification
+ * is lost.
+ *
+ * Without a channel (or for jobs initiated without its topic, e.g. by an
+ * earlier run), each job is polled with DescribeJob, first after a few
+ * seconds, then twice as long each time, up to the poll interval.
+ */
+public class JobWatcher {
+    private static final int WAIT_TIME = 20; // seconds, the SQS maximum
+    private static final long FIRST_POLL = 5000;
+    private static final long CHANNEL_POLL = 15 * 60 * 1000; // safety net with a channel
+    private static final long NOTIFIED_EXPIRY = 24 * 60 * 60 * 1000; // as job outputs
+
+    private AmazonGlacierClient client;
+    private String vaultName;
+    private long pollInterval = 60 * 1000;
+    private boolean verbose = true;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private AmazonSNSClient snsClient = null;
+    private AmazonSQSClient sqsClient = null;
+    private String topicARN = null;
+    private String queueURL = null;
+    private String subscriptionARN = null;
+
+    private Map<String, JobFuture> watched = new LinkedHashMap<String, JobFuture>();
+    private Map<String, Long> notified = new HashMap<String, Long>(); // completed jobs not watched yet, with the time of notification
+    private Thread thread = null;
+    private boolean closed = false;
+
+    public JobWatcher(AmazonGlacierClient client, String vaultName) {
+        this.client = client;
+        this.vaultName = vaultName;
+    }
+
+    /**
+     * @param pollInterval longest time in seconds between DescribeJob calls without a channel
+     */
+    public void setPollInterval(long pollInterval) { this.pollInterval = Math.max(1, pollInterval) * 1000; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    /**
+     * Creates the topic and the queue that job notifications go through.
+     * They are deleted by close().
+     *
+     * @param name name of both, unique to this watcher
+     */
+    public synchronized void openChannel(AmazonSNSClient snsClient, AmazonSQSClient sqsClient, String name) {
+        this.snsClient = snsClient;
+        this.sqsClient = sqsClient;
+        try {
+            queueURL = sqsClient.createQueue(new CreateQueueRequest().withQueueName(name)).getQueueUrl();
+            String queueARN = sqsClient.getQueueAttributes(new GetQueueAttributesRequest()
+            .withQueueUrl(queueURL)
+            .withAttributeNames("QueueArn")).getAttributes().get("QueueArn");
+
+            Policy sqsPolicy =
+                    new Policy().withStatements(
+                            new Statement(Effect.Allow)
+                            .withPrincipals(Principal.AllUsers)
+                            .withActions(SQSActions.SendMessage)
+                            .withResources(new Resource(queueARN)));
+            Map<String, String> queueAttributes = new HashMap<String, String>();
+            queueAttributes.put("Policy", sqsPolicy.toJson());
+            sqsClient.setQueueAttributes(new SetQueueAttributesRequest(queueURL, queueAttributes));
+
+            topicARN = snsClient.createTopic(new CreateTopicRequest().withName(name)).getTopicArn();
+            subscriptionARN = snsClient.subscribe(new SubscribeRequest()
+            .withTopicArn(topicARN)
+            .withEndpoint(queueARN)
+            .withProtocol("sqs")).getSubscriptionArn();
+        } catch (RuntimeException e) {
+            deleteChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * @return ARN of the topic to give to the jobs initiated, or null without a channel
+     */
+    public String getTopicARN() { return topicARN; }
+
+    /**
+     * @return a future of the job, completed with its description once
+     * the job has succeeded; a failed job gives an IllegalStateException,
+     * an unknown or expired one the AmazonServiceException of DescribeJob.
+     */
+    public synchronized Future<DescribeJobResult> watch(String jobId) {
+        if (closed) throw new IllegalStateException("JobWatcher closed");
+        JobFuture future = watched.get(jobId);
+        if (future != null) return future;
+        future = new JobFuture(jobId);
+        // a job notified already, or a job that may be complete: checked right away
+        future.nextPoll = System.currentTimeMillis();
+        watched.put(jobId, future);
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    watchJobs();
+                }
+            }, "JobWatcher-" + vaultName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+        return future;
+    }
+
+    /**
+     * Waits for the job.
+     *
+     * @throws IllegalStateException if the job failed
+     * @throws AmazonServiceException if DescribeJob fails, e.g. for an expired job
+     */
+    public DescribeJobResult waitFor(String jobId) throws InterruptedException {
+        try {
+            return watch(jobId).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops watching (unfinished futures are cancelled), and deletes the channel.
+     */
+    public void close() {
+        Thread stopped;
+        synchronized (this) {
+            closed = true;
+            for (JobFuture future : watched.values()) future.cancel(false);
+            watched.clear();
+            stopped = thread;
+            notifyAll();
+        }
+        if (stopped != null) {
+            stopped.interrupt();
+            try {
+                stopped.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        deleteChannel();
+    }
+
+    private synchronized void deleteChannel() {
+        // whatever openChannel() got to
+        if (subscriptionARN != null) snsClient.unsubscribe(new UnsubscribeRequest(subscriptionARN));
+        if (topicARN != null) snsClient.deleteTopic(new DeleteTopicRequest(topicARN));
+        if (queueURL != null) sqsClient.deleteQueue(new DeleteQueueRequest(queueURL));
+        subscriptionARN = null;
+        topicARN = null;
+        queueURL = null;
+    }
+
+    private void watchJobs() {
+        while (true) {
+            try {
+                if (!waitForNotifications()) return;
+                for (JobFuture future : duePolls()) poll(future);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // e.g. the queue is unreachable for a while: DescribeJob still runs
+                if (verbose) System.err.println("Error receiving job notifications: " + e);
+                try {
+                    Thread.sleep(FIRST_POLL);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Long-polls the queue, or without a channel sleeps until the next poll.
+     *
+     * @return false once closed
+     */
+    private boolean waitForNotifications() throws InterruptedException, IOException {
+        String url;
+        synchronized (this) {
+            while (!closed && watched.isEmpty()) wait();
+            if (closed) return false;
+            url = queueURL;
+            if (url == null) {
+                long next = Long.MAX_VALUE;
+                for (JobFuture future : watched.values()) next = Math.min(next, future.nextPoll);
+                long delay = next - System.currentTimeMillis();
+                if (delay > 0) wait(delay);
+                return !closed;
+            }
+        }
+        List<Message> messages = sqsClient.receiveMessage(new ReceiveMessageRequest(url)
+        .withMaxNumberOfMessages(10)
+        .withWaitTimeSeconds(WAIT_TIME)).getMessages();
+        for (Message m : messages) {
+            String jobId = null;
+            try {
+                jobId = parseNotification(m.getBody());
+            } catch (Exception e) {
+                // deleted all the same, or it would come back forever
+                System.err.println("Ignoring a message that is not a job notification: " + e);
+            }
+            if (jobId != null) notified(jobId);
+            sqsClient.deleteMessage(new DeleteMessageRequest(url, m.getReceiptHandle()));
+        }
+        return true;
+    }
+
+    /**
+     * Has the job polled right away if watched, or as soon as it is.
+     * Notifications of jobs never watched are forgotten when their output
+     * would have expired.
+     */
+    private synchronized void notified(String jobId) {
+        JobFuture future = watched.get(jobId);
+        if (future != null) {
+            future.nextPoll = 0;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Long> times = notified.values().iterator();
+        while (times.hasNext()) {
+            if (now - times.next() > NOTIFIED_EXPIRY) times.remove();
+        }
+        notified.put(jobId, now);
+    }
+
+    /**
+     * @return ID of the job in the SNS notification, or null if not one
+     */
+    private String parseNotification(String body) throws IOException {
+        JsonNode notification = mapper.readTree(body);
+        JsonNode message = notification.get("Message");
+        if (message == null) return null;
+        JsonNode job = mapper.readTree(message.getTextValue());
+        JsonNode jobId = job.get("JobId");
+        return (jobId != null) ? jobId.getTextValue() : null;
+    }
+
+    private synchronized JobFuture[] duePolls() {
+        long now = System.currentTimeMillis();
+        List<JobFuture> due = new ArrayList<JobFuture>();
+        for (JobFuture future : watched.values()) {
+            if (notified.remove(future.jobId) != null) future.nextPoll = 0;
+            if (future.nextPoll <= now) due.add(future);
+        }
+        return due.toArray(new JobFuture[due.size()]);
+    }
+
+    /**
+     * Calls DescribeJob, and completes the future if the job is done, or
+     * schedules the next call.
+     */
+    private void poll(JobFuture future) throws InterruptedException {
+        DescribeJobResult job = null;
+        Exception error = null;
+        try {
+            job = client.describeJob(new DescribeJobRequest()
+            .withVaultName(vaultName)
+            .withJobId(future.jobId));
+            if ("Failed".equals(job.getStatusCode())) {
+                error = new IllegalStateException("Job " + future.jobId + " failed: " + job.getStatusMessage());
+            }
+        } catch (AmazonServiceException e) {
+            if (retryPolicy.isRetryable(e)) {
+                job = null;
+            } else {
+                error = e;
+            }
+        } catch (Exception e) {
+            // network errors: tried again at the next poll
+            job = null;
+        }
+
+        synchronized (this) {
+            if (error != null || (job != null && job.isCompleted())) {
+                watched.remove(future.jobId);
+                future.complete(job, error);
+                return;
+            }
+            if (verbose && job != null) System.out.println("Waiting for job " + future.jobId + " to complete...");
+            if (queueURL != null && job != null && topicARN.equals(job.getSNSTopic())) {
+                future.delay = CHANNEL_POLL;
+            } else {
+                future.delay = (future.delay == 0) ? Math.min(FIRST_POLL, pollInterval) : Math.min(future.delay * 2, pollInterval);
+            }
+            future.nextPoll = System.currentTimeMillis() + future.delay;
+        }
+    }
+
+    /**
+     * Completed by the watcher thread.
+     */
+    private static class JobFuture implements Future<DescribeJobResult> {
+        private final String jobId;
+        private long nextPoll = 0; // guarded by the watcher
+        private long delay = 0;
+        private boolean done = false;
+        private boolean cancelled = false;
+        private DescribeJobResult result = null;
+        private Exception error = null;
+
+        JobFuture(String jobId) {
+            this.jobId = jobId;
+        }
+
+        synchronized void complete(DescribeJobResult result, Exception error) {
+            if (done) return;
+            this.result = result;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) return false;
+            cancelled = true;
+            done = true;
+            notifyAll();
+            return true;
+        }
+
+        public synchronized boolean isCancelled() { return cancelled; }
+        public synchronized boolean isDone() { return done; }
+
+        public synchronized DescribeJobResult get() throws InterruptedException, ExecutionException {
+            while (!done) wait();
+            return result();
+        }
+
+        public synchronized DescribeJobResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!done) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new TimeoutException("Job " + jobId + " not complete");
+                wait(left);
+            }
+            return result();
+        }
+
+        private DescribeJobResult result() throws ExecutionException {
+            if (cancelled) throw new CancellationException("Stopped watching job " + jobId);
+            if (error != null) throw new ExecutionException(error);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,1320 @@
+package glacierHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * HTTP server speaking enough of Glacier for load testing the uploaders
+ * and downloaders without an AWS account: point them at it with
+ * -endpoint http://localhost:PORT.
+ *
+ * Implements vaults, archives, multipart uploads and jobs (archive and
+ * inventory retrievals, with ranged job output), checking part ranges,
+ * sizes and tree hashes as the service does, plus the part of SNS and SQS
+ * that job notifications go through (see LocalNotifications). Requests are
+ * not authenticated. Vaults are created by the first upload into them.
+ * Archives are kept in files under the data directory and survive a
+ * restart; multipart uploads and jobs in progress do not.
+ *
+ * Faults injected into every Glacier request: a latency, a bandwidth shared
+ * by all request and response bodies, a number of requests per second
+ * above which requests get ThrottlingException, and random failures with
+ * the given status and error code (status 0: the connection is closed
+ * without a response). Jobs complete after a delay, 0 by default.
+ *
+ * The time and bytes of each request are recorded per operation into a
+ * Metrics registry of its own, and appended to a request log if set.
+ *
+ * Served with the blocking server of httpcore (a thread per connection),
+ * rather than the JDK's, which capitalizes header names: the SDK looks
+ * up the x-amz-* response headers case-sensitively.
+ */
+public class LocalGlacier {
+    static final String ACCOUNT = "012345678901";
+    private static final long MB = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // request time buckets, in seconds: from under a millisecond (e.g. DescribeJob) to minutes (throttled parts)
+    private static final double[] REQUEST_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+        1, 2.5, 5, 10, 25, 50, 100, 250 };
+
+    // /{account}/vaults[/{vault}[/{archives|multipart-uploads|jobs}[/{id}[/output]]]]
+    private static final Pattern GLACIER_PATH =
+            Pattern.compile("/([^/]+)/vaults(?:/([^/]+)(?:/(archives|multipart-uploads|jobs)(?:/([^/]+)(/output)?)?)?)?/?");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/\\*");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    // method and resource -> Glacier operation
+    private static final Map<String, String> OPERATIONS = new HashMap<String, String>();
+    static {
+        String[] operations = {
+            "GET vaults", "ListVaults",
+            "PUT vault", "CreateVault",
+            "GET vault", "DescribeVault",
+            "DELETE vault", "DeleteVault",
+            "POST archives", "UploadArchive",
+            "DELETE archives/id", "DeleteArchive",
+            "POST multipart-uploads", "InitiateMultipartUpload",
+            "GET multipart-uploads", "ListMultipartUploads",
+            "PUT multipart-uploads/id", "UploadMultipartPart",
+            "GET multipart-uploads/id", "ListParts",
+            "POST multipart-uploads/id", "CompleteMultipartUpload",
+            "DELETE multipart-uploads/id", "AbortMultipartUpload",
+            "POST jobs", "InitiateJob",
+            "GET jobs", "ListJobs",
+            "GET jobs/id", "DescribeJob",
+            "GET jobs/id/output", "GetJobOutput",
+        };
+        for (int i = 0; i < operations.length; i += 2) OPERATIONS.put(operations[i], operations[i + 1]);
+    }
+
+    private File dataDir;
+    private String region;
+    private ServerSocket serverSocket;
+    private HttpParams params;
+    private HttpService httpService;
+    private ExecutorService executor;
+    private Set<DefaultHttpServerConnection> connections = new HashSet<DefaultHttpServerConnection>();
+    private ScheduledExecutorService jobTimer;
+    private LocalNotifications notifications;
+    private ObjectMapper mapper = new ObjectMapper();
+    private Random random = new Random();
+
+    // guarded by this
+    private Map<String, Vault> vaults = new TreeMap<String, Vault>();
+
+    private volatile long latencyMillis = 0;
+    private RateLimiter bandwidth = new RateLimiter(0);
+    private volatile int maxRequestsPerSecond = 0;
+    private volatile double failureRate = 0;
+    private volatile int failureStatus = 500;
+    private volatile String failureCode = "ServiceUnavailableException";
+    private volatile long jobDelaySeconds = 0;
+    private Object throttleLock = new Object();
+    private long throttleSecond = 0;
+    private int throttleCount = 0;
+
+    private Metrics metrics = new Metrics();
+    private Map<String, Metrics.Histogram> requestTimes = new ConcurrentSkipListMap<String, Metrics.Histogram>();
+    private Writer requestLog;
+
+    /**
+     * An error answered to the client, with the service's status and error code.
+     */
+    public static class ServiceError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        int status;
+        String code;
+
+        public ServiceError(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private static class Vault {
+        String name;
+        long created;
+        File dir;
+        Map<String, Archive> archives = new LinkedHashMap<String, Archive>();
+        Map<String, Upload> uploads = new LinkedHashMap<String, Upload>();
+        Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+    }
+
+    private static class Archive {
+        String id;
+        String description;
+        long size;
+        String treeHash;
+        long created;
+        File file;
+    }
+
+    private static class Upload {
+        String id;
+        String description;
+        long partSize;
+        long created;
+        File file;
+        FileChannel channel;
+        TreeMap<Long, Part> parts = new TreeMap<Long, Part>(); // by first byte
+    }
+
+    private static class Part {
+        long length;
+        byte[] treeHash;
+    }
+
+    private static class Job {
+        String id;
+        Vault vault;
+        boolean inventory;
+        String archiveId;
+        String description;
+        String snsTopic;
+        long created;
+        long completed = 0;
+        long size;
+        String treeHash;
+        File file; // archive retrievals
+        byte[] content; // inventory retrievals
+        String archiveDescription;
+    }
+
+    /**
+     * @param dataDir directory to keep archives in; archives already there are served
+     */
+    public LocalGlacier(File dataDir, String region) throws IOException {
+        this.dataDir = dataDir;
+        this.region = region;
+        loadArchives();
+    }
+
+    public void setLatency(long millis) { latencyMillis = millis; }
+
+    /**
+     * @param bytesPerSecond total rate of request and response bodies, 0 for no limit
+     */
+    public void setBandwidth(long bytesPerSecond) { bandwidth.setRate(bytesPerSecond); }
+
+    /**
+     * @param requestsPerSecond Glacier requests served per second, 0 for no limit
+     */
+    public void setThrottle(int requestsPerSecond) { maxRequestsPerSecond = requestsPerSecond; }
+
+    /**
+     * @param rate fraction of the Glacier requests failed
+     * @param status HTTP status of the failures, 0 to close the connection instead
+     */
+    public void setFailures(double rate, int status, String code) {
+        failureStatus = status;
+        failureCode = code;
+        failureRate = rate;
+    }
+
+    public void setJobDelay(long seconds) { jobDelaySeconds = seconds; }
+
+    /**
+     * Appends a line per request to the file: time (ms since the epoch),
+     * operation, status, bytes received, bytes sent and duration in ms,
+     * separated by tabs.
+     */
+    public void setRequestLog(File file) throws IOException {
+        boolean header = !file.exists() || file.length() == 0;
+        requestLog = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        if (header) requestLog.write("time_ms\toperation\tstatus\tbytes_in\tbytes_out\tmillis\n");
+        requestLog.flush();
+    }
+
+    /**
+     * @return registry of the request metrics, e.g. for a MetricsReporter
+     */
+    public Metrics getMetrics() { return metrics; }
+
+    /**
+     * Starts serving.
+     *
+     * @param port port to listen on, 0 for any free port
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        notifications = new LocalNotifications(getEndpoint(), region);
+        jobTimer = Executors.newSingleThreadScheduledExecutor();
+        executor = Executors.newCachedThreadPool();
+
+        params = new BasicHttpParams();
+        params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, BUFFER_SIZE);
+        params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+        BasicHttpProcessor processor = new BasicHttpProcessor();
+        processor.addInterceptor(new ResponseDate());
+        processor.addInterceptor(new ResponseContent());
+        processor.addInterceptor(new ResponseConnControl());
+        HttpRequestHandlerRegistry handlers = new HttpRequestHandlerRegistry();
+        handlers.register("*", new HttpRequestHandler() {
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+                serve(request, response, context);
+            }
+        });
+        httpService = new HttpService(processor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory(),
+                handlers, params);
+
+        Thread acceptor = new Thread("local-glacier-acceptor") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        final DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
+                        connection.bind(socket, params);
+                        synchronized (connections) {
+                            connections.add(connection);
+                        }
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                serve(connection);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed by stop()
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.start();
+    }
+
+    /**
+     * @return URL to give the clients as their endpoint
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        synchronized (connections) {
+            for (DefaultHttpServerConnection connection : connections) {
+                try {
+                    connection.shutdown();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        executor.shutdownNow();
+        jobTimer.shutdownNow();
+        synchronized (this) {
+            for (Vault vault : vaults.values()) {
+                for (Upload upload : vault.uploads.values()) closeQuietly(upload);
+            }
+        }
+        if (requestLog != null) {
+            synchronized (requestLog) {
+                try {
+                    requestLog.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close the request log: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints, per operation: requests, errors, MB received and sent, and
+     * the mean, median and 99th percentile of the request times (the
+     * percentiles are estimated from the histogram buckets).
+     */
+    public void printSummary(PrintStream out) {
+        out.printf("%-24s %8s %7s %10s %10s %9s %9s %9s\n", "operation", "requests", "errors", "MB in", "MB out",
+                "mean ms", "p50 ms", "p99 ms");
+        for (Map.Entry<String, Metrics.Histogram> entry : requestTimes.entrySet()) {
+            String operation = entry.getKey();
+            Metrics.Histogram times = entry.getValue();
+            out.printf("%-24s %8d %7d %10.1f %10.1f %9.1f %9.1f %9.1f\n", operation, times.getCount(),
+                    errors(operation).get(), received(operation).get() / (double) MB, sent(operation).get() / (double) MB,
+                    times.getSum() * 1000 / Math.max(1, times.getCount()), times.quantile(0.5) * 1000, times.quantile(0.99) * 1000);
+        }
+    }
+
+    /**
+     * @return date in the ISO 8601 format of the service, e.g. 2012-11-20T17:03:43.221Z
+     */
+    public static String isoDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    /**
+     * A request being served, and what is recorded about it.
+     */
+    private class Call {
+        HttpRequest request;
+        HttpResponse response;
+        String method;
+        String path;
+        String query;
+        String operation = "Unknown";
+        boolean glacier = false;
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        int status = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        InputStream body;
+
+        Call(HttpRequest request, HttpResponse response) throws IOException {
+            this.request = request;
+            this.response = response;
+            method = request.getRequestLine().getMethod();
+            try {
+                URI uri = new URI(request.getRequestLine().getUri());
+                path = uri.getPath();
+                query = uri.getRawQuery();
+            } catch (URISyntaxException e) {
+                path = request.getRequestLine().getUri();
+            }
+            InputStream in = (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null)
+                    ? ((HttpEntityEnclosingRequest) request).getEntity().getContent() : new ByteArrayInputStream(new byte[0]);
+            body = new BodyStream(in, this);
+        }
+
+        String header(String name) {
+            Header header = request.getFirstHeader(name);
+            return (header != null) ? header.getValue() : null;
+        }
+
+        /**
+         * Sets the response; its body is sent from the stream once the request is handled.
+         *
+         * @param headers name, value, name, value, ...
+         */
+        void send(int status, String contentType, InputStream content, long length, String... headers) {
+            for (int i = 0; i < headers.length; i += 2) {
+                if (headers[i + 1] != null) response.setHeader(headers[i], headers[i + 1]);
+            }
+            response.setHeader("x-amzn-RequestId", UUID.randomUUID().toString());
+            response.setStatusCode(status);
+            if (length > 0) {
+                ResponseBody entity = new ResponseBody(content, length, this);
+                if (contentType != null) entity.setContentType(contentType);
+                response.setEntity(entity);
+            }
+            this.status = status;
+        }
+
+        void send(int status, String contentType, byte[] body, String... headers) {
+            send(status, contentType, new ByteArrayInputStream(body), body.length, headers);
+        }
+
+        void sendJson(int status, Object value) throws IOException {
+            send(status, "application/json", mapper.writeValueAsString(value).getBytes("UTF-8"));
+        }
+
+        void sendError(ServiceError error) throws IOException {
+            byte[] body;
+            if (glacier) {
+                Map<String, String> json = new LinkedHashMap<String, String>();
+                json.put("__type", error.code);
+                json.put("code", error.code);
+                json.put("message", error.getMessage());
+                json.put("type", (error.status >= 500) ? "Server" : "Client");
+                body = mapper.writeValueAsString(json).getBytes("UTF-8");
+            } else {
+                body = LocalNotifications.errorResponse(error.code, error.getMessage()).getBytes("UTF-8");
+            }
+            send(error.status, glacier ? "application/json" : "text/xml", body);
+        }
+
+        /**
+         * Reads what is left of the request body, so that the next request
+         * on the connection can be read.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (body.read(buffer) >= 0) { }
+        }
+    }
+
+    /**
+     * Request body, paced by the bandwidth limit and counted.
+     */
+    private class BodyStream extends FilterInputStream {
+        private Call call;
+
+        BodyStream(InputStream in, Call call) {
+            super(in);
+            this.call = call;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                acquireBandwidth(n);
+                call.bytesIn += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // the stream is the connection's: drained after the request, not closed
+        }
+    }
+
+    /**
+     * Response body, paced by the bandwidth limit and counted.
+     */
+    private class ResponseBody extends AbstractHttpEntity {
+        private InputStream content;
+        private long length;
+        private Call call;
+
+        ResponseBody(InputStream content, long length, Call call) {
+            this.content = content;
+            this.length = length;
+            this.call = call;
+        }
+
+        public boolean isRepeatable() { return false; }
+        public boolean isStreaming() { return true; }
+        public long getContentLength() { return length; }
+        public InputStream getContent() { return content; }
+
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long left = length;
+                int n;
+                while (left > 0 && (n = content.read(buffer, 0, (int) Math.min(buffer.length, left))) > 0) {
+                    acquireBandwidth(n);
+                    out.write(buffer, 0, n);
+                    call.bytesOut += n;
+                    left -= n;
+                }
+            } finally {
+                content.close();
+            }
+        }
+    }
+
+    private void acquireBandwidth(int bytes) throws InterruptedIOException {
+        try {
+            bandwidth.acquire(bytes);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Thrown to close the connection without a response.
+     */
+    private static class DroppedConnection extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Serves the requests of a connection, and records each once its response is sent.
+     */
+    private void serve(DefaultHttpServerConnection connection) {
+        HttpContext context = new BasicHttpContext();
+        try {
+            while (connection.isOpen()) {
+                httpService.handleRequest(connection, context);
+                Call call = (Call) context.removeAttribute("call");
+                if (call != null) record(call);
+            }
+        } catch (ConnectionClosedException e) {
+            // closed by the client
+        } catch (IOException e) {
+            // dropped, or the client is gone
+        } catch (HttpException e) {
+            // not HTTP
+        } finally {
+            Call call = (Call) context.removeAttribute("call");
+            if (call != null) {
+                call.status = 0;
+                record(call);
+            }
+            try {
+                connection.shutdown();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+        }
+    }
+
+    private void serve(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        Call call = new Call(request, response);
+        context.setAttribute("call", call);
+        try {
+            Matcher path = GLACIER_PATH.matcher(call.path);
+            if (path.matches()) {
+                call.glacier = true;
+                String operation = operation(call.method, path);
+                if (operation == null) throw new ServiceError(400, "InvalidParameterValueException", "Unsupported request");
+                call.operation = operation;
+                if (!injectFaults(call)) throw new DroppedConnection();
+                glacier(call, path);
+            } else {
+                query(call);
+            }
+        } catch (ServiceError e) {
+            call.sendError(e);
+        } catch (IOException e) {
+            // the client is gone, or the connection is to be dropped
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            call.sendError(new ServiceError(500, "InternalFailure", String.valueOf(e)));
+        }
+        call.drain();
+    }
+
+    private static String operation(String method, Matcher path) {
+        String resource;
+        if (path.group(2) == null) resource = "vaults";
+        else if (path.group(3) == null) resource = "vault";
+        else if (path.group(4) == null) resource = path.group(3);
+        else if (path.group(5) == null) resource = path.group(3) + "/id";
+        else resource = path.group(3) + "/id/output";
+        return OPERATIONS.get(method + " " + resource);
+    }
+
+    /**
+     * @return false if the connection is to be dropped
+     * @throws ServiceError if the request is to fail
+     */
+    private boolean injectFaults(Call call) throws InterruptedIOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while adding latency");
+            }
+        }
+        if (maxRequestsPerSecond > 0) {
+            synchronized (throttleLock) {
+                long second = System.currentTimeMillis() / 1000;
+                if (second != throttleSecond) {
+                    throttleSecond = second;
+                    throttleCount = 0;
+                }
+                if (++throttleCount > maxRequestsPerSecond) throw new ServiceError(400, "ThrottlingException", "Rate exceeded");
+            }
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            if (failureStatus == 0) return false;
+            throw new ServiceError(failureStatus, failureCode, "Injected failure");
+        }
+        return true;
+    }
+
+    private void record(Call call) {
+        long nanos = System.nanoTime() - call.start;
+        Metrics.Histogram times = requestTimes.get(call.operation);
+        if (times == null) {
+            times = metrics.histogram("glacier_server_request_seconds", "Time to serve requests, per operation",
+                    "operation", call.operation, REQUEST_BUCKETS);
+            requestTimes.put(call.operation, times);
+        }
+        times.observeNanos(nanos);
+        received(call.operation).add(call.bytesIn);
+        sent(call.operation).add(call.bytesOut);
+        if (call.status == 0 || call.status >= 400) errors(call.operation).increment();
+        if (requestLog != null) {
+            synchronized (requestLog) {
+                try {
+                    requestLog.write(call.startMillis + "\t" + call.operation + "\t" + call.status + "\t" + call.bytesIn
+                            + "\t" + call.bytesOut + "\t" + String.format("%.3f", nanos / 1e6) + "\n");
+                    requestLog.flush();
+                } catch (IOException e) {
+                    System.err.println("Failed to write the request log: " + e);
+                }
+            }
+        }
+    }
+
+    private Metrics.Counter received(String operation) {
+        return metrics.counter("glacier_server_received_bytes_total", "Request body bytes, per operation", "operation", operation);
+    }
+
+    private Metrics.Counter sent(String operation) {
+        return metrics.counter("glacier_server_sent_bytes_total", "Response body bytes, per operation", "operation", operation);
+    }
+
+    private Metrics.Counter errors(String operation) {
+        return metrics.counter("glacier_server_errors_total", "Requests failed or dropped, per operation", "operation", operation);
+    }
+
+    /**
+     * SNS and SQS actions: form-encoded parameters, XML responses.
+     */
+    private void query(Call call) throws Exception {
+        String form = call.query;
+        if (call.method.equals("POST")) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            copy(call.body, body);
+            form = body.toString("UTF-8");
+        }
+        Map<String, String> params = parseForm(form);
+        String action = params.get("Action");
+        if (!LocalNotifications.handles(action)) throw new ServiceError(400, "InvalidAction", "Unknown action " + action);
+        call.operation = action;
+        String response = notifications.handle(action, call.path, params);
+        call.send(200, "text/xml", response.getBytes("UTF-8"));
+    }
+
+    private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (form == null) return params;
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String name = (eq < 0) ? pair : pair.substring(0, eq);
+            String value = (eq < 0) ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private void glacier(Call call, Matcher path) throws Exception {
+        String operation = call.operation;
+        String vaultName = path.group(2);
+        String id = path.group(4);
+
+        if (operation.equals("ListVaults")) {
+            List<Object> list = new ArrayList<Object>();
+            synchronized (this) {
+                for (Vault vault : vaults.values()) list.add(describe(vault));
+            }
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("Marker", null);
+            result.put("VaultList", list);
+            call.sendJson(200, result);
+        } else if (operation.equals("CreateVault")) {
+            vault(vaultName, true);
+            call.send(201, null, new byte[0], "Location", "/" + ACCOUNT + "/vaults/" + vaultName);
+        } else if (operation.equals("DescribeVault")) {
+            Vault vault = vault(vaultName, false);
+            Map<String, Object> description;
+            synchronized (this) {
+                description = describe(vault);
+            }
+            call.sendJson(200, description);
+        } else if (operation.equals("DeleteVault")) {
+            synchronized (this) {
+                Vault vault = vault(vaultName, false);
+                if (!vault.archives.isEmpty()) throw new ServiceError(400, "InvalidParameterValueException", "Vault not empty: " + vaultName);
+                vaults.remove(vaultName);
+                vault.dir.delete();
+            }
+            call.send(204, null, new byte[0]);
+        } else if (operation.equals("UploadArchive")) {
+            uploadArchive(call, vault(vaultName, true));
+        } else if (operation.equals("DeleteArchive")) {
+            synchronized (this) {
+                Archive archive = vault(vaultName, false).archives.remove(id);
+                if (archive == null) throw new ServiceError(404, "ResourceNotFoundException", "Archive not found: " + id);
+                archive.file.delete();
+                propertiesFile(archive.file).delete();
+            }
+            call.send(204, null, new byte[0]);
+        } else if (operation.equals("InitiateMultipartUpload")) {
+            initiateUpload(call, vault(vaultName, true));
+        } else if (operation.equals("ListMultipartUploads")) {
+            Vault vault = vault(vaultName, false);
+            List<Object> list = new ArrayList<Object>();
+            synchronized (this) {
+                for (Upload upload : vault.uploads.values()) list.add(describe(vault, upload));
+            }
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("Marker", null);
+            result.put("UploadsList", list);
+            call.sendJson(200, result);
+        } else if (operation.equals("UploadMultipartPart")) {
+            uploadPart(call, upload(vault(vaultName, false), id));
+        } else if (operation.equals("ListParts")) {
+            Vault vault = vault(vaultName, false);
+            Map<String, Object> result;
+            synchronized (this) {
+                Upload upload = upload(vault, id);
+                result = describe(vault, upload);
+                List<Object> parts = new ArrayList<Object>();
+                for (Map.Entry<Long, Part> entry : upload.parts.entrySet()) {
+                    Map<String, Object> part = new LinkedHashMap<String, Object>();
+                    part.put("RangeInBytes", entry.getKey() + "-" + (entry.getKey() + entry.getValue().length - 1));
+                    part.put("SHA256TreeHash", BinaryUtils.toHex(entry.getValue().treeHash));
+                    parts.add(part);
+                }
+                result.put("Marker", null);
+                result.put("Parts", parts);
+            }
+            call.sendJson(200, result);
+        } else if (operation.equals("CompleteMultipartUpload")) {
+            completeUpload(call, vault(vaultName, false), id);
+        } else if (operation.equals("AbortMultipartUpload")) {
+            synchronized (this) {
+                Vault vault = vault(vaultName, false);
+                Upload upload = upload(vault, id);
+                vault.uploads.remove(id);
+                closeQuietly(upload);
+                upload.file.delete();
+            }
+            call.send(204, null, new byte[0]);
+        } else if (operation.equals("InitiateJob")) {
+            initiateJob(call, vault(vaultName, false));
+        } else if (operation.equals("ListJobs")) {
+            Vault vault = vault(vaultName, false);
+            List<Object> list = new ArrayList<Object>();
+            synchronized (this) {
+                for (Job job : vault.jobs.values()) list.add(describe(job));
+            }
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("JobList", list);
+            result.put("Marker", null);
+            call.sendJson(200, result);
+        } else if (operation.equals("DescribeJob")) {
+            Vault vault = vault(vaultName, false);
+            Map<String, Object> description;
+            synchronized (this) {
+                description = describe(job(vault, id));
+            }
+            call.sendJson(200, description);
+        } else if (operation.equals("GetJobOutput")) {
+            Job job;
+            synchronized (this) {
+                job = job(vault(vaultName, false), id);
+                if (job.completed == 0) {
+                    throw new ServiceError(400, "InvalidParameterValueException", "The job is not currently available for download: " + id);
+                }
+            }
+            jobOutput(call, job);
+        }
+    }
+
+    private void uploadArchive(Call call, Vault vault) throws IOException {
+        Archive archive = new Archive();
+        archive.id = newId(138);
+        archive.description = call.header("x-amz-archive-description");
+        archive.created = System.currentTimeMillis();
+        archive.file = new File(vault.dir, archive.id + ".data");
+        TreeHash treeHash = new TreeHash();
+        OutputStream out = new FileOutputStream(archive.file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = call.body.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                treeHash.update(buffer, 0, n);
+            }
+        } finally {
+            out.close();
+        }
+        archive.size = treeHash.getLength();
+        archive.treeHash = treeHash.digestHex();
+        String expected = call.header("x-amz-sha256-tree-hash");
+        if (!archive.treeHash.equalsIgnoreCase(expected)) {
+            archive.file.delete();
+            throw new ServiceError(400, "InvalidParameterValueException", "Checksum mismatch: expected " + expected + ", computed " + archive.treeHash);
+        }
+        store(vault, archive);
+        call.send(201, null, new byte[0], "Location", "/" + ACCOUNT + "/vaults/" + vault.name + "/archives/" + archive.id,
+                "x-amz-archive-id", archive.id, "x-amz-sha256-tree-hash", archive.treeHash);
+    }
+
+    private void initiateUpload(Call call, Vault vault) throws IOException {
+        long partSize;
+        try {
+            partSize = Long.parseLong(call.header("x-amz-part-size"));
+        } catch (NumberFormatException e) {
+            throw new ServiceError(400, "MissingParameterValueException", "Invalid part size: " + call.header("x-amz-part-size"));
+        }
+        if (partSize < MB || partSize > 4096 * MB || Long.bitCount(partSize) != 1) {
+            throw new ServiceError(400, "InvalidParameterValueException", "Invalid part size: " + partSize);
+        }
+        Upload upload = new Upload();
+        upload.id = newId(92);
+        upload.description = call.header("x-amz-archive-description");
+        upload.partSize = partSize;
+        upload.created = System.currentTimeMillis();
+        File uploadsDir = new File(dataDir, "uploads");
+        if (!uploadsDir.isDirectory() && !uploadsDir.mkdirs()) throw new IOException("Cannot create " + uploadsDir);
+        upload.file = new File(uploadsDir, upload.id + ".part");
+        upload.channel = new RandomAccessFile(upload.file, "rw").getChannel();
+        synchronized (this) {
+            vault.uploads.put(upload.id, upload);
+        }
+        call.send(201, null, new byte[0], "Location", "/" + ACCOUNT + "/vaults/" + vault.name + "/multipart-uploads/" + upload.id,
+                "x-amz-multipart-upload-id", upload.id);
+    }
+
+    private void uploadPart(Call call, Upload upload) throws IOException {
+        String contentRange = call.header("Content-Range");
+        Matcher range = CONTENT_RANGE.matcher((contentRange != null) ? contentRange : "");
+        if (!range.matches()) throw new ServiceError(400, "InvalidParameterValueException", "Invalid Content-Range: " + contentRange);
+        long start = Long.parseLong(range.group(1));
+        long length = Long.parseLong(range.group(2)) - start + 1;
+        if (start % upload.partSize != 0 || length <= 0 || length > upload.partSize) {
+            throw new ServiceError(400, "InvalidParameterValueException", "Content-Range " + contentRange
+                    + " is not a part of " + upload.partSize + " bytes");
+        }
+
+        // parts may be sent at once: each writes its own range of the file
+        TreeHash treeHash = new TreeHash();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        int n;
+        while ((n = call.body.read(buffer)) >= 0) {
+            if (position + n - start > length) {
+                throw new ServiceError(400, "InvalidParameterValueException", "Body longer than Content-Range " + contentRange);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+            while (bytes.hasRemaining()) position += upload.channel.write(bytes, position);
+            treeHash.update(buffer, 0, n);
+        }
+        if (position - start != length) {
+            throw new ServiceError(400, "InvalidParameterValueException", "Body shorter than Content-Range " + contentRange);
+        }
+        Part part = new Part();
+        part.length = length;
+        part.treeHash = treeHash.digest();
+        String computed = BinaryUtils.toHex(part.treeHash);
+        String expected = call.header("x-amz-sha256-tree-hash");
+        if (!computed.equalsIgnoreCase(expected)) {
+            throw new ServiceError(400, "InvalidParameterValueException", "Checksum mismatch: expected " + expected + ", computed " + computed);
+        }
+        synchronized (this) {
+            upload.parts.put(start, part);
+        }
+        call.send(204, null, new byte[0], "x-amz-sha256-tree-hash", computed);
+    }
+
+    private void completeUpload(Call call, Vault vault, String id) throws IOException {
+        Archive archive = new Archive();
+        synchronized (this) {
+            Upload upload = upload(vault, id);
+            long archiveSize;
+            try {
+                archiveSize = Long.parseLong(call.header("x-amz-archive-size"));
+            } catch (NumberFormatException e) {
+                throw new ServiceError(400, "MissingParameterValueException", "Invalid archive size: " + call.header("x-amz-archive-size"));
+            }
+
+            // the parts must cover the archive, and the archive checksum is the tree of the part checksums
+            TreeHash treeHash = new TreeHash();
+            long expectedStart = 0;
+            for (Map.Entry<Long, Part> entry : upload.parts.entrySet()) {
+                if (entry.getKey() != expectedStart) {
+                    throw new ServiceError(400, "InvalidParameterValueException", "Missing part at byte " + expectedStart);
+                }
+                Part part = entry.getValue();
+                if (part.length != upload.partSize && !entry.getKey().equals(upload.parts.lastKey())) {
+                    throw new ServiceError(400, "InvalidParameterValueException", "Part at byte " + expectedStart + " is too short");
+                }
+                treeHash.appendDigest(part.treeHash);
+                expectedStart += part.length;
+            }
+            if (expectedStart != archiveSize) {
+                throw new ServiceError(400, "InvalidParameterValueException", "Archive size " + archiveSize
+                        + " does not match the " + expectedStart + " bytes of the parts");
+            }
+            String computed = upload.parts.isEmpty() ? "" : treeHash.digestHex();
+            String expected = call.header("x-amz-sha256-tree-hash");
+            if (!computed.equalsIgnoreCase(expected)) {
+                throw new ServiceError(400, "InvalidParameterValueException", "Checksum mismatch: expected " + expected + ", computed " + computed);
+            }
+
+            vault.uploads.remove(id);
+            upload.channel.truncate(archiveSize);
+            closeQuietly(upload);
+            archive.id = newId(138);
+            archive.description = upload.description;
+            archive.size = archiveSize;
+            archive.treeHash = computed;
+            archive.created = System.currentTimeMillis();
+            archive.file = new File(vault.dir, archive.id + ".data");
+            if (!upload.file.renameTo(archive.file)) throw new IOException("Cannot rename " + upload.file + " to " + archive.file);
+            store(vault, archive);
+        }
+        call.send(201, null, new byte[0], "Location", "/" + ACCOUNT + "/vaults/" + vault.name + "/archives/" + archive.id,
+                "x-amz-archive-id", archive.id, "x-amz-sha256-tree-hash", archive.treeHash);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initiateJob(Call call, Vault vault) throws IOException {
+        Map<String, Object> parameters;
+        try {
+            parameters = mapper.readValue(call.body, Map.class);
+        } catch (IOException e) {
+            throw new ServiceError(400, "InvalidParameterValueException", "Invalid job parameters: " + e.getMessage());
+        }
+        final Job job = new Job();
+        job.id = newId(92);
+        job.vault = vault;
+        job.description = (String) parameters.get("Description");
+        job.snsTopic = (String) parameters.get("SNSTopic");
+        job.created = System.currentTimeMillis();
+        String type = (String) parameters.get("Type");
+        synchronized (this) {
+            if ("archive-retrieval".equals(type)) {
+                job.archiveId = (String) parameters.get("ArchiveId");
+                Archive archive = vault.archives.get(job.archiveId);
+                if (archive == null) throw new ServiceError(404, "ResourceNotFoundException", "Archive not found: " + job.archiveId);
+                job.size = archive.size;
+                job.treeHash = archive.treeHash;
+                job.file = archive.file;
+                job.archiveDescription = archive.description;
+            } else if ("inventory-retrieval".equals(type)) {
+                job.inventory = true;
+                job.content = inventory(vault);
+                job.size = job.content.length;
+            } else {
+                throw new ServiceError(400, "InvalidParameterValueException", "Invalid job type: " + type);
+            }
+            vault.jobs.put(job.id, job);
+        }
+        if (jobDelaySeconds > 0) {
+            jobTimer.schedule(new Runnable() {
+                public void run() {
+                    completeJob(job);
+                }
+            }, jobDelaySeconds, TimeUnit.SECONDS);
+        } else {
+            completeJob(job);
+        }
+        call.send(202, null, new byte[0], "Location", "/" + ACCOUNT + "/vaults/" + vault.name + "/jobs/" + job.id,
+                "x-amz-job-id", job.id);
+    }
+
+    private void completeJob(Job job) {
+        Map<String, Object> description;
+        synchronized (this) {
+            job.completed = System.currentTimeMillis();
+            description = describe(job);
+        }
+        if (job.snsTopic != null) {
+            try {
+                notifications.publish(job.snsTopic, mapper.writeValueAsString(description));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void jobOutput(Call call, Job job) throws IOException {
+        long start = 0;
+        long end = job.size - 1;
+        int status = 200;
+        String contentRange = null;
+        String rangeHeader = call.header("Range");
+        if (rangeHeader != null) {
+            Matcher range = RANGE.matcher(rangeHeader);
+            if (!range.matches()) throw new ServiceError(400, "InvalidParameterValueException", "Invalid range: " + rangeHeader);
+            start = Long.parseLong(range.group(1));
+            if (!range.group(2).isEmpty()) end = Math.min(end, Long.parseLong(range.group(2)));
+            if (start > end) throw new ServiceError(416, "InvalidParameterValueException", "Range not satisfiable: " + rangeHeader);
+            status = 206;
+            contentRange = "bytes " + start + "-" + end + "/" + job.size;
+        }
+        if (!job.inventory && !job.file.exists()) throw new ServiceError(404, "ResourceNotFoundException", "Archive deleted: " + job.archiveId);
+
+        // as the service does, give the checksum of the range if it is a subtree of the archive's tree hash
+        String treeHash = null;
+        if (start == 0 && end == job.size - 1) {
+            treeHash = job.treeHash;
+        } else if (isTreeHashAligned(start, end, job.size)) {
+            TreeHash rangeHash = new TreeHash();
+            InputStream in = open(job, start);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long left = end - start + 1;
+                int n;
+                while (left > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, left))) > 0) {
+                    rangeHash.update(buffer, 0, n);
+                    left -= n;
+                }
+            } finally {
+                in.close();
+            }
+            treeHash = rangeHash.digestHex();
+        }
+
+        call.send(status, job.inventory ? "application/json" : "application/octet-stream", open(job, start), end - start + 1,
+                "Content-Range", contentRange, "Accept-Ranges", "bytes", "x-amz-sha256-tree-hash", treeHash,
+                "x-amz-archive-description", job.archiveDescription);
+    }
+
+    /**
+     * @return true if the range starts on a MB, and covers whole subtrees of
+     *         the archive's tree hash (the last one may end with the archive)
+     */
+    static boolean isTreeHashAligned(long start, long end, long size) {
+        if (start % MB != 0) return false;
+        if ((end + 1) % MB != 0 && end + 1 != size) return false;
+        long leaves = (end - start + MB) / MB;
+        long subtree = Long.highestOneBit(leaves);
+        if (subtree != leaves) {
+            // only a range ending the archive can be a partial subtree
+            if (end + 1 != size) return false;
+            subtree <<= 1;
+        }
+        return (start / MB) % subtree == 0;
+    }
+
+    private static InputStream open(Job job, long start) throws IOException {
+        if (job.inventory) {
+            return new ByteArrayInputStream(job.content, (int) start, job.content.length - (int) start);
+        }
+        InputStream in = new FileInputStream(job.file);
+        long skipped = 0;
+        while (skipped < start) {
+            long n = in.skip(start - skipped);
+            if (n <= 0) {
+                in.close();
+                throw new IOException("Cannot skip to byte " + start + " of " + job.file);
+            }
+            skipped += n;
+        }
+        return in;
+    }
+
+    private byte[] inventory(Vault vault) throws IOException {
+        List<Object> archives = new ArrayList<Object>();
+        for (Archive archive : vault.archives.values()) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("ArchiveId", archive.id);
+            entry.put("ArchiveDescription", (archive.description != null) ? archive.description : "");
+            entry.put("CreationDate", isoDate(archive.created));
+            entry.put("Size", archive.size);
+            entry.put("SHA256TreeHash", archive.treeHash);
+            archives.add(entry);
+        }
+        Map<String, Object> inventory = new LinkedHashMap<String, Object>();
+        inventory.put("VaultARN", vaultArn(vault));
+        inventory.put("InventoryDate", isoDate(System.currentTimeMillis()));
+        inventory.put("ArchiveList", archives);
+        return mapper.writeValueAsString(inventory).getBytes("UTF-8");
+    }
+
+    private Map<String, Object> describe(Vault vault) {
+        long size = 0;
+        for (Archive archive : vault.archives.values()) size += archive.size;
+        Map<String, Object> description = new LinkedHashMap<String, Object>();
+        description.put("CreationDate", isoDate(vault.created));
+        description.put("LastInventoryDate", null);
+        description.put("NumberOfArchives", vault.archives.size());
+        description.put("SizeInBytes", size);
+        description.put("VaultARN", vaultArn(vault));
+        description.put("VaultName", vault.name);
+        return description;
+    }
+
+    private Map<String, Object> describe(Vault vault, Upload upload) {
+        Map<String, Object> description = new LinkedHashMap<String, Object>();
+        description.put("ArchiveDescription", upload.description);
+        description.put("CreationDate", isoDate(upload.created));
+        description.put("MultipartUploadId", upload.id);
+        description.put("PartSizeInBytes", upload.partSize);
+        description.put("VaultARN", vaultArn(vault));
+        return description;
+    }
+
+    private Map<String, Object> describe(Job job) {
+        boolean completed = job.completed > 0;
+        Map<String, Object> description = new LinkedHashMap<String, Object>();
+        description.put("Action", job.inventory ? "InventoryRetrieval" : "ArchiveRetrieval");
+        description.put("ArchiveId", job.archiveId);
+        description.put("ArchiveSHA256TreeHash", job.inventory ? null : job.treeHash);
+        description.put("ArchiveSizeInBytes", job.inventory ? null : job.size);
+        description.put("Completed", completed);
+        description.put("CompletionDate", completed ? isoDate(job.completed) : null);
+        description.put("CreationDate", isoDate(job.created));
+        description.put("InventorySizeInBytes", job.inventory ? job.size : null);
+        description.put("JobDescription", job.description);
+        description.put("JobId", job.id);
+        description.put("RetrievalByteRange", job.inventory ? null : "0-" + (job.size - 1));
+        description.put("SHA256TreeHash", job.treeHash);
+        description.put("SNSTopic", job.snsTopic);
+        description.put("StatusCode", completed ? "Succeeded" : "InProgress");
+        description.put("StatusMessage", completed ? "Succeeded" : null);
+        description.put("VaultARN", vaultArn(job.vault));
+        return description;
+    }
+
+    private String vaultArn(Vault vault) {
+        return "arn:aws:glacier:" + region + ":" + ACCOUNT + ":vaults/" + vault.name;
+    }
+
+    private synchronized Vault vault(String name, boolean create) throws IOException {
+        Vault vault = vaults.get(name);
+        if (vault == null) {
+            if (!create) throw new ServiceError(404, "ResourceNotFoundException", "Vault not found: " + name);
+            vault = new Vault();
+            vault.name = name;
+            vault.created = System.currentTimeMillis();
+            vault.dir = new File(new File(dataDir, "vaults"), name);
+            if (!vault.dir.isDirectory() && !vault.dir.mkdirs()) throw new IOException("Cannot create " + vault.dir);
+            vaults.put(name, vault);
+        }
+        return vault;
+    }
+
+    private synchronized Upload upload(Vault vault, String id) {
+        Upload upload = vault.uploads.get(id);
+        if (upload == null) throw new ServiceError(404, "ResourceNotFoundException", "Multipart upload not found: " + id);
+        return upload;
+    }
+
+    private synchronized Job job(Vault vault, String id) {
+        Job job = vault.jobs.get(id);
+        if (job == null) throw new ServiceError(404, "ResourceNotFoundException", "Job not found: " + id);
+        return job;
+    }
+
+    /**
+     * Adds the archive to the vault, and writes its metadata next to its data.
+     */
+    private synchronized void store(Vault vault, Archive archive) throws IOException {
+        Properties properties = new Properties();
+        if (archive.description != null) properties.setProperty("description", archive.description);
+        properties.setProperty("size", String.valueOf(archive.size));
+        properties.setProperty("treeHash", archive.treeHash);
+        properties.setProperty("created", String.valueOf(archive.created));
+        OutputStream out = new FileOutputStream(propertiesFile(archive.file));
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        vault.archives.put(archive.id, archive);
+    }
+
+    private void loadArchives() throws IOException {
+        File[] vaultDirs = new File(dataDir, "vaults").listFiles();
+        if (vaultDirs == null) return;
+        for (File vaultDir : vaultDirs) {
+            if (!vaultDir.isDirectory()) continue;
+            Vault vault = vault(vaultDir.getName(), true);
+            vault.created = vaultDir.lastModified();
+            File[] files = vaultDir.listFiles();
+            List<Archive> archives = new ArrayList<Archive>();
+            for (File file : files) {
+                if (!file.getName().endsWith(".data") || !propertiesFile(file).exists()) continue;
+                Properties properties = new Properties();
+                InputStream in = new FileInputStream(propertiesFile(file));
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                Archive archive = new Archive();
+                archive.id = file.getName().substring(0, file.getName().length() - ".data".length());
+                archive.description = properties.getProperty("description");
+                archive.size = Long.parseLong(properties.getProperty("size"));
+                archive.treeHash = properties.getProperty("treeHash");
+                archive.created = Long.parseLong(properties.getProperty("created"));
+                archive.file = file;
+                archives.add(archive);
+            }
+            // in upload order, as the inventory lists them
+            Collections.sort(archives, new Comparator<Archive>() {
+                public int compare(Archive a, Archive b) {
+                    return (a.created < b.created) ? -1 : (a.created > b.created) ? 1 : 0;
+                }
+            });
+            for (Archive archive : archives) vault.archives.put(archive.id, archive);
+        }
+    }
+
+    private static File propertiesFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - ".data".length()) + ".properties");
+    }
+
+    private String newId(int length) {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        StringBuilder id = new StringBuilder(length);
+        for (int i = 0; i < length; i++) id.append(chars.charAt(random.nextInt(chars.length())));
+        return id.toString();
+    }
+
+    private static void closeQuietly(Upload upload) {
+        try {
+            upload.channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) out.write(buffer, 0, n);
+    }
+}
@@ -0,0 +1,228 @@
+package glacierHelper;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * The part of SNS and SQS that Glacier job notifications go through, for
+ * LocalGlacier: topics, queues subscribed to them, and long polling.
+ * Enough for ArchiveTransferManager and VaultInventory, which create a
+ * topic and a queue per job and wait for the notification on the queue.
+ *
+ * Speaks the query protocol (form-encoded actions, XML responses).
+ * Queue policies are accepted and ignored; messages are delivered once,
+ * and deleted when received (the receipt handle is then a no-op).
+ */
+public class LocalNotifications {
+    private static final String ACCOUNT = "012345678901";
+
+    private String baseUrl;
+    private String region;
+    private Map<String, Set<String>> subscriptions = new HashMap<String, Set<String>>(); // topic ARN -> queue ARNs
+    private Map<String, String[]> subscriptionQueues = new HashMap<String, String[]>(); // subscription ARN -> topic ARN, queue ARN
+    private Map<String, LinkedList<String>> queues = new HashMap<String, LinkedList<String>>(); // queue name -> bodies
+    private ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param baseUrl URL of the server, e.g. http://localhost:8080, from which queue URLs are made
+     */
+    public LocalNotifications(String baseUrl, String region) {
+        this.baseUrl = baseUrl;
+        this.region = region;
+    }
+
+    /**
+     * @return true if the action is one handled here
+     */
+    public static boolean handles(String action) {
+        return action != null && (action.endsWith("Queue") || action.endsWith("Message") || action.endsWith("Topic")
+                || action.equals("GetQueueAttributes") || action.equals("SetQueueAttributes")
+                || action.equals("Subscribe") || action.equals("Unsubscribe"));
+    }
+
+    /**
+     * Sends a message to the queues subscribed to the topic, wrapped the
+     * way SNS does.
+     */
+    public void publish(String topicArn, String message) {
+        Map<String, Object> notification = new LinkedHashMap<String, Object>();
+        notification.put("Type", "Notification");
+        notification.put("MessageId", UUID.randomUUID().toString());
+        notification.put("TopicArn", topicArn);
+        notification.put("Message", message);
+        notification.put("Timestamp", LocalGlacier.isoDate(System.currentTimeMillis()));
+        String body;
+        try {
+            body = mapper.writeValueAsString(notification);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            Set<String> queueArns = subscriptions.get(topicArn);
+            if (queueArns == null) return;
+            for (String queueArn : queueArns) {
+                LinkedList<String> queue = queues.get(queueArn.substring(queueArn.lastIndexOf(':') + 1));
+                if (queue != null) queue.add(body);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs a query action.
+     *
+     * @param path request path; for queue actions, the queue URL's path
+     * @return XML response body
+     * @throws LocalGlacier.ServiceError for unknown queues / actions
+     */
+    public String handle(String action, String path, Map<String, String> params) throws InterruptedException {
+        if (action.equals("CreateQueue")) {
+            String name = params.get("QueueName");
+            synchronized (this) {
+                if (!queues.containsKey(name)) queues.put(name, new LinkedList<String>());
+            }
+            return response(action, "<QueueUrl>" + baseUrl + "/queue/" + name + "</QueueUrl>");
+        }
+        if (action.equals("GetQueueAttributes")) {
+            String name = queueName(path);
+            return response(action, "<Attribute><Name>QueueArn</Name><Value>" + queueArn(name) + "</Value></Attribute>");
+        }
+        if (action.equals("SetQueueAttributes")) {
+            queueName(path);
+            return response(action, null);
+        }
+        if (action.equals("DeleteQueue")) {
+            String name = queueName(path);
+            synchronized (this) {
+                queues.remove(name);
+            }
+            return response(action, null);
+        }
+        if (action.equals("ReceiveMessage")) {
+            return response(action, receive(queueName(path), params));
+        }
+        if (action.equals("DeleteMessage")) {
+            queueName(path);
+            return response(action, null);
+        }
+        if (action.equals("CreateTopic")) {
+            String arn = "arn:aws:sns:" + region + ":" + ACCOUNT + ":" + params.get("Name");
+            synchronized (this) {
+                if (!subscriptions.containsKey(arn)) subscriptions.put(arn, new HashSet<String>());
+            }
+            return response(action, "<TopicArn>" + arn + "</TopicArn>");
+        }
+        if (action.equals("Subscribe")) {
+            String topicArn = params.get("TopicArn");
+            String subscriptionArn = topicArn + ":" + UUID.randomUUID();
+            synchronized (this) {
+                Set<String> queueArns = subscriptions.get(topicArn);
+                if (queueArns == null) throw new LocalGlacier.ServiceError(404, "NotFound", "Topic does not exist");
+                if ("sqs".equals(params.get("Protocol"))) {
+                    queueArns.add(params.get("Endpoint"));
+                    subscriptionQueues.put(subscriptionArn, new String[] { topicArn, params.get("Endpoint") });
+                }
+            }
+            return response(action, "<SubscriptionArn>" + subscriptionArn + "</SubscriptionArn>");
+        }
+        if (action.equals("Unsubscribe")) {
+            synchronized (this) {
+                String[] subscription = subscriptionQueues.remove(params.get("SubscriptionArn"));
+                if (subscription != null && subscriptions.containsKey(subscription[0])) {
+                    subscriptions.get(subscription[0]).remove(subscription[1]);
+                }
+            }
+            return response(action, null);
+        }
+        if (action.equals("DeleteTopic")) {
+            synchronized (this) {
+                subscriptions.remove(params.get("TopicArn"));
+            }
+            return response(action, null);
+        }
+        throw new LocalGlacier.ServiceError(400, "InvalidAction", "Unknown action " + action);
+    }
+
+    /**
+     * Waits up to WaitTimeSeconds for messages, like SQS long polling.
+     */
+    private String receive(String name, Map<String, String> params) throws InterruptedException {
+        int max = params.containsKey("MaxNumberOfMessages") ? Integer.parseInt(params.get("MaxNumberOfMessages")) : 1;
+        long wait = params.containsKey("WaitTimeSeconds") ? Long.parseLong(params.get("WaitTimeSeconds")) * 1000 : 0;
+        long deadline = System.currentTimeMillis() + wait;
+        StringBuilder messages = new StringBuilder();
+        synchronized (this) {
+            while (true) {
+                LinkedList<String> queue = queues.get(name);
+                if (queue == null) throw new LocalGlacier.ServiceError(400, "AWS.SimpleQueueService.NonExistentQueue", "The queue does not exist");
+                if (!queue.isEmpty()) {
+                    for (int i = 0; i < max && !queue.isEmpty(); i++) {
+                        String body = queue.removeFirst();
+                        messages.append("<Message><MessageId>").append(UUID.randomUUID())
+                                .append("</MessageId><ReceiptHandle>").append(UUID.randomUUID())
+                                .append("</ReceiptHandle><MD5OfBody>").append(md5(body))
+                                .append("</MD5OfBody><Body>").append(escape(body)).append("</Body></Message>");
+                    }
+                    break;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                wait(left);
+            }
+        }
+        return messages.toString();
+    }
+
+    private synchronized String queueName(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (!path.startsWith("/queue/") || !queues.containsKey(name)) {
+            throw new LocalGlacier.ServiceError(400, "AWS.SimpleQueueService.NonExistentQueue", "The queue does not exist");
+        }
+        return name;
+    }
+
+    private String queueArn(String name) {
+        return "arn:aws:sqs:" + region + ":" + ACCOUNT + ":" + name;
+    }
+
+    private static String response(String action, String result) {
+        StringBuilder xml = new StringBuilder("<" + action + "Response>");
+        if (result != null) xml.append("<" + action + "Result>").append(result).append("</" + action + "Result>");
+        xml.append("<ResponseMetadata><RequestId>").append(UUID.randomUUID()).append("</RequestId></ResponseMetadata>");
+        return xml.append("</" + action + "Response>").toString();
+    }
+
+    /**
+     * @return XML error response of the query protocol
+     */
+    public static String errorResponse(String code, String message) {
+        return "<ErrorResponse><Error><Type>Sender</Type><Code>" + escape(code) + "</Code><Message>" + escape(message)
+                + "</Message></Error><RequestId>" + UUID.randomUUID() + "</RequestId></ErrorResponse>";
+    }
+
+    static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String md5(String s) {
+        try {
+            return BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * lz4 frame format (readable by the lz4 command), through lz4-java.
+ * A level above 0 selects the high compression mode. Single-threaded.
+ */
+public class Lz4Codec extends CompressionCodec {
+
+    @Override
+    public String getName() { return "lz4"; }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (level <= 0) {
+            return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+        }
+        return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L,
+                LZ4Factory.fastestInstance().highCompressor(level),
+                XXHashFactory.fastestInstance().hash32(),
+                LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+    }
+
+    /**
+     * A 4MB block being filled, and its compressed copy.
+     */
+    @Override
+    public long getMemoryFootprint() {
+        return 2 * 4L * 1024 * 1024 + 64 * 1024;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new LZ4FrameInputStream(in);
+    }
+}
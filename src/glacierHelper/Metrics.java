@@ -0,0 +1,259 @@
+package glacierHelper;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms of the upload pipeline, exported by
+ * MetricsReporter. The classes of the pipeline record into the global
+ * registry; recording costs an atomic add (and the System.nanoTime() calls
+ * around the work timed, which is done per MB or per file), so it is
+ * always on.
+ *
+ * Metrics are organized the Prometheus way: a family has a name, a type
+ * and a help text, and one series per value of its (single, optional)
+ * label. Times are kept in nanoseconds and exported in seconds.
+ *
+ * Pipeline stages record bytes and busy time, from which the reporter
+ * derives per-stage MB/s and busy ratio (which can exceed 1 for stages
+ * run by several threads). Wait points record the time a stage spends
+ * blocked on the next one: the stage waited on most is the bottleneck.
+ */
+public class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    static final String COUNTER = "counter";
+    static final String GAUGE = "gauge";
+    static final String HISTOGRAM = "histogram";
+
+    // latency buckets, in seconds: part uploads take from under a second to minutes
+    public static final double[] LATENCY_BUCKETS = { 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000 };
+
+    private Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    public static Metrics global() { return GLOBAL; }
+
+    public Metrics() {
+        counterFunction("glacier_gc_collections_total", "Garbage collections", 1, new Gauge() {
+            public long value() {
+                long count = 0;
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+                return count;
+            }
+        });
+        counterFunction("glacier_gc_pause_seconds_total", "Time spent in garbage collections", 1e-3, new Gauge() {
+            public long value() {
+                long millis = 0;
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+                return millis;
+            }
+        });
+    }
+
+    /**
+     * A value read when exported, e.g. the depth of a queue.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    public static class Counter {
+        private AtomicLong value = new AtomicLong();
+
+        public void add(long n) { value.addAndGet(n); }
+        public void increment() { value.incrementAndGet(); }
+        public long get() { return value.get(); }
+    }
+
+    /**
+     * Bytes through a pipeline stage, and time spent processing them.
+     */
+    public static class Stage {
+        private Counter bytes;
+        private Counter nanos;
+
+        Stage(Counter bytes, Counter nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @param startNanos System.nanoTime() when the work started
+         */
+        public void record(long byteCount, long startNanos) {
+            bytes.add(byteCount);
+            nanos.add(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Counts of observations per bucket, Prometheus style.
+     */
+    public static class Histogram {
+        private double[] bounds;
+        private AtomicLongArray counts;
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong sumNanos = new AtomicLong();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < bounds.length && seconds > bounds[i]) i++;
+            counts.incrementAndGet(i);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+
+        public long getCount() { return count.get(); }
+        public double getSum() { return sumNanos.get() / 1e9; }
+        double[] getBounds() { return bounds; }
+        long getBucketCount(int i) { return counts.get(i); }
+
+        /**
+         * @return estimate of the q-quantile, interpolated within its bucket
+         */
+        public double quantile(double q) {
+            long total = count.get();
+            if (total == 0) return 0;
+            double rank = q * total;
+            long cumulative = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                long inBucket = counts.get(i);
+                if (cumulative + inBucket >= rank && inBucket > 0) {
+                    if (i == bounds.length) return bounds[bounds.length - 1];
+                    double lower = (i == 0) ? 0 : bounds[i - 1];
+                    return lower + (bounds[i] - lower) * (rank - cumulative) / inBucket;
+                }
+                cumulative += inBucket;
+            }
+            return bounds[bounds.length - 1];
+        }
+    }
+
+    /**
+     * Metrics of one name; one series per label value.
+     */
+    static class Family {
+        String name;
+        String type;
+        String help;
+        String label;
+        double scale;
+        // sorted by label value, and safe to read while series are added
+        Map<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+
+        Family(String name, String type, String help, String label, double scale) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.label = label;
+            this.scale = scale;
+        }
+
+        /**
+         * @return value of a counter or gauge series, scaled
+         */
+        double value(Object metric) {
+            if (metric instanceof Counter) return ((Counter) metric).get() * scale;
+            if (metric instanceof Gauge) return ((Gauge) metric).value() * scale;
+            double sum = 0;
+            for (Object gauge : (List<?>) metric) sum += ((Gauge) gauge).value();
+            return sum * scale;
+        }
+    }
+
+    /**
+     * @return the counter of the given name (and label value), created on first use
+     */
+    public Counter counter(String name, String help) {
+        return (Counter) series(name, COUNTER, help, null, null, 1, new Counter());
+    }
+
+    public Counter counter(String name, String help, String label, String labelValue) {
+        return (Counter) series(name, COUNTER, help, label, labelValue, 1, new Counter());
+    }
+
+    /**
+     * @return the counter of nanoseconds of the given name, exported in seconds
+     */
+    public Counter timer(String name, String help, String label, String labelValue) {
+        return (Counter) series(name, COUNTER, help, label, labelValue, 1e-9, new Counter());
+    }
+
+    /**
+     * @return bytes and time counters of a pipeline stage, e.g. "read", "compress", "upload"
+     */
+    public Stage stage(String stage) {
+        return new Stage(counter("glacier_stage_bytes_total", "Bytes processed by each pipeline stage", "stage", stage),
+                timer("glacier_stage_seconds_total", "Time spent processing, summed over the threads of each stage", "stage", stage));
+    }
+
+    /**
+     * @return counter of nanoseconds spent blocked at the given point of the pipeline
+     */
+    public Counter waitPoint(String point) {
+        return timer("glacier_wait_seconds_total", "Time stages spent blocked on another stage", "point", point);
+    }
+
+    public Histogram histogram(String name, String help, double[] bounds) {
+        return (Histogram) series(name, HISTOGRAM, help, null, null, 1, new Histogram(bounds));
+    }
+
+    public Histogram histogram(String name, String help, String label, String labelValue, double[] bounds) {
+        return (Histogram) series(name, HISTOGRAM, help, label, labelValue, 1, new Histogram(bounds));
+    }
+
+    /**
+     * Adds to the value of a gauge: gauges added under the same name are
+     * summed, e.g. the queue depths of several uploads at once.
+     */
+    @SuppressWarnings("unchecked")
+    public void addGauge(String name, String help, Gauge gauge) {
+        ((List<Gauge>) series(name, GAUGE, help, null, null, 1, new CopyOnWriteArrayList<Gauge>())).add(gauge);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void removeGauge(String name, Gauge gauge) {
+        ((List<Gauge>) series(name, GAUGE, null, null, null, 1, new CopyOnWriteArrayList<Gauge>())).remove(gauge);
+    }
+
+    /**
+     * A counter whose value is read from elsewhere when exported.
+     */
+    public void counterFunction(String name, String help, double scale, Gauge value) {
+        series(name, COUNTER, help, null, null, scale, value);
+    }
+
+    synchronized List<Family> getFamilies() {
+        return new ArrayList<Family>(families.values());
+    }
+
+    private synchronized Object series(String name, String type, String help, String label, String labelValue,
+            double scale, Object created) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, type, help, label, scale);
+            families.put(name, family);
+        }
+        String key = (labelValue != null) ? labelValue : "";
+        Object metric = family.series.get(key);
+        if (metric == null) {
+            metric = created;
+            family.series.put(key, metric);
+        }
+        return metric;
+    }
+}
@@ -0,0 +1,219 @@
+package glacierHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Exports Metrics every [interval] seconds:
+ *
+ * - as a JSON line appended to a file, with per-interval rates, e.g.
+ *   {"time":"2013-01-01T12:00:00Z","interval_s":10.0,
+ *    "rates":{"glacier_stage_bytes_total.read":52428800.0,...},
+ *    "totals":{...},"gauges":{...},
+ *    "histograms":{"glacier_part_upload_seconds":{"count":12,"p50":4.1,"p99":9.7}}}
+ *
+ * - in the Prometheus text format, to a file rewritten each time (through
+ *   a temporary file and a rename, so that a reader never sees half of it),
+ *   e.g. in the directory of node_exporter's textfile collector.
+ */
+public class MetricsReporter implements Runnable {
+    private Metrics metrics;
+    private File jsonFile;
+    private File prometheusFile;
+    private long interval;
+
+    private Thread thread;
+    private long lastTime;
+    private Map<String, Double> lastTotals = new HashMap<String, Double>();
+
+    /**
+     * @param jsonFile file to append JSON lines to, or null
+     * @param prometheusFile file to write the Prometheus text format to, or null
+     * @param intervalSeconds time between reports
+     */
+    public MetricsReporter(Metrics metrics, String jsonFile, String prometheusFile, long intervalSeconds) {
+        this.metrics = metrics;
+        this.jsonFile = (jsonFile != null) ? new File(jsonFile) : null;
+        this.prometheusFile = (prometheusFile != null) ? new File(prometheusFile) : null;
+        this.interval = Math.max(1, intervalSeconds) * 1000;
+    }
+
+    public void start() {
+        lastTime = System.currentTimeMillis();
+        snapshotTotals(lastTotals);
+        thread = new Thread(this, "metrics-reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops reporting, after a last report.
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        report();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            report();
+        }
+    }
+
+    /**
+     * Writes a report now.
+     */
+    public synchronized void report() {
+        try {
+            if (jsonFile != null) appendJson();
+            if (prometheusFile != null) writePrometheus();
+        } catch (IOException e) {
+            // metrics must not break the upload
+            System.err.println("Failed to write metrics: " + e);
+        }
+    }
+
+    private void appendJson() throws IOException {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastTime) / 1000.0;
+        Map<String, Double> totals = new HashMap<String, Double>();
+        snapshotTotals(totals);
+
+        StringBuilder rates = new StringBuilder();
+        StringBuilder totalValues = new StringBuilder();
+        StringBuilder gauges = new StringBuilder();
+        StringBuilder histograms = new StringBuilder();
+        for (Metrics.Family family : metrics.getFamilies()) {
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String key = jsonKey(family, series.getKey());
+                if (family.type == Metrics.HISTOGRAM) {
+                    Metrics.Histogram h = (Metrics.Histogram) series.getValue();
+                    separate(histograms).append(quote(key)).append(String.format(Locale.ROOT,
+                            ":{\"count\":%d,\"sum\":%.3f,\"p50\":%.3f,\"p99\":%.3f}",
+                            h.getCount(), h.getSum(), h.quantile(0.5), h.quantile(0.99)));
+                } else if (family.type == Metrics.GAUGE) {
+                    separate(gauges).append(quote(key)).append(':').append(number(family.value(series.getValue())));
+                } else {
+                    double total = totals.get(key);
+                    Double last = lastTotals.get(key);
+                    double rate = (total - ((last != null) ? last : 0)) / seconds;
+                    separate(rates).append(quote(key)).append(':').append(number(rate));
+                    separate(totalValues).append(quote(key)).append(':').append(number(total));
+                }
+            }
+        }
+
+        String line = "{\"time\":" + quote(isoTime(now)) + ",\"interval_s\":" + number(seconds)
+                + ",\"rates\":{" + rates + "},\"totals\":{" + totalValues + "},\"gauges\":{" + gauges
+                + "},\"histograms\":{" + histograms + "}}\n";
+        Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile, true), "UTF-8");
+        try {
+            out.write(line);
+        } finally {
+            out.close();
+        }
+        lastTime = now;
+        lastTotals = totals;
+    }
+
+    private void writePrometheus() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Metrics.Family family : metrics.getFamilies()) {
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = (family.label != null) ? family.label + "=\"" + series.getKey() + "\"" : "";
+                if (family.type == Metrics.HISTOGRAM) {
+                    Metrics.Histogram h = (Metrics.Histogram) series.getValue();
+                    String prefix = labels.isEmpty() ? "" : labels + ",";
+                    long cumulative = 0;
+                    double[] bounds = h.getBounds();
+                    for (int i = 0; i < bounds.length; i++) {
+                        cumulative += h.getBucketCount(i);
+                        text.append(family.name).append("_bucket{").append(prefix).append("le=\"").append(number(bounds[i]))
+                                .append("\"} ").append(cumulative).append('\n');
+                    }
+                    text.append(family.name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(h.getCount()).append('\n');
+                    text.append(family.name).append("_sum").append(braces(labels)).append(' ').append(number(h.getSum())).append('\n');
+                    text.append(family.name).append("_count").append(braces(labels)).append(' ').append(h.getCount()).append('\n');
+                } else {
+                    text.append(family.name).append(braces(labels)).append(' ')
+                            .append(number(family.value(series.getValue()))).append('\n');
+                }
+            }
+        }
+
+        File tmp = new File(prometheusFile.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(text.toString());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(prometheusFile)) {
+            prometheusFile.delete();
+            if (!tmp.renameTo(prometheusFile)) throw new IOException("Cannot rename " + tmp + " to " + prometheusFile);
+        }
+    }
+
+    private void snapshotTotals(Map<String, Double> totals) {
+        for (Metrics.Family family : metrics.getFamilies()) {
+            if (family.type != Metrics.COUNTER) continue;
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                totals.put(jsonKey(family, series.getKey()), family.value(series.getValue()));
+            }
+        }
+    }
+
+    private static String jsonKey(Metrics.Family family, String labelValue) {
+        return labelValue.isEmpty() ? family.name : family.name + "." + labelValue;
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static StringBuilder separate(StringBuilder b) {
+        if (b.length() > 0) b.append(',');
+        return b;
+    }
+
+    private static String number(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) return String.valueOf((long) d);
+        String s = String.format(Locale.ROOT, "%.6g", d);
+        if (s.indexOf('e') >= 0) return s;
+        return s.replaceAll("0+$", "").replaceAll("\\.$", "");
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String isoTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
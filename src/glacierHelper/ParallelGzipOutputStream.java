@@ -0,0 +1,388 @@
+package glacierHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip compressor that deflates blocks of the input on several threads,
+ * the way pigz does.
+ *
+ * The input is cut into fixed-size blocks. Each block is deflated
+ * independently, primed with the last 32KB of the previous block as the
+ * dictionary so that the ratio stays close to single-threaded gzip, and
+ * ends with a sync flush so that the compressed blocks can simply be
+ * concatenated. The result is a single, standard gzip member.
+ *
+ * checkpoint() ends the current block without priming the next one, so the
+ * output from there on depends only on the input from there on. A stream
+ * created from such a Checkpoint continues the same gzip member: it writes
+ * no header and carries the CRC and length over into the trailer.
+ */
+public class ParallelGzipOutputStream extends OutputStream implements AdjustableCompression, AbortableCompression {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private OutputStream out;
+    private int level;
+    private int blockSize;
+    private int threads;
+    private ExecutorService compressors;
+
+    private byte[] block;
+    private int blockLength = 0;
+    private byte[] previousBlock = null;
+    private int previousBlockLength = 0;
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private CRC32 crc = new CRC32();
+    private long totalIn = 0;
+    private long bytesWritten = 0;
+    // state of the member before this stream took over (resumed from a checkpoint)
+    private long baseCrc = 0;
+    private long baseLength = 0;
+    private boolean closed = false;
+
+    // per compressor thread, indexed by level + 1 (levels -1 to 9)
+    private final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+    };
+    // all of them, to end once the stream is done with
+    private final List<Deflater> allDeflaters = new ArrayList<Deflater>();
+
+    /**
+     * Position in the gzip stream where the output no longer depends on
+     * earlier input, with what is needed to finish the member from there.
+     */
+    public static class Checkpoint {
+        private long compressedOffset;
+        private long uncompressedOffset;
+        private long crc;
+
+        public Checkpoint(long compressedOffset, long uncompressedOffset, long crc) {
+            this.compressedOffset = compressedOffset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.crc = crc;
+        }
+
+        /** number of gzip bytes (header included) before the checkpoint */
+        public long getCompressedOffset() { return compressedOffset; }
+        /** number of input bytes before the checkpoint */
+        public long getUncompressedOffset() { return uncompressedOffset; }
+        /** CRC32 of the input before the checkpoint */
+        public long getCrc() { return crc; }
+    }
+
+    /**
+     * @return bytes of heap the stream holds at most: the block being
+     * filled and up to 2 * threads + 1 blocks being compressed, each with
+     * its output (at most about as large), plus a deflate buffer per thread.
+     */
+    public static long getMemoryFootprint(int threads, int blockSize) {
+        threads = Math.max(1, threads);
+        return (2L * threads + 2) * 2 * blockSize + threads * 64L * 1024;
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+        this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out to which the gzip stream is written
+     * @param threads number of compressing threads
+     * @param blockSize size of the independently compressed blocks
+     * @param level deflate compression level
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level) throws IOException {
+        this(out, threads, blockSize, level, null);
+    }
+
+    /**
+     * @param out to which the gzip stream is written. When resuming, it
+     * receives the stream from the checkpoint's compressed offset on.
+     * @param threads number of compressing threads
+     * @param blockSize size of the independently compressed blocks
+     * @param level deflate compression level
+     * @param resumeFrom checkpoint taken by an earlier stream with the same
+     * block size, or null to start a new gzip member.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level, Checkpoint resumeFrom) throws IOException {
+        if (blockSize < DICTIONARY_SIZE) throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+        checkLevel(level);
+        this.out = out;
+        this.threads = Math.max(1, threads);
+        this.blockSize = blockSize;
+        this.level = level;
+        this.block = new byte[blockSize];
+        this.compressors = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gzip-compressor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (resumeFrom != null) {
+            bytesWritten = resumeFrom.getCompressedOffset();
+            baseLength = resumeFrom.getUncompressedOffset();
+            baseCrc = resumeFrom.getCrc();
+        } else {
+            out.write(HEADER);
+            bytesWritten = HEADER.length;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        crc.update(b, off, len);
+        totalIn += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) submitBlock(false);
+        }
+    }
+
+    /**
+     * Ends the current block, so that the data written from now on goes
+     * into blocks compressed at the new level.
+     */
+    @Override
+    public void setLevel(int level) throws IOException {
+        if (level == this.level) return;
+        checkLevel(level);
+        if (blockLength > 0) submitBlock(false);
+        this.level = level;
+    }
+
+    @Override
+    public int getLevel() { return level; }
+
+    /**
+     * Writes out the blocks compressed so far. Input not yet forming a
+     * whole block is kept, so the output does not depend on flush() calls.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.getFirst().isDone()) writeCompressed(pending.removeFirst());
+        out.flush();
+    }
+
+    /**
+     * Ends the current block and writes out everything compressed so far.
+     * The next block is compressed without the previous one as dictionary.
+     *
+     * @return the state a stream resuming from here starts with.
+     */
+    public Checkpoint checkpoint() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (blockLength > 0) submitBlock(false);
+        while (!pending.isEmpty()) writeCompressed(pending.removeFirst());
+        previousBlock = null;
+        previousBlockLength = 0;
+        return new Checkpoint(bytesWritten, baseLength + totalIn, getCrc());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            submitBlock(true);
+            while (!pending.isEmpty()) writeCompressed(pending.removeFirst());
+
+            // trailer: CRC32 and uncompressed size, little endian
+            writeIntLE((int) getCrc());
+            writeIntLE((int) (baseLength + totalIn));
+            out.flush();
+            out.close();
+        } finally {
+            closed = true;
+            release();
+        }
+    }
+
+    /**
+     * Gives up on the output: stops the compressor threads and frees their
+     * deflaters' native memory, without writing anything more.
+     */
+    @Override
+    public void abort() {
+        if (closed) return;
+        closed = true;
+        release();
+    }
+
+    private void release() {
+        compressors.shutdownNow();
+        synchronized (allDeflaters) {
+            // end() waits for a deflate() in progress; the next one fails, unread
+            for (Deflater deflater : allDeflaters) deflater.end();
+            allDeflaters.clear();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        final byte[] dictionary = previousBlock;
+        final int dictionaryLength = Math.min(DICTIONARY_SIZE, previousBlockLength);
+        final int dictionaryOffset = previousBlockLength - dictionaryLength;
+        final boolean finish = last;
+        final int blockLevel = level;
+
+        pending.add(compressors.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return deflateBlock(input, inputLength, dictionary, dictionaryOffset, dictionaryLength, blockLevel, finish);
+            }
+        }));
+
+        previousBlock = input;
+        previousBlockLength = inputLength;
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        // keep the number of blocks in memory bounded
+        while (pending.size() > threads * 2) writeCompressed(pending.removeFirst());
+        while (!pending.isEmpty() && pending.getFirst().isDone()) writeCompressed(pending.removeFirst());
+    }
+
+    private static void checkLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+    }
+
+    private byte[] deflateBlock(byte[] input, int inputLength, byte[] dictionary, int dictionaryOffset,
+            int dictionaryLength, int level, boolean finish) {
+        // one deflater per thread and level, so that levels alternating per
+        // file (adaptive compression) do not reallocate zlib state. Changing
+        // the level of a deflater in place would make its next deflate() call
+        // apply the parameters only.
+        Deflater[] byLevel = deflaters.get();
+        Deflater deflater = byLevel[level + 1];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            byLevel[level + 1] = deflater;
+            synchronized (allDeflaters) {
+                allDeflaters.add(deflater);
+            }
+        } else {
+            deflater.reset();
+        }
+        if (dictionary != null && dictionaryLength > 0) {
+            deflater.setDictionary(dictionary, dictionaryOffset, dictionaryLength);
+        }
+        deflater.setInput(input, 0, inputLength);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        if (finish) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+        } else {
+            // sync flush ends the block on a byte boundary without ending the stream
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+            } while (n == buffer.length || !deflater.needsInput());
+        }
+        return compressed.toByteArray();
+    }
+
+    private long getCrc() {
+        if (baseLength == 0) return crc.getValue();
+        return crc32Combine(baseCrc, crc.getValue(), totalIn);
+    }
+
+    /**
+     * CRC32 of two sequences concatenated, from the CRC32 of each and the
+     * length of the second (zlib's crc32_combine).
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) return crc1;
+
+        long[] even = new long[32]; // operator for 2^n zero bits
+        long[] odd = new long[32];  // operator for 2^(n+1) zero bits
+        odd[0] = 0xedb88320L;       // CRC-32 polynomial
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // 2 zero bits
+        gf2MatrixSquare(odd, even); // 4 zero bits
+
+        // apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0) break;
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+
+    private void writeCompressed(Future<byte[]> future) throws IOException {
+        try {
+            byte[] compressed = future.get();
+            out.write(compressed);
+            bytesWritten += compressed.length;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private void writeIntLE(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,172 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the content of a single part in chunks borrowed from a ChunkPool.
+ *
+ * The content is read into the chunks once, and then read back (for hashing
+ * and as the HTTP request body) through newInputStream() without copying.
+ * release() must be called once the part is no longer needed.
+ */
+public class PartBuffer {
+    private ChunkPool pool;
+    private long capacity;
+    private long length = 0;
+    private List<byte[]> chunks = new ArrayList<byte[]>();
+
+    // reading the uploader's input stream (includes waiting on a pipe), and tree hashing
+    private static final Metrics.Stage inputStage = Metrics.global().stage("input");
+    private static final Metrics.Stage hashStage = Metrics.global().stage("hash");
+
+    /**
+     * @param pool from which the chunks are borrowed
+     * @param capacity maximum number of bytes held by this part (= part size)
+     */
+    public PartBuffer(ChunkPool pool, long capacity) {
+        this.pool = pool;
+        this.capacity = capacity;
+    }
+
+    public long getLength() { return length; }
+
+    /**
+     * Reads from the input until the part is full or the input reaches EOF.
+     *
+     * @return number of bytes read. 0 means EOF was hit before reading anything.
+     */
+    public long readFrom(InputStream in) throws IOException {
+        return readFrom(in, null);
+    }
+
+    /**
+     * Same as readFrom(in), but also feeds the bytes to the given tree hash
+     * while they are still hot in the cache, so the part is never re-read
+     * for hashing.
+     */
+    public long readFrom(InputStream in, TreeHash hash) throws IOException {
+        int chunkSize = pool.getChunkSize();
+        while (length < capacity) {
+            int offsetInChunk = (int) (length % chunkSize);
+            if (offsetInChunk == 0) {
+                try {
+                    chunks.add(pool.take());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+                }
+            }
+            byte[] chunk = chunks.get(chunks.size() - 1);
+            int toRead = (int) Math.min(chunkSize - offsetInChunk, capacity - length);
+            long start = System.nanoTime();
+            int subReadCount = in.read(chunk, offsetInChunk, toRead);
+            if (subReadCount > 0) inputStage.record(subReadCount, start);
+            if (subReadCount == -1) {
+                if (offsetInChunk == 0) {
+                    // the chunk just taken is not needed
+                    pool.release(chunks.remove(chunks.size() - 1));
+                }
+                break;
+            }
+            if (hash != null) {
+                start = System.nanoTime();
+                hash.update(chunk, offsetInChunk, subReadCount);
+                hashStage.record(subReadCount, start);
+            }
+            length += subReadCount;
+        }
+        return length;
+    }
+
+    /**
+     * Fills the part with chunks taken from the channel, until the part is
+     * full or the channel reaches EOF. The chunks are kept as they are, so
+     * the channel must use the same pool as this part, and the part size
+     * must be a multiple of the chunk size.
+     *
+     * @return number of bytes taken. 0 means EOF was hit before taking anything.
+     */
+    public long fillFrom(ChunkChannel channel, TreeHash hash) throws IOException {
+        if (channel.getPool() != pool) throw new IllegalArgumentException("channel uses a different pool");
+        if (capacity % pool.getChunkSize() != 0) throw new IllegalArgumentException("part size must be a multiple of the chunk size");
+
+        while (length < capacity) {
+            if (length % pool.getChunkSize() != 0) break; // the last, shorter chunk was taken
+            ChunkChannel.Chunk chunk = channel.take();
+            if (chunk == null) break;
+            chunks.add(chunk.getData());
+            if (hash != null) {
+                long start = System.nanoTime();
+                hash.update(chunk.getData(), 0, chunk.getLength());
+                hashStage.record(chunk.getLength(), start);
+            }
+            length += chunk.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return a new stream over the current content. Supports mark/reset,
+     * so that it can be re-sent if the request is retried.
+     */
+    public InputStream newInputStream() {
+        return new PartInputStream();
+    }
+
+    /**
+     * Returns all chunks to the pool. The part must not be used afterwards.
+     */
+    public void release() {
+        for (byte[] chunk : chunks) pool.release(chunk);
+        chunks.clear();
+        length = 0;
+    }
+
+    private class PartInputStream extends InputStream {
+        private long pos = 0;
+        private long mark = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= length) return -1;
+            int chunkSize = pool.getChunkSize();
+            byte[] chunk = chunks.get((int) (pos / chunkSize));
+            int offsetInChunk = (int) (pos % chunkSize);
+            int n = (int) Math.min(len, Math.min(chunkSize - offsetInChunk, length - pos));
+            System.arraycopy(chunk, offsetInChunk, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - pos);
+        }
+
+        @Override
+        public boolean markSupported() { return true; }
+
+        @Override
+        public synchronized void mark(int readlimit) { mark = pos; }
+
+        @Override
+        public synchronized void reset() { pos = mark; }
+    }
+}
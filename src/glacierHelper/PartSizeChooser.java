@@ -0,0 +1,153 @@
+package glacierHelper;
+
+/**
+ * Picks the part size of an upload.
+ *
+ * Glacier accepts part sizes of 1MB times a power of two, up to 4GB, and
+ * at most 10,000 parts per archive. So the size of the archive, if known,
+ * sets a minimum part size. Above that, larger parts mean fewer requests
+ * (aiming at about TARGET_PARTS of them, with parts of at most the
+ * default size), but more memory: (concurrency + 1) parts are buffered at
+ * a time, and must fit the memory budget.
+ *
+ * Without a size hint, the default part size is used (archives up to
+ * ~1.25TB), made smaller if the memory budget requires it.
+ */
+public class PartSizeChooser {
+    public static final long MB = 1024 * 1024;
+    public static final long MIN_PART_SIZE = MB;
+    public static final long MAX_PART_SIZE = 4096 * MB;
+    public static final long MAX_PARTS = 10000;
+    public static final long DEFAULT_PART_SIZE = 128 * MB;
+    // number of parts aimed at: more makes the request overhead show, fewer wastes memory for small archives
+    private static final long TARGET_PARTS = 1000;
+    // heap kept for the SDK, the tar.gz stream etc.
+    private static final long HEAP_RESERVE = 128 * MB;
+
+    private long sizeHint = -1;
+    private long partSize = 0;
+    private int concurrency = 1;
+    private long memoryBudget = Runtime.getRuntime().maxMemory() - HEAP_RESERVE;
+    private boolean verbose = true;
+
+    /**
+     * @param sizeHint expected archive size in bytes (an upper bound is best), or -1 if unknown
+     */
+    public void setSizeHint(long sizeHint) { this.sizeHint = sizeHint; }
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    /** bytes available for the part buffers of this upload (defaults to the max heap less 128MB) */
+    public void setMemoryBudget(long memoryBudget) { this.memoryBudget = memoryBudget; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    /**
+     * Makes choose() return the given part size (e.g. given on the command
+     * line), unless resuming an upload with another one.
+     * @throws IllegalArgumentException if Glacier does not accept it
+     */
+    public void setPartSize(long partSize) {
+        if (!isValid(partSize)) throw new IllegalArgumentException("Part size must be 1MB times a power of two, up to 4GB: " + partSize);
+        this.partSize = partSize;
+    }
+
+    /**
+     * @return true if the status is of an upload in progress, whose part size is then kept
+     */
+    public static boolean isResuming(PartialUploadStatus status) {
+        return status != null && status.getUploadId() != null && status.getPartSize() > 0;
+    }
+
+    /**
+     * @return a valid part size
+     */
+    public long choose() {
+        if (partSize > 0) {
+            if (sizeHint > partSize * MAX_PARTS) {
+                System.err.printf("Warning: %s does not fit in %d parts of %d MB.\n", describe(sizeHint), MAX_PARTS, partSize / MB);
+            }
+            return partSize;
+        }
+        long memoryMax = floorPowerOfTwo(memoryBudget / (concurrency + 1));
+
+        if (sizeHint < 0) {
+            long size = Math.min(DEFAULT_PART_SIZE, memoryMax);
+            System.err.printf("Warning: archive size unknown, using %d MB parts: the upload will fail beyond %s."
+                    + " Give a size hint to size parts for larger archives.\n", size / MB, describe(size * MAX_PARTS));
+            return size;
+        }
+
+        // 1/8 of margin, for compression overhead and files growing meanwhile
+        long needed = ceilPowerOfTwo((sizeHint + sizeHint / 8) / MAX_PARTS);
+        if (needed > MAX_PART_SIZE) {
+            throw new IllegalArgumentException(describe(sizeHint) + " is more than a Glacier archive can hold");
+        }
+        // parts larger than the default only when needed: they cost more to retry
+        long preferred = Math.min(floorPowerOfTwo(sizeHint / TARGET_PARTS), Math.min(memoryMax, DEFAULT_PART_SIZE));
+        long size = Math.max(needed, preferred);
+        if (size > memoryMax) {
+            System.err.printf("Warning: %s needs parts of %d MB at least, %d MB of buffers with concurrency %d."
+                    + " Raise -Xmx, or lower the concurrency.\n", describe(sizeHint), size / MB,
+                    size / MB * (concurrency + 1), concurrency);
+        }
+        if (verbose) System.out.printf("Part size %d MB for about %s (%d parts).\n", size / MB, describe(sizeHint),
+                (sizeHint + size - 1) / size);
+        return size;
+    }
+
+    /**
+     * @return the part size of the upload being resumed with the status,
+     * which must not change, or a new choice.
+     */
+    public long choose(PartialUploadStatus status) {
+        if (isResuming(status)) {
+            if (verbose) System.out.println("Part size " + status.getPartSize() / MB + " MB, as in the upload being resumed.");
+            return status.getPartSize();
+        }
+        return choose();
+    }
+
+    /**
+     * @return bytes, from a size like "500G", "1.5T", "200M" or "12345"
+     */
+    public static long parseSize(String size) {
+        size = size.trim().toUpperCase();
+        long unit = 1;
+        char last = size.isEmpty() ? ' ' : size.charAt(size.length() - 1);
+        if (last == 'B' && size.length() > 1) {
+            size = size.substring(0, size.length() - 1);
+            last = size.charAt(size.length() - 1);
+        }
+        int shift = "KMGT".indexOf(last);
+        if (shift >= 0) {
+            unit = 1L << (10 * (shift + 1));
+            size = size.substring(0, size.length() - 1);
+        }
+        try {
+            return (long) (Double.parseDouble(size) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+    }
+
+    /**
+     * @return true if Glacier accepts the part size
+     */
+    public static boolean isValid(long partSize) {
+        return partSize >= MIN_PART_SIZE && partSize <= MAX_PART_SIZE && partSize % MB == 0
+                && Long.bitCount(partSize / MB) == 1;
+    }
+
+    private static long floorPowerOfTwo(long bytes) {
+        if (bytes < MIN_PART_SIZE) return MIN_PART_SIZE;
+        return Math.min(MAX_PART_SIZE, Long.highestOneBit(bytes / MB) * MB);
+    }
+
+    private static long ceilPowerOfTwo(long bytes) {
+        long partSize = MIN_PART_SIZE;
+        while (partSize < bytes) partSize *= 2;
+        return partSize;
+    }
+
+    private static String describe(long bytes) {
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
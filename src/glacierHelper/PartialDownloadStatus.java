@@ -0,0 +1,57 @@
+package glacierHelper;
+
+/**
+ * Keeps the retrieval job and the ranges already written to the file in a
+ * 'bookmark' file during a ranged download (see RangedDownloader), so that
+ * an interrupted download only fetches the missing ranges when resumed.
+ * Same journal as PartialUploadStatus; a range is recorded once it is
+ * written and its tree hash verified.
+ */
+public class PartialDownloadStatus extends PartialUploadStatus {
+
+    public PartialDownloadStatus(String fileName) {
+        super(basePath + "partialDownloadStatus." + fileName + ".journal", null);
+    }
+
+    /**
+     * Associates the download with an archive retrieval job. Ranges are
+     * only valid for the job, archive and chunk size they were recorded with.
+     */
+    public synchronized void setJob(String jobId, String archiveId, long chunkSize) {
+        set("jobId", jobId);
+        set("archiveId", archiveId);
+        set("chunkSize", String.valueOf(chunkSize));
+        saveFile();
+    }
+
+    public String getJobId() {
+        return get("jobId");
+    }
+
+    public String getArchiveId() {
+        return get("archiveId");
+    }
+
+    /**
+     * @return chunk size the ranges were recorded with, or -1
+     */
+    public long getChunkSize() {
+        String chunkSize = get("chunkSize");
+        return (chunkSize != null) ? Long.parseLong(chunkSize) : -1;
+    }
+
+    public void bookmarkRange(long first, long length, String treeHash) {
+        bookmarkSuccessfulUpload(contentRange(first, length), treeHash);
+    }
+
+    /**
+     * @return tree hash of the range, if it was downloaded, or null
+     */
+    public String getRangeChecksum(long first, long length) {
+        return getChecksum(contentRange(first, length));
+    }
+
+    private static String contentRange(long first, long length) {
+        return "bytes " + first + "-" + (first + length - 1) + "/*";
+    }
+}
@@ -1,41 +1,99 @@
 package glacierHelper;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.amazonaws.util.BinaryUtils;
 
 /**
  * Keeps contentRange and checkSum of each part in a 'bookmark' file during
  * multi-part upload, so that the upload can be resumed afterwards in case of
  * transient errors.
+ *
+ * The bookmark is an append-only journal. After an 8-byte header, each
+ * change is one record:
+ *   type (1 byte) | payload length (4) | payload | CRC32 of the above (4)
+ * A completed part is a fixed-size PART record: first byte and length of
+ * the range, tree hash (32 bytes) and time of upload. Other values are SET
+ * and REMOVE records of a key (and value) as modified UTF-8.
+ *
+ * Records are written as they come and forced to disk in batches, so a
+ * crash loses at most the last few of them; a torn last record is dropped
+ * when the journal is read back. The journal is rewritten without its
+ * superseded records when it is opened again. Bookmarks from the older
+ * .properties files are loaded, and converted into a journal.
  */
 public class PartialUploadStatus {
     static final String basePath = "./";
 
+    private static final byte[] MAGIC = { 'G', 'L', 'C', 'R', 'J', 'N', 'L', '1' };
+    private static final byte PART = 'P';
+    private static final byte SET = 'S';
+    private static final byte REMOVE = 'R';
+    private static final int PART_PAYLOAD_SIZE = 8 + 8 + 32 + 8;
+    private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+    // records are forced to disk every SYNC_BATCH records, or once SYNC_INTERVAL ms have passed
+    private static final int SYNC_BATCH = 16;
+    private static final long SYNC_INTERVAL = 1000;
+    private static final Pattern RANGE_KEY = Pattern.compile("bytes(\\d+)-(\\d+)/\\*");
+
     private Properties status;
+    private Map<String, Long> uploadTimes = new HashMap<String, Long>();
     private String fullFileName;
+    private File migratedFrom = null;
+    private boolean rewriteNeeded = false;
+    private FileChannel journal = null;
+    private int unsynced = 0;
+    private long lastSync = 0;
 
     /**
      * Prepares the 'bookmark' file where record of partial uploads will be kept
      */
     public PartialUploadStatus(String fileName) {
-        fullFileName = basePath + "partialUploadStatus."+fileName+".properties";
+        this(basePath + "partialUploadStatus."+fileName+".journal", basePath + "partialUploadStatus."+fileName+".properties");
+    }
+
+    /**
+     * @param propertiesFileName bookmark of the former format to load if there is no journal, or null
+     */
+    PartialUploadStatus(String journalFileName, String propertiesFileName) {
+        fullFileName = journalFileName;
         status = new Properties();
 
-        FileInputStream in;
+        File file = new File(fullFileName);
+        File propertiesFile = (propertiesFileName != null) ? new File(propertiesFileName) : null;
         try {
-            in = new FileInputStream(fullFileName);
-            status.load(in);
-            in.close();
-        } catch (FileNotFoundException e) {
-            // no problem. A new upload.
+            if (file.exists()) {
+                load(file);
+            } else if (propertiesFile != null && propertiesFile.exists()) {
+                migrate(propertiesFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Failed to load previous partial upload status from file:"+fullFileName);
             System.err.println("Will upload everything from the beginning");
+            status.clear();
+            uploadTimes.clear();
+            rewriteNeeded = true;
         }
     }
 
@@ -44,24 +102,79 @@ public class PartialUploadStatus {
      * Separate PartialUploadStatus object and bookmark file should be used for
      * each upload IDs.
      */
-    public void setUploadId(String uploadId) {
-        status.setProperty("uploadId", uploadId);
+    public synchronized void setUploadId(String uploadId) {
+        set("uploadId", uploadId);
+        saveFile();
     }
 
     public String getUploadId() {
         return status.getProperty("uploadId");
     }
 
+    public synchronized void setPartSize(long partSize) {
+        set("partSize", String.valueOf(partSize));
+    }
+
+    /**
+     * @return part size of the upload, or -1 if not recorded (older bookmarks).
+     */
+    public long getPartSize() {
+        return Long.parseLong(status.getProperty("partSize", "-1"));
+    }
+
+    /**
+     * Settings the archive was produced with. Checkpoints are only valid
+     * for an archive produced with the same settings.
+     */
+    public synchronized void setArchiveSettings(String settings) {
+        if (!settings.equals(status.getProperty("archiveSettings"))) {
+            for (String key : status.stringPropertyNames()) {
+                if (key.startsWith("checkpoint.")) remove(key);
+            }
+        }
+        set("archiveSettings", settings);
+    }
+
+    public String getArchiveSettings() {
+        return status.getProperty("archiveSettings");
+    }
+
+    /**
+     * Keeps the last checkpoint of the archive taken within each part.
+     * Not forced to disk right away: a checkpoint only matters to a resume
+     * once the part before it is uploaded, and bookmarked.
+     */
+    public synchronized void setCheckpoint(long partIndex, ArchiveCheckpoint checkpoint) {
+        set("checkpoint." + partIndex, checkpoint.toString());
+    }
+
+    /**
+     * @return the last checkpoint taken within the part, or null.
+     */
+    public synchronized ArchiveCheckpoint getCheckpoint(long partIndex) {
+        String value = status.getProperty("checkpoint." + partIndex);
+        return (value != null) ? ArchiveCheckpoint.parse(value) : null;
+    }
+
     private String escapeKeyStr(String key) {
         return key.replaceAll("[=: ]+", "");
     }
 
     /**
      * records the successful partial upload in the bookmark file.
+     * May be called from several upload threads; parts can finish in any order.
      */
-    public void bookmarkSuccessfulUpload(String contentRange, String checkSum) {
-        status.setProperty(escapeKeyStr(contentRange), checkSum);
-        saveFile();
+    public synchronized void bookmarkSuccessfulUpload(String contentRange, String checkSum) {
+        String key = escapeKeyStr(contentRange);
+        Matcher range = RANGE_KEY.matcher(key);
+        if (!range.matches()) throw new IllegalArgumentException("not a content range: " + contentRange);
+        long time = System.currentTimeMillis();
+        beginChange();
+        status.setProperty(key, checkSum);
+        uploadTimes.put(key, time);
+
+        long first = Long.parseLong(range.group(1));
+        append(partRecord(first, Long.parseLong(range.group(2)) - first + 1, checkSum, time));
     }
 
     /**
@@ -80,29 +193,262 @@ public class PartialUploadStatus {
         }
     }
 
+    /**
+     * @return checksum of the part uploaded with contentRange, or null.
+     */
+    public String getChecksum(String contentRange) {
+        return status.getProperty(escapeKeyStr(contentRange));
+    }
+
     /**
      * delete the bookmark file
      */
-    public void deleteFile() {
+    public synchronized void deleteFile() {
+        closeJournal();
         File file = new File(fullFileName);
         file.delete();
+        if (migratedFrom != null) migratedFrom.delete();
     }
 
     /**
-     * Saves the current status in the bookmark file.
+     * Forces what has been recorded so far to disk.
      */
-    public void saveFile() {
-        FileOutputStream out;
+    public synchronized void saveFile() {
         try {
-            out = new FileOutputStream(fullFileName);
-            status.store(out, "Auto-generated partial upload status. Can be deleted safely.");
-            out.close();
-        } catch (FileNotFoundException e) {
+            openJournal();
+            sync();
+        } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Failed to save partial upload status to file:"+fullFileName);
+        }
+    }
+
+    String get(String key) {
+        return status.getProperty(key);
+    }
+
+    void set(String key, String value) {
+        if (value.equals(status.getProperty(key))) return;
+        beginChange();
+        status.setProperty(key, value);
+        append(keyRecord(SET, key, value));
+    }
+
+    private void remove(String key) {
+        if (!status.containsKey(key)) return;
+        beginChange();
+        status.remove(key);
+        append(keyRecord(REMOVE, key, null));
+    }
+
+    /**
+     * Opens the journal before the status is changed, as opening it may
+     * write the current status out.
+     */
+    private void beginChange() {
+        try {
+            openJournal();
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Failed to save partial upload status to file:"+fullFileName);
         }
     }
+
+    private void append(ByteBuffer record) {
+        if (journal == null) return; // failed to open, already reported
+        try {
+            while (record.hasRemaining()) journal.write(record);
+            unsynced++;
+            if (unsynced >= SYNC_BATCH || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL) sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to save partial upload status to file:"+fullFileName);
+        }
+    }
+
+    private void sync() throws IOException {
+        if (unsynced > 0) journal.force(false);
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens the journal for appending, first writing it anew from the
+     * current status if it has none yet or holds superseded records.
+     */
+    private void openJournal() throws IOException {
+        if (journal != null) return;
+        File file = new File(fullFileName);
+        if (rewriteNeeded || !file.exists()) {
+            writeCompacted(file);
+            rewriteNeeded = false;
+        }
+        journal = new RandomAccessFile(file, "rw").getChannel();
+        journal.position(journal.size());
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // being deleted anyway
+        }
+        journal = null;
+    }
+
+    /**
+     * Writes the current status into a new journal, which then replaces the
+     * old one. Part records keep their upload times.
+     */
+    private void writeCompacted(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            write(channel, ByteBuffer.wrap(MAGIC));
+            for (String key : new TreeSet<String>(status.stringPropertyNames())) {
+                Matcher range = RANGE_KEY.matcher(key);
+                if (range.matches()) {
+                    long first = Long.parseLong(range.group(1));
+                    Long time = uploadTimes.get(key);
+                    write(channel, partRecord(first, Long.parseLong(range.group(2)) - first + 1,
+                            status.getProperty(key), (time != null) ? time : 0));
+                } else {
+                    write(channel, keyRecord(SET, key, status.getProperty(key)));
+                }
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // renameTo does not replace an existing file everywhere
+            file.delete();
+            if (!temp.renameTo(file)) throw new IOException("Failed to replace " + file);
+        }
+        if (migratedFrom != null) {
+            migratedFrom.delete();
+            migratedFrom = null;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Reads the journal back. Reading stops at the first record that is
+     * incomplete or fails its CRC, which can only be a torn last record.
+     */
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a partial upload status journal: " + file);
+
+            int records = 0;
+            while (true) {
+                int type = in.read();
+                if (type == -1) break;
+                byte[] payload;
+                long storedCrc;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_PAYLOAD_SIZE) throw new EOFException();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    storedCrc = in.readInt() & 0xffffffffL;
+                } catch (EOFException e) {
+                    System.err.println("Dropped an incomplete record at the end of " + file);
+                    rewriteNeeded = true;
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(ByteBuffer.allocate(4).putInt(payload.length).array());
+                crc.update(payload);
+                if (crc.getValue() != storedCrc) {
+                    System.err.println("Dropped a damaged record at the end of " + file);
+                    rewriteNeeded = true;
+                    break;
+                }
+                apply((byte) type, payload);
+                records++;
+            }
+            if (records > status.size()) rewriteNeeded = true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte type, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (type == PART) {
+            long first = in.readLong();
+            long length = in.readLong();
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            long time = in.readLong();
+            String key = escapeKeyStr(String.format("bytes %s-%s/*", first, first + length - 1));
+            status.setProperty(key, BinaryUtils.toHex(hash));
+            uploadTimes.put(key, time);
+        } else if (type == SET) {
+            String key = in.readUTF();
+            status.setProperty(key, in.readUTF());
+        } else if (type == REMOVE) {
+            status.remove(in.readUTF());
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * Loads a bookmark written in the former .properties format. The file
+     * is removed once the journal replacing it has been written.
+     */
+    private void migrate(File propertiesFile) throws IOException {
+        FileInputStream in = new FileInputStream(propertiesFile);
+        try {
+            status.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : status.stringPropertyNames()) {
+            if (RANGE_KEY.matcher(key).matches()) uploadTimes.put(key, propertiesFile.lastModified());
+        }
+        migratedFrom = propertiesFile;
+        rewriteNeeded = true;
+    }
+
+    private static ByteBuffer partRecord(long first, long length, String checkSum, long time) {
+        ByteBuffer payload = ByteBuffer.allocate(PART_PAYLOAD_SIZE);
+        payload.putLong(first).putLong(length).put(BinaryUtils.fromHex(checkSum)).putLong(time);
+        return record(PART, payload.array());
+    }
+
+    private static ByteBuffer keyRecord(byte type, String key, String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            if (value != null) out.writeUTF(value);
+            out.close();
+            return record(type, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot record " + key, e);
+        }
+    }
+
+    private static ByteBuffer record(byte type, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + payload.length + 4);
+        record.put(type).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
 }
@@ -0,0 +1,425 @@
+package glacierHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Downloads the output of a completed archive retrieval job in byte ranges
+ * fetched in parallel, each written at its place in the file with
+ * positional writes.
+ *
+ * Ranges are a power of two MB long and aligned on their size, so that
+ * Glacier returns the tree hash of each one: a range is checked as it
+ * arrives (and fetched again if it does not match), and the archive's tree
+ * hash is then computed from the range hashes, without reading the file
+ * back. With a PartialDownloadStatus, ranges are bookmarked once verified,
+ * and a resumed download only fetches the missing ones.
+ *
+ * openStream() reads the output as a stream instead, with the ranges
+ * ahead of the reader fetched in parallel, e.g. to extract the archive
+ * while it downloads.
+ */
+public class RangedDownloader {
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AmazonGlacierClient client;
+    private String vaultName;
+    private int concurrency = 4;
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean verbose = true;
+    private RetryPolicy retryPolicy;
+    private PartialDownloadStatus status = null;
+
+    private AtomicLong bytesDownloaded = new AtomicLong();
+    private long startTime;
+
+    private static final Metrics.Stage downloadStage = Metrics.global().stage("download");
+
+    public RangedDownloader(AmazonGlacierClient client, String vaultName) {
+        this.client = client;
+        this.vaultName = vaultName;
+        this.retryPolicy = new RetryPolicy();
+        this.retryPolicy.setCircuitBreaker(new CircuitBreaker());
+    }
+
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    public void setRetryPolicy(RetryPolicy retryPolicy) { this.retryPolicy = retryPolicy; }
+
+    /**
+     * @param chunkSize length of the ranges: a power of two MB, so that each range has a tree hash
+     */
+    public void setChunkSize(long chunkSize) {
+        if (!PartSizeChooser.isValid(chunkSize)) {
+            throw new IllegalArgumentException("Chunk size must be 1MB times a power of two, up to 4GB: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getChunkSize() { return chunkSize; }
+
+    /**
+     * Ranges recorded in the bookmark for the job are not fetched again;
+     * the bookmark must have been recorded with the same chunk size.
+     */
+    public void setPartialDownloadStatus(PartialDownloadStatus status) { this.status = status; }
+
+    /**
+     * Downloads the job output into the file, and deletes the bookmark once
+     * the whole archive is verified.
+     *
+     * @param size archive size, from DescribeJob
+     * @param treeHash archive tree hash, from DescribeJob
+     * @throws IOException if a range cannot be downloaded, or the archive does not match its tree hash
+     */
+    public void download(final String jobId, long size, String treeHash, File file) throws IOException, InterruptedException {
+        if (status != null && status.getChunkSize() != chunkSize) {
+            throw new IllegalStateException("The bookmark was recorded with chunks of " + status.getChunkSize() + " bytes");
+        }
+        boolean resuming = file.exists() && file.length() == size;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FileChannel channel = raf.getChannel();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        try {
+            raf.setLength(size);
+
+            int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            byte[][] digests = new byte[chunks][];
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            List<Integer> pending = new ArrayList<Integer>();
+            long skipped = 0;
+            for (int i = 0; i < chunks; i++) {
+                final long first = i * chunkSize;
+                final long length = Math.min(chunkSize, size - first);
+                String done = (status != null && resuming) ? status.getRangeChecksum(first, length) : null;
+                if (done != null) {
+                    digests[i] = BinaryUtils.fromHex(done);
+                    skipped += length;
+                    continue;
+                }
+                pending.add(i);
+                futures.add(workers.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        byte[] digest = downloadRange(jobId, first, length, new FileSink(channel));
+                        if (status != null) {
+                            // a range is bookmarked only once its data is on disk, or a crash could leave a hole a resume skips
+                            channel.force(false);
+                            status.bookmarkRange(first, length, BinaryUtils.toHex(digest));
+                        }
+                        printProgress(first, length);
+                        return digest;
+                    }
+                }));
+            }
+            if (verbose && skipped > 0) {
+                System.out.printf("Resuming: %d of %d ranges already downloaded.\n", chunks - pending.size(), chunks);
+            }
+
+            startTime = System.currentTimeMillis();
+            for (int j = 0; j < futures.size(); j++) {
+                try {
+                    digests[pending.get(j)] = futures.get(j).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw new IOException("Failed to download " + describe(pending.get(j), size) + ": " + cause, cause);
+                }
+            }
+            channel.force(false);
+
+            // the ranges are subtrees of the archive's tree hash
+            TreeHash archiveHash = new TreeHash();
+            for (byte[] digest : digests) archiveHash.appendDigest(digest);
+            String computed = archiveHash.digestHex();
+            if (treeHash != null && !computed.equalsIgnoreCase(treeHash)) {
+                // a range bookmarked by mistake cannot be told apart: start over next time
+                if (status != null) status.deleteFile();
+                throw new IOException("Archive checksum mismatch: expected " + treeHash + ", computed " + computed);
+            }
+            if (status != null) status.deleteFile();
+        } finally {
+            workers.shutdownNow();
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * @return stream of the job output, read while ranges ahead of the
+     * reader are fetched in parallel. Each range is checked against its tree
+     * hash, and the archive against treeHash at the end of the stream.
+     * Keeps up to concurrency + 1 ranges in memory. Must be closed.
+     */
+    public InputStream openStream(String jobId, long size, String treeHash) {
+        return new RangeStream(jobId, size, treeHash);
+    }
+
+    /**
+     * Where the data of a range goes.
+     */
+    private interface RangeSink {
+        /** called before each attempt, to drop what a failed attempt wrote */
+        void clear();
+        void write(long position, byte[] b, int off, int len) throws IOException;
+    }
+
+    private static class FileSink implements RangeSink {
+        private FileChannel channel;
+
+        FileSink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public void clear() {
+            // every attempt writes the whole range again
+        }
+
+        public void write(long position, byte[] b, int off, int len) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+            while (bytes.hasRemaining()) position += channel.write(bytes, position);
+        }
+    }
+
+    /**
+     * A range kept in chunks of a ChunkPool, until read by RangeStream.
+     */
+    private static class MemoryRange implements RangeSink {
+        private ChunkPool pool;
+        private List<byte[]> chunks = new ArrayList<byte[]>();
+        private long first;
+        private int length = 0;
+        private byte[] digest;
+
+        MemoryRange(ChunkPool pool, long first) {
+            this.pool = pool;
+            this.first = first;
+        }
+
+        public void clear() {
+            release();
+            length = 0;
+        }
+
+        public void write(long position, byte[] b, int off, int len) throws IOException {
+            // written in order, from the start of the range
+            while (len > 0) {
+                int inChunk = length % pool.getChunkSize();
+                if (inChunk == 0) {
+                    try {
+                        chunks.add(pool.take());
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+                    }
+                }
+                int n = Math.min(len, pool.getChunkSize() - inChunk);
+                System.arraycopy(b, off, chunks.get(chunks.size() - 1), inChunk, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void release() {
+            for (byte[] chunk : chunks) pool.release(chunk);
+            chunks.clear();
+        }
+    }
+
+    private class RangeStream extends InputStream {
+        private String jobId;
+        private long size;
+        private String treeHash;
+        private ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        private ChunkPool pool;
+        private LinkedList<Future<MemoryRange>> fetching = new LinkedList<Future<MemoryRange>>();
+        private long nextFirst = 0;
+        private TreeHash archiveHash = new TreeHash();
+        private MemoryRange current = null;
+        private int pos = 0;
+        private boolean eof = false;
+
+        RangeStream(String jobId, long size, String treeHash) {
+            this.jobId = jobId;
+            this.size = size;
+            this.treeHash = treeHash;
+            // a range is at least a chunk, and a multiple of it except at the end
+            int chunksPerRange = (int) (chunkSize / ChunkPool.DEFAULT_CHUNK_SIZE);
+            this.pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, (concurrency + 1) * chunksPerRange);
+            startTime = System.currentTimeMillis();
+            for (int i = 0; i < concurrency; i++) fetchNext();
+        }
+
+        private void fetchNext() {
+            if (nextFirst >= size) return;
+            final long first = nextFirst;
+            final long length = Math.min(chunkSize, size - first);
+            nextFirst += length;
+            fetching.add(workers.submit(new Callable<MemoryRange>() {
+                public MemoryRange call() throws Exception {
+                    MemoryRange range = new MemoryRange(pool, first);
+                    try {
+                        range.digest = downloadRange(jobId, first, length, range);
+                    } catch (Exception e) {
+                        range.release();
+                        throw e;
+                    }
+                    return range;
+                }
+            }));
+        }
+
+        /**
+         * @return false at the end of the archive
+         */
+        private boolean nextRange() throws IOException {
+            if (current != null) {
+                printProgress(current.first, current.length);
+                current.release();
+                current = null;
+            }
+            if (fetching.isEmpty()) {
+                String computed = archiveHash.digestHex();
+                if (treeHash != null && !computed.equalsIgnoreCase(treeHash)) {
+                    throw new IOException("Archive checksum mismatch: expected " + treeHash + ", computed " + computed);
+                }
+                return false;
+            }
+            // the next range is fetched while this one is read
+            fetchNext();
+            Future<MemoryRange> future = fetching.removeFirst();
+            try {
+                current = future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to download the archive: " + e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            archiveHash.appendDigest(current.digest);
+            pos = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (current == null || pos == current.length) {
+                if (eof) return -1;
+                if (!nextRange()) {
+                    eof = true;
+                    return -1;
+                }
+            }
+            int chunkSize = pool.getChunkSize();
+            int n = Math.min(Math.min(len, current.length - pos), chunkSize - pos % chunkSize);
+            System.arraycopy(current.chunks.get(pos / chunkSize), pos % chunkSize, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            workers.shutdownNow();
+            for (Future<MemoryRange> future : fetching) future.cancel(true);
+            fetching.clear();
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Fetches a range, retrying it if the transfer fails or the data does not match its tree hash.
+     *
+     * @return tree hash of the range
+     */
+    private byte[] downloadRange(final String jobId, final long first, final long length, final RangeSink sink) throws Exception {
+        final String range = "bytes=" + first + "-" + (first + length - 1);
+        return retryPolicy.call("Range " + range, new Callable<byte[]>() {
+            public byte[] call() {
+                long start = System.nanoTime();
+                sink.clear();
+                GetJobOutputResult result = client.getJobOutput(new GetJobOutputRequest()
+                .withVaultName(vaultName)
+                .withJobId(jobId)
+                .withRange(range));
+                TreeHash treeHash = new TreeHash();
+                InputStream in = result.getBody();
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long position = first;
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        if (position + n > first + length) throw new IOException("More data than requested in " + range);
+                        sink.write(position, buffer, 0, n);
+                        treeHash.update(buffer, 0, n);
+                        position += n;
+                    }
+                    if (position != first + length) {
+                        throw new IOException("Received " + (position - first) + " of the " + length + " bytes of " + range);
+                    }
+                } catch (InterruptedIOException e) {
+                    // not a network error: the download is being stopped
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    // a network error, retried like those of the SDK
+                    throw new AmazonClientException("Failed to read " + range, e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+                byte[] digest = treeHash.digest();
+                String computed = BinaryUtils.toHex(digest);
+                if (result.getChecksum() != null && !computed.equalsIgnoreCase(result.getChecksum())) {
+                    throw new AmazonClientException("Checksum mismatch in " + range,
+                            new IOException("expected " + result.getChecksum() + ", computed " + computed));
+                }
+                downloadStage.record(length, start);
+                return digest;
+            }
+        });
+    }
+
+    private void printProgress(long first, long length) {
+        long total = bytesDownloaded.addAndGet(length);
+        if (verbose) {
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.printf("Range downloaded (bytes=%d-%d), downloaded so far: %.2f GB (%.1f MB/s)\n",
+                    first, first + length - 1, total / 1024.0 / 1024 / 1024, total / 1024.0 / 1024 / seconds);
+        }
+    }
+
+    private String describe(int chunk, long size) {
+        long first = chunk * chunkSize;
+        return "bytes " + first + "-" + (Math.min(first + chunkSize, size) - 1);
+    }
+}
@@ -0,0 +1,143 @@
+package glacierHelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Sets the rate of a RateLimiter from a RateSchedule, and lets it be
+ * changed while uploads are running through a control file.
+ *
+ * The control file is checked every few seconds. When it exists, its
+ * first line that is not empty or a # comment overrides the schedule; it
+ * uses the same syntax, e.g.
+ *
+ *   echo pause > rate.ctl      (start no new part until the file changes)
+ *   echo 5 > rate.ctl          (5 MB/s)
+ *   rm rate.ctl                (back to the schedule given on the command line)
+ *
+ * Also prints the rate actually achieved, on each change and every
+ * [reportInterval] seconds.
+ */
+public class RateController implements Runnable {
+    private static final long POLL_INTERVAL = 5 * 1000;
+
+    private RateLimiter limiter = new RateLimiter(0);
+    private RateSchedule schedule;
+    private File controlFile;
+    private long reportInterval = 60 * 1000;
+    private boolean verbose = true;
+
+    private long controlFileModified = -1;
+    private RateSchedule controlSchedule = null;
+    private long appliedRate = Long.MIN_VALUE;
+    private long lastReportTime;
+    private long lastReportBytes;
+
+    /**
+     * @param schedule rates to apply, or null for no limit
+     * @param controlFile file overriding the schedule when it exists, or null
+     */
+    public RateController(RateSchedule schedule, String controlFile) {
+        this.schedule = (schedule != null) ? schedule : RateSchedule.constant(0);
+        this.controlFile = (controlFile != null) ? new File(controlFile) : null;
+    }
+
+    public RateLimiter getLimiter() { return limiter; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    /** seconds between reports of the achieved rate. 0 to report only changes. */
+    public void setReportInterval(long seconds) { this.reportInterval = seconds * 1000; }
+
+    /**
+     * Applies the current rate, and keeps updating it on a daemon thread.
+     */
+    public void start() {
+        lastReportTime = System.currentTimeMillis();
+        update();
+        Thread t = new Thread(this, "rate-controller");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            update();
+        }
+    }
+
+    /**
+     * Re-reads the control file if it changed, and applies the rate due now.
+     */
+    public synchronized void update() {
+        readControlFile();
+        long rate = ((controlSchedule != null) ? controlSchedule : schedule).currentRate();
+        long now = System.currentTimeMillis();
+        if (rate != appliedRate) {
+            if (rate == RateSchedule.PAUSE) {
+                limiter.setPaused(true);
+            } else {
+                limiter.setRate(rate);
+                limiter.setPaused(false);
+            }
+            if (verbose && appliedRate != Long.MIN_VALUE) report(now, "Upload rate changed to " + RateSchedule.describe(rate));
+            appliedRate = rate;
+        } else if (verbose && reportInterval > 0 && now - lastReportTime >= reportInterval) {
+            report(now, "Upload rate " + RateSchedule.describe(rate));
+        }
+    }
+
+    private void report(long now, String message) {
+        if (now - lastReportTime < 1000) {
+            // too short to say anything about the rate; keep counting
+            System.out.println(message);
+            return;
+        }
+        long bytes = limiter.getBytesAcquired();
+        double seconds = (now - lastReportTime) / 1000.0;
+        System.out.printf("%s (achieved %.1f MB/s over the last %.0f s)\n", message,
+                (bytes - lastReportBytes) / (1024.0 * 1024) / seconds, seconds);
+        lastReportTime = now;
+        lastReportBytes = bytes;
+    }
+
+    private void readControlFile() {
+        if (controlFile == null) return;
+        if (!controlFile.exists()) {
+            if (controlSchedule != null && verbose) System.out.println("Rate control file removed, back to the configured schedule.");
+            controlSchedule = null;
+            controlFileModified = -1;
+            return;
+        }
+        if (controlFile.lastModified() == controlFileModified) return;
+        controlFileModified = controlFile.lastModified();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(controlFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) continue;
+                    controlSchedule = RateSchedule.parse(line);
+                    if (verbose) System.out.println("Rate control file: " + line);
+                    return;
+                }
+                controlSchedule = null; // empty file
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // keep the previous setting, and try again when the file changes
+            System.err.println("Cannot read rate control file " + controlFile + ": " + e);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring rate control file " + controlFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package glacierHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of bytes sent, shared by any number of
+ * threads (e.g. all the part uploads of all the archives in a process).
+ *
+ * acquire() takes the tokens at once, running into debt if there are not
+ * enough, and then sleeps until the debt would be paid off. Callers are
+ * thus served in the order they come, each at the configured rate.
+ * Up to one second worth of unused rate can be saved up as a burst.
+ * Pausing does not stop bytes already being sent (that would stall an HTTP
+ * request half way); senders call awaitResumed() before starting a request.
+ */
+public class RateLimiter {
+    private double bytesPerSecond;
+    private double available = 0;
+    private long lastRefill = System.nanoTime();
+    private boolean paused = false;
+    private long bytesAcquired = 0;
+
+    private static final Metrics.Counter throttleWaits = Metrics.global().waitPoint("rate_limit");
+
+    /**
+     * @param bytesPerSecond rate limit. 0 or less for no limit.
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized long getRate() {
+        return (long) bytesPerSecond;
+    }
+
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            // no burst for the time spent paused
+            available = 0;
+            lastRefill = System.nanoTime();
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Waits until not paused.
+     */
+    public synchronized void awaitResumed() throws InterruptedException {
+        while (paused) wait();
+    }
+
+    /**
+     * @return bytes acquired so far, i.e. let through (with or without a limit)
+     */
+    public synchronized long getBytesAcquired() {
+        return bytesAcquired;
+    }
+
+    /**
+     * Waits until the given number of bytes may be sent.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            bytesAcquired += bytes;
+            if (bytesPerSecond <= 0) return;
+            refill();
+            available -= bytes;
+            waitNanos = (available < 0) ? (long) (-available / bytesPerSecond * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            throttleWaits.add(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            available = Math.min(bytesPerSecond, available + (now - lastRefill) / 1e9 * bytesPerSecond);
+        } else {
+            available = 0;
+        }
+        lastRefill = now;
+    }
+}
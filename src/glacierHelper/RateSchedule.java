@@ -0,0 +1,107 @@
+package glacierHelper;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Upload rate by time of day, e.g.
+ *
+ *   "12:00-13:00=pause,08:00-19:00=2,50"
+ *
+ * Comma separated; each item is a rate in MB/s ("0" for no limit) or
+ * "pause", optionally restricted to a range of the local time of day with
+ * "FROM-TO=" (a range may wrap around midnight, e.g. 22:00-06:00=0). The
+ * first range containing the current time wins; an item without a range
+ * gives the rate at any other time (no limit if there is none).
+ */
+public class RateSchedule {
+    /** rate meaning "do not send at all" */
+    public static final long PAUSE = -1;
+
+    private List<int[]> ranges = new ArrayList<int[]>(); // {from, to} in minutes of the day
+    private List<Long> rates = new ArrayList<Long>();
+    private long defaultRate = 0;
+
+    /**
+     * @param spec see the class comment. A plain number is a constant rate.
+     * @throws IllegalArgumentException if spec is malformed
+     */
+    public static RateSchedule parse(String spec) {
+        RateSchedule schedule = new RateSchedule();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.length() == 0) continue;
+            int eq = item.indexOf('=');
+            if (eq < 0) {
+                schedule.defaultRate = parseRate(item);
+                continue;
+            }
+            String[] times = item.substring(0, eq).split("-");
+            if (times.length != 2) throw new IllegalArgumentException("Invalid time range in rate schedule: " + item);
+            schedule.ranges.add(new int[] { parseTime(times[0]), parseTime(times[1]) });
+            schedule.rates.add(parseRate(item.substring(eq + 1)));
+        }
+        return schedule;
+    }
+
+    /**
+     * @return a constant rate in bytes/s
+     */
+    public static RateSchedule constant(long bytesPerSecond) {
+        RateSchedule schedule = new RateSchedule();
+        schedule.defaultRate = bytesPerSecond;
+        return schedule;
+    }
+
+    /**
+     * @return bytes/s at the given time: 0 for no limit, or PAUSE
+     */
+    public long rateAt(Calendar time) {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        for (int i = 0; i < ranges.size(); i++) {
+            int from = ranges.get(i)[0];
+            int to = ranges.get(i)[1];
+            boolean inRange = (from <= to) ? (minute >= from && minute < to) : (minute >= from || minute < to);
+            if (inRange) return rates.get(i);
+        }
+        return defaultRate;
+    }
+
+    public long currentRate() {
+        return rateAt(Calendar.getInstance());
+    }
+
+    /**
+     * @return human readable rate, as used in log messages
+     */
+    public static String describe(long bytesPerSecond) {
+        if (bytesPerSecond == PAUSE) return "paused";
+        if (bytesPerSecond <= 0) return "no limit";
+        return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024));
+    }
+
+    private static long parseRate(String rate) {
+        rate = rate.trim();
+        if (rate.equalsIgnoreCase("pause")) return PAUSE;
+        try {
+            double mb = Double.parseDouble(rate);
+            if (mb < 0) throw new IllegalArgumentException("Negative rate in rate schedule: " + rate);
+            return (long) (mb * 1024 * 1024);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rate in rate schedule: " + rate);
+        }
+    }
+
+    private static int parseTime(String time) {
+        String[] hm = time.trim().split(":");
+        try {
+            int hours = Integer.parseInt(hm[0]);
+            int minutes = (hm.length > 1) ? Integer.parseInt(hm[1]) : 0;
+            if (hm.length > 2 || hours < 0 || hours > 24 || minutes < 0 || minutes > 59) throw new NumberFormatException();
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time in rate schedule: " + time);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package glacierHelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+
+/**
+ * Restores many archives into a directory: initiates their retrieval jobs
+ * a few at a time, and downloads each job output (see RangedDownloader)
+ * as soon as the JobWatcher reports it complete, several at a time.
+ *
+ * Job outputs expire about a day after they complete, so jobs are only
+ * initiated while the archives in flight (initiated, not yet downloaded)
+ * stay within maxJobs and maxInFlight bytes, and, with a retrieval rate,
+ * while the bytes initiated stay within that many bytes per hour. A
+ * download only starts if the directory keeps minFree bytes free once all
+ * downloads in progress are written (part files left by an interrupted run
+ * count as written).
+ *
+ * With a journal (a 'bookmark' file), the jobs initiated and the archives
+ * downloaded are recorded, so that a rerun skips the archives restored,
+ * waits for the jobs initiated (or initiates them again once expired), and
+ * resumes partial downloads from their ranges.
+ */
+public class RetrievalScheduler {
+    private static final long REPORT_INTERVAL = 60000;
+
+    private AmazonGlacierClient client;
+    private String vaultName;
+    private File directory;
+    private int maxJobs = 100;
+    private long maxInFlight = 50L * 1024 * 1024 * 1024;
+    private long retrievalRate = 0; // bytes per hour, 0 for no limit
+    private int downloads = 2;
+    private int concurrency = 8;
+    private long chunkSize = RangedDownloader.DEFAULT_CHUNK_SIZE;
+    private long minFree = 1024L * 1024 * 1024;
+    private long pollInterval = 60; // in seconds
+    private boolean verbose = true;
+    private JobWatcher watcher = null;
+
+    private File journalFile = null;
+    private String journalName = null;
+    private FileOutputStream journal = null;
+    private Map<String, String> journalJobs = new HashMap<String, String>();
+    private Set<String> journalDone = new HashSet<String>();
+
+    private LinkedHashMap<String, Archive> archives = new LinkedHashMap<String, Archive>();
+    private LinkedList<Archive> queue = new LinkedList<Archive>(); // not initiated yet
+    private LinkedList<Archive> waiting = new LinkedList<Archive>(); // initiated, not downloading yet
+    private int downloading = 0;
+    private long inFlightBytes = 0;
+    private long downloadingBytes = 0;
+    private long initiatedBytes = 0;
+    private long restored = 0;
+    private long restoredBytes = 0;
+    private long skipped = 0;
+    private long failed = 0;
+    private long startTime;
+
+    private static final Metrics.Counter restoredCounter = Metrics.global().counter("glacier_archives_restored_total", "Archives restored");
+
+    /**
+     * An archive to restore, and where it stands.
+     */
+    private static class Archive {
+        String archiveId;
+        long size; // -1 until known
+        String jobId = null;
+        Future<DescribeJobResult> job = null;
+        long reserved = 0; // disk space still to be taken by its download
+
+        Archive(String archiveId, long size) {
+            this.archiveId = archiveId;
+            this.size = size;
+        }
+    }
+
+    public RetrievalScheduler(AmazonGlacierClient client, String vaultName, File directory) {
+        this.client = client;
+        this.vaultName = vaultName;
+        this.directory = directory;
+    }
+
+    /**
+     * @param maxJobs number of archives initiated and not yet downloaded
+     */
+    public void setMaxJobs(int maxJobs) { this.maxJobs = Math.max(1, maxJobs); }
+    /**
+     * @param maxInFlight bytes of archives initiated and not yet downloaded
+     */
+    public void setMaxInFlight(long maxInFlight) { this.maxInFlight = maxInFlight; }
+    /**
+     * @param retrievalRate bytes of archives initiated per hour, 0 for no limit
+     */
+    public void setRetrievalRate(long retrievalRate) { this.retrievalRate = Math.max(0, retrievalRate); }
+    /**
+     * @param downloads number of archives downloaded at once
+     */
+    public void setDownloads(int downloads) { this.downloads = Math.max(1, downloads); }
+    /**
+     * @param concurrency number of ranges downloaded in parallel, shared by the downloads
+     */
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    public void setChunkSize(long chunkSize) { this.chunkSize = chunkSize; }
+    /**
+     * @param minFree bytes to leave free in the directory
+     */
+    public void setMinFree(long minFree) { this.minFree = minFree; }
+    /**
+     * @param pollInterval for the watcher made here when none is set
+     */
+    public void setPollInterval(long pollInterval) { this.pollInterval = pollInterval; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    /** a watcher of the vault's jobs, e.g. one with a notification channel */
+    public void setJobWatcher(JobWatcher watcher) { this.watcher = watcher; }
+
+    /**
+     * Records the jobs and downloads in the journal of the given name, and
+     * reads what it holds from a previous run. Call before add().
+     */
+    public void setJournal(String name) throws IOException {
+        journalName = name;
+        journalFile = new File(PartialUploadStatus.basePath + "bulkRestoreStatus." + name + ".journal");
+        if (!journalFile.exists()) return;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                // a torn last line is ignored
+                if (fields[0].equals("J") && fields.length == 3) {
+                    journalJobs.put(fields[1], fields[2]);
+                } else if (fields[0].equals("D") && fields.length == 2) {
+                    journalDone.add(fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param size archive size, or -1 if not known (it is then known once the job completes)
+     */
+    public void add(String archiveId, long size) {
+        if (archives.containsKey(archiveId)) return;
+        Archive archive = new Archive(archiveId, size);
+        archives.put(archiveId, archive);
+        if (journalDone.contains(archiveId) && new File(directory, archiveId).exists()) {
+            skipped++;
+        } else {
+            archive.jobId = journalJobs.get(archiveId);
+            queue.add(archive);
+        }
+    }
+
+    public int getCount() { return archives.size(); }
+    public long getRestored() { return restored; }
+    public long getSkipped() { return skipped; }
+
+    /**
+     * Restores the archives added, and deletes the journal if all were.
+     *
+     * @return number of archives that could not be restored
+     */
+    public long run() throws IOException, InterruptedException {
+        directory.mkdirs();
+        if (journalFile != null) journal = new FileOutputStream(journalFile, true);
+        boolean ownWatcher = (watcher == null);
+        if (ownWatcher) {
+            watcher = new JobWatcher(client, vaultName);
+            watcher.setPollInterval(pollInterval);
+            watcher.setVerbose(false);
+        }
+        ArchiveRetrieval retrieval = new ArchiveRetrieval(client, vaultName);
+        retrieval.setJobWatcher(watcher);
+        retrieval.setVerbose(false);
+        ExecutorService workers = Executors.newFixedThreadPool(downloads);
+        startTime = System.currentTimeMillis();
+        long lastReport = startTime;
+        try {
+            synchronized (this) {
+                while (!queue.isEmpty() || !waiting.isEmpty() || downloading > 0) {
+                    startDownloads(workers);
+                    initiateJobs(retrieval);
+                    long now = System.currentTimeMillis();
+                    if (now - lastReport >= REPORT_INTERVAL) {
+                        report(false);
+                        lastReport = now;
+                    }
+                    // woken up by downloads; job completions are checked every second
+                    wait(1000);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            if (ownWatcher) {
+                watcher.close();
+                watcher = null;
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+        report(true);
+        if (journalFile != null && failed == 0) journalFile.delete();
+        return failed;
+    }
+
+    /**
+     * Initiates the next jobs, within the budgets; archives with a job
+     * from the journal are only watched.
+     */
+    private void initiateJobs(ArchiveRetrieval retrieval) throws IOException {
+        while (!queue.isEmpty() && waiting.size() + downloading < maxJobs) {
+            Archive archive = queue.getFirst();
+            long size = Math.max(0, archive.size);
+            if (inFlightBytes > 0 && inFlightBytes + size > maxInFlight) return;
+            if (archive.jobId == null && retrievalRate > 0 && initiatedBytes > 0) {
+                // the bytes of an hour are allowed at once, then as much each hour
+                double hours = (System.currentTimeMillis() - startTime) / 3600000.0;
+                if (initiatedBytes + size > retrievalRate * (hours + 1)) return;
+            }
+            queue.removeFirst();
+            if (archive.jobId == null) {
+                try {
+                    archive.jobId = retrieval.initiate(archive.archiveId);
+                } catch (RuntimeException e) {
+                    fail(archive, "cannot initiate its retrieval: " + e);
+                    continue;
+                }
+                initiatedBytes += size;
+                record("J\t" + archive.archiveId + "\t" + archive.jobId);
+                if (verbose) System.out.println("Initiated retrieval of " + archive.archiveId);
+            }
+            archive.job = watcher.watch(archive.jobId);
+            inFlightBytes += size;
+            waiting.add(archive);
+        }
+    }
+
+    /**
+     * Starts downloading the archives whose job completed, while there is
+     * room for them.
+     */
+    private void startDownloads(ExecutorService workers) throws IOException {
+        Iterator<Archive> it = waiting.iterator();
+        while (it.hasNext()) {
+            final Archive archive = it.next();
+            if (!archive.job.isDone()) continue;
+            final DescribeJobResult job;
+            try {
+                job = archive.job.get();
+            } catch (ExecutionException e) {
+                it.remove();
+                inFlightBytes -= Math.max(0, archive.size);
+                Throwable cause = e.getCause();
+                if (cause instanceof AmazonServiceException
+                        && "ResourceNotFoundException".equals(((AmazonServiceException) cause).getErrorCode())) {
+                    // expired (or from another vault): initiated again
+                    if (verbose) System.out.println("Job of " + archive.archiveId + " no longer exists; initiating it again.");
+                    archive.jobId = null;
+                    queue.addFirst(archive);
+                } else {
+                    fail(archive, String.valueOf(cause));
+                }
+                continue;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (archive.size < 0) {
+                archive.size = job.getArchiveSizeInBytes();
+                inFlightBytes += archive.size;
+            }
+            if (downloading >= downloads) return;
+            // the part file of an interrupted run takes its space already
+            long partLength = new File(directory, archive.archiveId + ".part").length();
+            long needed = archive.size - Math.min(archive.size, partLength);
+            if (downloading > 0 && directory.getUsableSpace() - downloadingBytes < needed + minFree) return;
+            if (downloading == 0 && directory.getUsableSpace() < needed + minFree) {
+                it.remove();
+                inFlightBytes -= archive.size;
+                fail(archive, "not enough free space in " + directory);
+                continue;
+            }
+            it.remove();
+            downloading++;
+            // reserved whole, as the part file is written in no particular order
+            archive.reserved = needed;
+            downloadingBytes += needed;
+            workers.execute(new Runnable() {
+                public void run() {
+                    download(archive, job);
+                }
+            });
+        }
+    }
+
+    private void download(Archive archive, DescribeJobResult job) {
+        String error = null;
+        try {
+            if (verbose) System.out.println("Downloading " + archive.archiveId + " (" + archive.size + " bytes)");
+            PartialDownloadStatus status = null;
+            if (journalName != null) {
+                status = new PartialDownloadStatus(journalName + "." + archive.archiveId);
+                if (!archive.jobId.equals(status.getJobId()) || status.getChunkSize() != chunkSize) {
+                    // ranges recorded for another job or chunk size are not reused
+                    status.deleteFile();
+                    status = new PartialDownloadStatus(journalName + "." + archive.archiveId);
+                    status.setJob(archive.jobId, archive.archiveId, chunkSize);
+                }
+            }
+            RangedDownloader downloader = new RangedDownloader(client, vaultName);
+            downloader.setConcurrency(Math.max(1, concurrency / downloads));
+            downloader.setChunkSize(chunkSize);
+            downloader.setVerbose(false);
+            downloader.setPartialDownloadStatus(status);
+            File part = new File(directory, archive.archiveId + ".part");
+            downloader.download(archive.jobId, job.getArchiveSizeInBytes(), ArchiveRetrieval.getTreeHash(job), part);
+            File file = new File(directory, archive.archiveId);
+            if (!part.renameTo(file)) throw new IOException("Cannot rename " + part + " to " + file);
+        } catch (Exception e) {
+            error = String.valueOf(e);
+        }
+        synchronized (this) {
+            downloading--;
+            downloadingBytes -= archive.reserved;
+            inFlightBytes -= archive.size;
+            if (error != null) {
+                fail(archive, error);
+            } else {
+                restored++;
+                restoredBytes += archive.size;
+                restoredCounter.increment();
+                try {
+                    record("D\t" + archive.archiveId);
+                } catch (IOException e) {
+                    System.err.println("Cannot record the download of " + archive.archiveId + ": " + e);
+                }
+                if (verbose) System.out.println("Restored " + archive.archiveId);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reported at the end; a rerun tries the archive again.
+     */
+    private void fail(Archive archive, String error) {
+        failed++;
+        System.err.println("Failed to restore " + archive.archiveId + ": " + error);
+    }
+
+    private void record(String line) throws IOException {
+        if (journal == null) return;
+        journal.write((line + "\n").getBytes("UTF-8"));
+        journal.getFD().sync();
+    }
+
+    private synchronized void report(boolean last) {
+        long seconds = (System.currentTimeMillis() - startTime) / 1000;
+        if (last) {
+            System.out.printf("Restored %d archives (%.2f GB) in %d s; %d skipped (restored before), %d failed.\n",
+                    restored, restoredBytes / (1024.0 * 1024 * 1024), seconds, skipped, failed);
+        } else {
+            System.out.printf("Restored %d of %d archives (%.2f GB) in %d s: %d waiting for their job, %d downloading, %d to initiate; %.2f GB in flight; %d failed.\n",
+                    restored + skipped, archives.size(), restoredBytes / (1024.0 * 1024 * 1024), seconds,
+                    waiting.size(), downloading, queue.size(), inFlightBytes / (1024.0 * 1024 * 1024), failed);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Retries Glacier calls that failed for a transient reason, with jittered
+ * exponential backoff: before attempt n+1, it waits a random time between
+ * 0 and min(maxDelay, baseDelay * 2^n) ("full jitter", so that workers
+ * failing together do not retry together).
+ *
+ * The SDK client already retries a few times on its own, within seconds;
+ * this is for failures outlasting that, e.g. a service hiccup of a minute
+ * in the middle of a day-long upload.
+ *
+ * Retryable: 5xx and throttling errors, request timeouts, and network
+ * errors. Fatal: other 4xx errors (bad request, unknown vault or upload ID,
+ * bad checksum, ...), which would fail again the same way, and anything
+ * that is not an AWS exception.
+ *
+ * Throttling errors are also reported to the CircuitBreaker, if set, and
+ * every attempt first waits for the breaker to close.
+ */
+public class RetryPolicy {
+    // 4xx error codes that are worth retrying (5xx always are)
+    private static final Set<String> RETRYABLE_CODES = new HashSet<String>(Arrays.asList(
+            "RequestTimeoutException", "RequestTimeout", "ServiceUnavailableException", "RequestExpired"));
+    private static final Set<String> THROTTLING_CODES = new HashSet<String>(Arrays.asList(
+            "ThrottlingException", "Throttling", "SlowDown", "TooManyRequestsException"));
+
+    private int maxAttempts = 10;
+    private long baseDelay = 1000; // ms
+    private long maxDelay = 5 * 60 * 1000; // ms
+    private CircuitBreaker circuitBreaker = null;
+    private boolean verbose = true;
+    private Random random = new Random();
+
+    private static final String RETRIES = "glacier_retries_total";
+    private static final String RETRIES_HELP = "Glacier requests retried, by reason";
+    private static final Metrics.Counter throttlingRetries = Metrics.global().counter(RETRIES, RETRIES_HELP, "reason", "throttling");
+    private static final Metrics.Counter serverRetries = Metrics.global().counter(RETRIES, RETRIES_HELP, "reason", "server");
+    private static final Metrics.Counter networkRetries = Metrics.global().counter(RETRIES, RETRIES_HELP, "reason", "network");
+    private static final Metrics.Counter failures = Metrics.global().counter("glacier_request_failures_total",
+            "Glacier requests given up on, for a fatal error or after the last attempt");
+    private static final Metrics.Counter backoffWaits = Metrics.global().waitPoint("retry_backoff");
+
+    /** total number of tries, including the first one */
+    public void setMaxAttempts(int maxAttempts) { this.maxAttempts = Math.max(1, maxAttempts); }
+    /** in ms */
+    public void setBaseDelay(long baseDelay) { this.baseDelay = baseDelay; }
+    /** in ms */
+    public void setMaxDelay(long maxDelay) { this.maxDelay = maxDelay; }
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) { this.circuitBreaker = circuitBreaker; }
+    public CircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    /**
+     * Runs the task until it succeeds, fails with a fatal error, or has
+     * been tried maxAttempts times. The last error is thrown.
+     *
+     * @param what description of the task, for log messages
+     */
+    public <T> T call(String what, Callable<T> task) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            if (circuitBreaker != null) circuitBreaker.awaitClosed();
+            try {
+                T result = task.call();
+                if (circuitBreaker != null) circuitBreaker.recordSuccess();
+                return result;
+            } catch (Exception e) {
+                if (isThrottling(e) && circuitBreaker != null) circuitBreaker.recordThrottling();
+                if (!isRetryable(e) || attempt >= maxAttempts) {
+                    failures.increment();
+                    throw e;
+                }
+                if (isThrottling(e)) throttlingRetries.increment();
+                else if (e instanceof AmazonServiceException) serverRetries.increment();
+                else networkRetries.increment();
+
+                long delay = backoff(attempt);
+                if (verbose) {
+                    System.out.printf("%s failed (attempt %d of %d): %s. Retrying in %.1f s\n",
+                            what, attempt, maxAttempts, describe(e), delay / 1000.0);
+                }
+                Thread.sleep(delay);
+                backoffWaits.add(delay * 1000000);
+            }
+        }
+    }
+
+    /**
+     * @return ms to wait before the attempt following the given one
+     */
+    public long backoff(int attempt) {
+        long ceiling = baseDelay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) ceiling = maxDelay;
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    public boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException se = (AmazonServiceException) e;
+            return se.getStatusCode() >= 500 || se.getStatusCode() == 429 || isThrottling(e)
+                    || RETRYABLE_CODES.contains(se.getErrorCode());
+        }
+        if (e instanceof AmazonClientException) {
+            // no response from the service: connection refused / reset, timeouts
+            return e.getCause() instanceof IOException;
+        }
+        return false;
+    }
+
+    public boolean isThrottling(Exception e) {
+        if (!(e instanceof AmazonServiceException)) return false;
+        AmazonServiceException se = (AmazonServiceException) e;
+        return se.getStatusCode() == 429 || THROTTLING_CODES.contains(se.getErrorCode());
+    }
+
+    private static String describe(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException se = (AmazonServiceException) e;
+            return se.getStatusCode() + " " + se.getErrorCode();
+        }
+        return (e.getCause() != null) ? e.getCause().toString() : e.toString();
+    }
+}
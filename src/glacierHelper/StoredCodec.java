@@ -0,0 +1,28 @@
+package glacierHelper;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * No compression: the tar stream is sent as is.
+ */
+public class StoredCodec extends CompressionCodec {
+
+    @Override
+    public String getName() { return "none"; }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return out;
+    }
+
+    @Override
+    public long getMemoryFootprint() {
+        return 0;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        return in;
+    }
+}
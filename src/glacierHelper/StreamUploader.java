@@ -1,17 +1,18 @@
 package glacierHelper;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
-import com.amazonaws.services.glacier.TreeHashGenerator;
 //import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
@@ -30,20 +31,39 @@ import com.amazonaws.util.BinaryUtils;
 
 public class StreamUploader {
 
-    // This example works for part sizes up to 1 GB.
+    // Parts are buffered in pooled 1MB chunks, so part sizes up to 4 GB (Glacier's limit) work.
     //public static String partSize = "1048576"; // 1MB
     private String partSize = "134217728"; // 128MB
     private boolean verbose = true;
+    // number of parts uploaded in parallel. At most this many filled part
+    // buffers wait for / are being uploaded while the next part is read.
+    private int concurrency = 1;
 
     private String vaultName;
     private String archiveDescription;
     private AmazonGlacierClient client;
     private InputStream pipedIn;
+    private ChunkChannel channel = null;
     private String totalChecksum;
+    private VaultCatalog catalog = null;
+    private String sourcePath = null;
     private String totalLength;
 
     // setting valid partialUploadStatus objectwill enable resuming
     private PartialUploadStatus partialUploadStatus = null;
+    // archive offset at which the input starts, when resuming (see setStartOffset())
+    private long startOffset = 0;
+    // upload threads shared with other uploaders, instead of [concurrency] threads of our own
+    private ExecutorService sharedWorkers = null;
+    private RateLimiter rateLimiter = null;
+    private long sendStartTime;
+    private RetryPolicy retryPolicy;
+
+    private static final Metrics.Histogram partLatency = Metrics.global().histogram("glacier_part_upload_seconds",
+            "Time to upload a part, retries included", Metrics.LATENCY_BUCKETS);
+    private static final Metrics.Stage uploadStage = Metrics.global().stage("upload");
+    private static final Metrics.Counter partsUploaded = Metrics.global().counter("glacier_parts_uploaded_total", "Parts uploaded");
+    private static final Metrics.Counter waitsForNetwork = Metrics.global().waitPoint("uploader_waits_for_network");
 
     /**
      * @param client
@@ -59,15 +79,107 @@ public class StreamUploader {
 
         this.totalChecksum = null;
         this.totalLength = null;
+
+        this.retryPolicy = new RetryPolicy();
+        this.retryPolicy.setCircuitBreaker(new CircuitBreaker());
     }
 
     public void setVerbose(boolean verbose) { this.verbose = verbose; }
     public void setPartSize(long partSize) { this.partSize = String.valueOf(partSize); }
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    public long getPartSize() { return Long.parseLong(partSize); }
+
+    /**
+     * Uploads the parts on the given threads, e.g. shared by several
+     * uploaders. No more than [concurrency] parts of this upload are handed
+     * to them at a time. The executor is not shut down.
+     */
+    public void setWorkers(ExecutorService workers) { this.sharedWorkers = workers; }
+
+    /**
+     * Paces the part uploads, e.g. with a limiter shared by several uploaders.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) { this.rateLimiter = rateLimiter; }
+
+    /**
+     * Replaces the default policy (10 attempts, 1 s to 5 min backoff, own
+     * circuit breaker), e.g. with one whose breaker is shared by several
+     * uploaders of the same account.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) { this.retryPolicy = retryPolicy; }
+
+    /**
+     * @param client
+     * @param vaultName
+     * @param archiveDescription
+     * Content to be uploaded is taken from the channel returned by openChannel().
+     */
+    public StreamUploader(AmazonGlacierClient client, String vaultName, String archiveDescription) {
+        this(client, vaultName, archiveDescription, null);
+    }
+
+    /**
+     * Creates the channel through which the content is to be sent, in place
+     * of an input stream. The chunks written into the channel become part
+     * buffers as they are, without being copied.
+     * Part size and concurrency must be set before calling this.
+     *
+     * @param slackChunks number of extra chunks the producer may fill ahead
+     * of the uploader, on top of the part buffers.
+     */
+    public ChunkChannel openChannel(int slackChunks) {
+        long partBytes = Long.parseLong(partSize);
+        if (partBytes % ChunkPool.DEFAULT_CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("part size must be a multiple of " + ChunkPool.DEFAULT_CHUNK_SIZE);
+        }
+        int chunksPerPart = (int) (partBytes / ChunkPool.DEFAULT_CHUNK_SIZE);
+        channel = new ChunkChannel(new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, chunksPerPart * (concurrency + 1) + slackChunks));
+        return channel;
+    }
 
     public void setPartialUploadStatus(PartialUploadStatus partialUploadStatus) {
         this.partialUploadStatus = partialUploadStatus;
     }
 
+    /**
+     * Records the archive in the catalog once uploaded.
+     *
+     * @param sourcePath what the archive is made of, or null
+     */
+    public void setCatalog(VaultCatalog catalog, String sourcePath) {
+        this.catalog = catalog;
+        this.sourcePath = sourcePath;
+    }
+
+    /**
+     * @return offset of the first part missing from the previous attempt of
+     * this upload, or 0 if there is nothing to resume. Parts before it need
+     * not be read again, if the producer can start the content there.
+     */
+    public long getResumeOffset() {
+        if (partialUploadStatus == null || partialUploadStatus.getUploadId() == null) return 0;
+        long partBytes = Long.parseLong(partSize);
+        if (partialUploadStatus.getPartSize() != partBytes) return 0;
+
+        long offset = 0;
+        while (partialUploadStatus.getChecksum(contentRange(offset, partBytes)) != null) offset += partBytes;
+        return offset;
+    }
+
+    /**
+     * Declares that the input starts at the given archive offset rather than
+     * at 0. Checksums of the parts before it are taken from the partial
+     * upload status, to build the checksum of the whole archive.
+     *
+     * @param startOffset a multiple of the part size, at most getResumeOffset().
+     */
+    public void setStartOffset(long startOffset) {
+        if (startOffset % Long.parseLong(partSize) != 0 || startOffset > getResumeOffset()) {
+            throw new IllegalArgumentException("cannot start at " + startOffset);
+        }
+        this.startOffset = startOffset;
+    }
+
     /**
      * Start processing input, and upload it in multiple parts.
      * 
@@ -76,19 +188,7 @@ public class StreamUploader {
     public String startProcessingStream() {
         String archiveId = null;
         try {
-            if (verbose) System.out.println("Uploading an archive.");
-            String uploadId = initiateMultipartUpload();
-            uploadParts(uploadId);
-            CompleteMultipartUploadResult result = completeMultiPartUpload(uploadId);
-            archiveId = result.getArchiveId();
-            if (verbose) {
-                System.out.println("Completed an archive.");
-                System.out.println("Location:" + result.getLocation());
-                System.out.println("Archive ID:" + archiveId);
-                System.out.println("Total size: "+totalLength);
-                System.out.printf("  (%2.2f GB)\n", (Float.valueOf(totalLength)/(1024*1024*1024)) );
-            }
-
+            archiveId = uploadStream();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -97,7 +197,48 @@ public class StreamUploader {
         return archiveId;
     }
 
-    private String initiateMultipartUpload() {
+    /**
+     * Same as startProcessingStream(), but failures are thrown to the caller
+     * instead of ending the process, e.g. when several uploads share it.
+     *
+     * @return archiveId on successful upload
+     */
+    public String uploadStream() throws IOException, NoSuchAlgorithmException {
+        if (!PartSizeChooser.isValid(getPartSize())) {
+            throw new IllegalArgumentException("Part size must be 1MB times a power of two, up to 4GB: " + partSize);
+        }
+        if (verbose) System.out.println("Uploading an archive.");
+        String uploadId = initiateMultipartUpload();
+        uploadParts(uploadId);
+        CompleteMultipartUploadResult result = completeMultiPartUpload(uploadId);
+        String archiveId = result.getArchiveId();
+        if (catalog != null) {
+            try {
+                catalog.add(new VaultCatalog.Entry(archiveId, getTotalLength(), totalChecksum, System.currentTimeMillis(),
+                        archiveDescription, sourcePath));
+            } catch (IOException e) {
+                // the archive is uploaded all the same; the next reconcile will add it
+                System.err.println("Failed to record archive " + archiveId + " in the catalog: " + e);
+            }
+        }
+        if (verbose) {
+            System.out.println("Completed an archive.");
+            System.out.println("Location:" + result.getLocation());
+            System.out.println("Archive ID:" + archiveId);
+            System.out.println("Total size: "+totalLength);
+            System.out.printf("  (%2.2f GB)\n", (Float.valueOf(totalLength)/(1024*1024*1024)) );
+        }
+        return archiveId;
+    }
+
+    /**
+     * @return size of the archive, once uploaded.
+     */
+    public long getTotalLength() {
+        return (totalLength != null) ? Long.parseLong(totalLength) : 0;
+    }
+
+    private String initiateMultipartUpload() throws IOException {
         String uploadId = null;
         if (partialUploadStatus != null) {
             uploadId = partialUploadStatus.getUploadId(); 
@@ -107,88 +248,231 @@ public class StreamUploader {
             }
         }
 
-        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest()
+        final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest()
         .withVaultName(vaultName)
         .withArchiveDescription(archiveDescription)
         .withPartSize(partSize);
 
-        InitiateMultipartUploadResult result = client.initiateMultipartUpload(request);
+        InitiateMultipartUploadResult result = withRetries("Initiating the upload", new Callable<InitiateMultipartUploadResult>() {
+            public InitiateMultipartUploadResult call() {
+                return client.initiateMultipartUpload(request);
+            }
+        });
         uploadId = result.getUploadId();
 
         if (verbose) System.out.println("uploadID: " + uploadId);
-        if (partialUploadStatus != null) partialUploadStatus.setUploadId(uploadId);
+        if (partialUploadStatus != null) {
+            partialUploadStatus.setUploadId(uploadId);
+            partialUploadStatus.setPartSize(Long.parseLong(partSize));
+        }
 
         return uploadId;
     }
 
     private void uploadParts(String uploadId) throws AmazonServiceException, NoSuchAlgorithmException, AmazonClientException, IOException {
-        byte[] buffer = new byte[Integer.valueOf(partSize)];
-        List<byte[]> binaryChecksums = new LinkedList<byte[]>();
+        long partBytes = Long.parseLong(partSize);
+        // archive checksum is built from the part checksums as they come
+        TreeHash archiveHash = new TreeHash();
 
-        long currentPosition = 0;
+        long currentPosition = startOffset;
         String contentRange;
 
-        TOTALLOOP: while (true) {
-            // try to read exactly [partSize] of the input, unless it is the very last portion
-            int read = 0;
-            PARTIALCONTENTLOOP: while (read < buffer.length) {
-                int subReadCount = pipedIn.read(buffer, read, buffer.length - read);
-                if (subReadCount == -1) {
-                    if (read == 0) { break TOTALLOOP; } // read only EOF
-                    else { break PARTIALCONTENTLOOP; } // read last portion, less than [partSize]
+        // parts skipped by a resumed upload only contribute their recorded checksums
+        for (long offset = 0; offset < startOffset; offset += partBytes) {
+            archiveHash.appendDigest(BinaryUtils.fromHex(partialUploadStatus.getChecksum(contentRange(offset, partBytes))));
+        }
+        if (startOffset > 0 && verbose) System.out.println("Resuming at byte " + startOffset + "; the parts before it are already uploaded.");
+
+        // one part being read plus [concurrency] parts waiting for / being uploaded.
+        // Parts are assembled from pooled chunks, so no part-sized array is allocated per part.
+        ChunkPool pool;
+        if (channel != null) {
+            pool = channel.getPool();
+        } else {
+            int chunkSize = (int) Math.min(ChunkPool.DEFAULT_CHUNK_SIZE, partBytes);
+            int chunksPerPart = (int) ((partBytes + chunkSize - 1) / chunkSize);
+            pool = new ChunkPool(chunkSize, chunksPerPart * (concurrency + 1));
+        }
+
+        // parts are read and hashed here, in range order, and handed over to
+        // the workers. inFlight bounds the number of filled parts held in memory.
+        ExecutorService workers = (sharedWorkers != null) ? sharedWorkers : Executors.newFixedThreadPool(concurrency);
+        final Semaphore inFlight = new Semaphore(concurrency);
+        Metrics.Gauge partsInFlight = new Metrics.Gauge() {
+            public long value() { return concurrency - inFlight.availablePermits(); }
+        };
+        Metrics.global().addGauge("glacier_parts_in_flight", "Parts being uploaded, or waiting for a worker", partsInFlight);
+        Metrics.Gauge queuedChunks = new Metrics.Gauge() {
+            public long value() { return (channel != null) ? channel.getQueuedChunks() : 0; }
+        };
+        Metrics.global().addGauge("glacier_channel_queued_chunks", "Chunks filled by the archiver, not read by the uploader yet", queuedChunks);
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        AtomicLong bytesSent = new AtomicLong(0);
+        sendStartTime = System.currentTimeMillis();
+
+        try {
+            while (failure.get() == null) {
+                // try to read exactly [partSize] of the input, unless it is the very last portion
+                PartBuffer part = new PartBuffer(pool, partBytes);
+                TreeHash partHash = new TreeHash();
+                long read;
+                try {
+                    read = (channel != null) ? part.fillFrom(channel, partHash) : part.readFrom(pipedIn, partHash);
+                } catch (IOException e) {
+                    part.release();
+                    throw e;
+                }
+                if (read == 0) { part.release(); break; } // read only EOF
+                if (currentPosition / partBytes >= PartSizeChooser.MAX_PARTS) {
+                    part.release();
+                    throw new IOException("The archive is larger than " + PartSizeChooser.MAX_PARTS + " parts of "
+                            + partBytes / (1024 * 1024) + " MB, the most Glacier accepts. Upload it again with larger parts.");
+                }
+
+                contentRange = contentRange(currentPosition, read);
+                byte[] binaryChecksum = partHash.digest();
+                String partialChecksum = BinaryUtils.toHex(binaryChecksum);
+                archiveHash.appendDigest(binaryChecksum);
+                if (verbose) System.out.println(contentRange);
+
+                if (partialUploadStatus != null
+                        && partialUploadStatus.previouslyUploaded(contentRange, partialChecksum)) {
+                    if (verbose)
+                        System.out.println("Already uploaded successfully in the previous attempt. Skipping..");
+                    part.release();
                 } else {
-                    read += subReadCount;
+                    long waitStart = System.nanoTime();
+                    inFlight.acquire();
+                    waitsForNetwork.add(System.nanoTime() - waitStart);
+                    workers.execute(new PartUpload(uploadId, part, contentRange, partialChecksum,
+                            inFlight, failure, bytesSent));
                 }
+
+                currentPosition = currentPosition + read;
             }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while uploading parts", e);
+        } finally {
+            // wait for the remaining parts, also when stopping early, so that their buffers are released
+            inFlight.acquireUninterruptibly(concurrency);
+            inFlight.release(concurrency);
+            if (workers != sharedWorkers) workers.shutdown();
+            Metrics.global().removeGauge("glacier_parts_in_flight", partsInFlight);
+            Metrics.global().removeGauge("glacier_channel_queued_chunks", queuedChunks);
+        }
+
+        Exception e = failure.get();
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e != null) throw new IOException("Part upload failed", e);
+
+        if (pipedIn != null) pipedIn.close();
+        totalChecksum = archiveHash.digestHex();
+        totalLength = String.valueOf(currentPosition);
+    }
+
+    private static String contentRange(long start, long length) {
+        return String.format("bytes %s-%s/*", start, start + length - 1);
+    }
+
+    /**
+     * Uploads a single part on a worker thread, and bookmarks it on success.
+     * Parts may complete in any order; bookmarks are keyed by content range.
+     */
+    private class PartUpload implements Runnable {
+        private String uploadId;
+        private PartBuffer part;
+        private String contentRange;
+        private String partialChecksum;
+        private Semaphore inFlight;
+        private AtomicReference<Exception> failure;
+        private AtomicLong bytesSent;
+
+        PartUpload(String uploadId, PartBuffer part, String contentRange, String partialChecksum,
+                Semaphore inFlight, AtomicReference<Exception> failure, AtomicLong bytesSent) {
+            this.uploadId = uploadId;
+            this.part = part;
+            this.contentRange = contentRange;
+            this.partialChecksum = partialChecksum;
+            this.inFlight = inFlight;
+            this.failure = failure;
+            this.bytesSent = bytesSent;
+        }
 
-            byte[] bytesRead = Arrays.copyOf(buffer, read);
-
-            contentRange = String.format("bytes %s-%s/*", currentPosition, currentPosition + read - 1);
-            String partialChecksum = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(bytesRead));
-            byte[] binaryChecksum = BinaryUtils.fromHex(partialChecksum);
-            binaryChecksums.add(binaryChecksum);
-            if (verbose) System.out.println(contentRange);
-
-            if (partialUploadStatus != null
-                    && partialUploadStatus.previouslyUploaded(contentRange, partialChecksum)) {
-                if (verbose)
-                    System.out.println("Already uploaded successfully in the previous attempt. Skipping..");
-            } else {
-                //Upload part.
-                UploadMultipartPartRequest partRequest = new UploadMultipartPartRequest()
-                .withVaultName(vaultName)
-                .withBody(new ByteArrayInputStream(bytesRead))
-                .withChecksum(partialChecksum)
-                .withRange(contentRange)
-                .withUploadId(uploadId);
-
-                UploadMultipartPartResult partResult = client.uploadMultipartPart(partRequest);
+        @Override
+        public void run() {
+            try {
+                if (failure.get() != null) return; // another part already failed
+                long start = System.nanoTime();
+
+                // the part stays in memory until it is uploaded or given up on
+                UploadMultipartPartResult partResult = retryPolicy.call("Part " + contentRange, new Callable<UploadMultipartPartResult>() {
+                    public UploadMultipartPartResult call() throws Exception {
+                        if (failure.get() != null) throw new IllegalStateException("another part failed");
+
+                        InputStream body = part.newInputStream();
+                        if (rateLimiter != null) {
+                            rateLimiter.awaitResumed();
+                            body = new ThrottledInputStream(body, rateLimiter);
+                        }
+
+                        UploadMultipartPartRequest partRequest = new UploadMultipartPartRequest()
+                        .withVaultName(vaultName)
+                        .withBody(body)
+                        .withChecksum(partialChecksum)
+                        .withRange(contentRange)
+                        .withUploadId(uploadId);
+
+                        return client.uploadMultipartPart(partRequest);
+                    }
+                });
+                uploadStage.record(part.getLength(), start);
+                partLatency.observeNanos(System.nanoTime() - start);
+                partsUploaded.increment();
+                long sent = bytesSent.addAndGet(part.getLength());
                 if (verbose) {
-                    System.out.println("Part uploaded, checksum: " + partResult.getChecksum());
-                    System.out.printf("Sent so far: %2.2f GB\n", ((float)currentPosition/(1024*1024*1024)));
+                    System.out.println("Part uploaded (" + contentRange + "), checksum: " + partResult.getChecksum());
+                    double seconds = Math.max(1, System.currentTimeMillis() - sendStartTime) / 1000.0;
+                    System.out.printf("Sent so far: %2.2f GB (%.1f MB/s)\n", ((float)sent/(1024*1024*1024)), sent / (1024.0 * 1024) / seconds);
                 }
 
                 if (partialUploadStatus != null)
                     partialUploadStatus.bookmarkSuccessfulUpload(contentRange, partialChecksum);
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                part.release();
+                inFlight.release();
             }
-
-            currentPosition = currentPosition + read;
         }
-        pipedIn.close();
-        totalChecksum = TreeHashGenerator.calculateTreeHash(binaryChecksums);
-        totalLength = String.valueOf(currentPosition);
     }
 
     private CompleteMultipartUploadResult completeMultiPartUpload(String uploadId) throws NoSuchAlgorithmException, IOException {
 
-        CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest()
+        final CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest()
         .withVaultName(vaultName)
         .withUploadId(uploadId)
         .withChecksum(totalChecksum)
         .withArchiveSize(totalLength);
 
+        // the bookmark is kept until the upload is complete, so that a failure here can be resumed
+        CompleteMultipartUploadResult result = withRetries("Completing the upload", new Callable<CompleteMultipartUploadResult>() {
+            public CompleteMultipartUploadResult call() {
+                return client.completeMultipartUpload(compRequest);
+            }
+        });
         if (partialUploadStatus != null) partialUploadStatus.deleteFile();
+        return result;
+    }
 
-        return client.completeMultipartUpload(compRequest);
+    private <T> T withRetries(String what, Callable<T> task) throws IOException {
+        try {
+            return retryPolicy.call(what, task);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw new IOException(what + " interrupted", e);
+        } catch (Exception e) {
+            throw new IOException(what + " failed", e);
+        }
     }
 }
@@ -0,0 +1,259 @@
+package glacierHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * Extracts a tar stream (as made by TarGzStream) into a directory.
+ *
+ * The caller's thread decompresses and parses the stream, while files are
+ * written by a writer thread, so that disk writes overlap with the rest.
+ * Content goes to the writer in chunks of a ChunkPool, which bounds what
+ * is buffered between the two.
+ *
+ * With include patterns, only the matching entries (and what is under
+ * matching directories) are written; the rest of the stream is read and
+ * dropped. Patterns are matched against whole entry names, e.g.
+ * "root/dir/file": '*' and '?' do not match '/', and '**' matches anything.
+ */
+public class TarExtractor {
+    private static final int CHUNK_COUNT = 16;
+
+    private File destination;
+    private List<Pattern> includes = new ArrayList<Pattern>();
+    private boolean verbose = true;
+
+    private ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, CHUNK_COUNT);
+    private ExecutorService writer;
+    private volatile IOException writeFailure = null;
+    // used by the writer thread only
+    private OutputStream out = null;
+
+    private long files = 0;
+    private long bytes = 0;
+
+    private static final Metrics.Stage extractStage = Metrics.global().stage("extract");
+    private static final Metrics.Stage writeStage = Metrics.global().stage("write");
+    private static final Metrics.Counter extractorWaits = Metrics.global().waitPoint("extractor_waits_for_writer");
+
+    public TarExtractor(File destination) {
+        this.destination = destination;
+    }
+
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    public void addInclude(String pattern) {
+        includes.add(Pattern.compile(globToRegex(pattern)));
+    }
+
+    public long getFileCount() { return files; }
+    public long getByteCount() { return bytes; }
+
+    /**
+     * Extracts the entries of the stream. Does not close it.
+     */
+    public void extract(InputStream tarStream) throws IOException {
+        TarArchiveInputStream tIn = new TarArchiveInputStream(tarStream);
+        List<TarArchiveEntry> directories = new ArrayList<TarArchiveEntry>();
+        writer = Executors.newSingleThreadExecutor();
+        try {
+            TarArchiveEntry entry;
+            while ((entry = tIn.getNextTarEntry()) != null) {
+                String name = entry.getName();
+                if (!isIncluded(name)) continue;
+                if (!isSafe(name)) {
+                    System.err.println("Skipping entry outside of the destination: " + name);
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    if (verbose) System.out.println("creating directory:" + name);
+                    directories.add(entry);
+                    submitMkdirs(new File(destination, name));
+                } else if (entry.isFile()) {
+                    if (verbose) System.out.println("extracting file:" + name);
+                    extractFile(tIn, entry);
+                } else {
+                    System.err.println("Skipping entry of unsupported type: " + name);
+                }
+            }
+            writer.shutdown();
+            while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for the last writes
+            }
+            checkWriter();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        } finally {
+            writer.shutdownNow();
+        }
+
+        // after their content is written, which updates them
+        for (TarArchiveEntry entry : directories) {
+            new File(destination, entry.getName()).setLastModified(entry.getModTime().getTime());
+        }
+    }
+
+    private void extractFile(TarArchiveInputStream tIn, final TarArchiveEntry entry) throws IOException {
+        final File file = new File(destination, entry.getName());
+        submit(new Task() {
+            void run() throws IOException {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+                out = new FileOutputStream(file);
+            }
+        });
+
+        while (true) {
+            long start = System.nanoTime();
+            final byte[] chunk;
+            try {
+                chunk = pool.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+            }
+            extractorWaits.add(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            int length = 0;
+            int n;
+            while (length < chunk.length && (n = tIn.read(chunk, length, chunk.length - length)) > 0) length += n;
+            extractStage.record(length, start);
+            if (length == 0) {
+                pool.release(chunk);
+                break;
+            }
+            bytes += length;
+            final int chunkLength = length;
+            submit(new Task() {
+                void run() throws IOException {
+                    long start = System.nanoTime();
+                    out.write(chunk, 0, chunkLength);
+                    writeStage.record(chunkLength, start);
+                }
+
+                @Override
+                void done() {
+                    pool.release(chunk);
+                }
+            });
+            if (length < chunk.length) break;
+        }
+
+        submit(new Task() {
+            void run() throws IOException {
+                out.close();
+                out = null;
+                file.setLastModified(entry.getModTime().getTime());
+                if ((entry.getMode() & 0100) != 0) file.setExecutable(true, false);
+            }
+        });
+        files++;
+    }
+
+    private void submitMkdirs(final File dir) throws IOException {
+        submit(new Task() {
+            void run() throws IOException {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            }
+        });
+    }
+
+    private static abstract class Task {
+        abstract void run() throws IOException;
+
+        /** called after run(), or instead of it once a task has failed */
+        void done() {
+        }
+    }
+
+    /**
+     * Runs the task on the writer thread, after the ones submitted before.
+     * Once one fails, the others are skipped, and the next submit throws.
+     */
+    private void submit(final Task task) throws IOException {
+        checkWriter();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (writeFailure == null) task.run();
+                } catch (IOException e) {
+                    writeFailure = e;
+                    closeQuietly();
+                } finally {
+                    task.done();
+                }
+            }
+        });
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // already failing
+        }
+        out = null;
+    }
+
+    private void checkWriter() throws IOException {
+        if (writeFailure != null) throw new IOException("Failed to write: " + writeFailure.getMessage(), writeFailure);
+    }
+
+    /**
+     * @return whether the entry, or one of the directories it is in, matches an include pattern
+     */
+    boolean isIncluded(String name) {
+        if (includes.isEmpty()) return true;
+        if (name.endsWith("/")) name = name.substring(0, name.length() - 1);
+        while (true) {
+            for (Pattern include : includes) {
+                if (include.matcher(name).matches()) return true;
+            }
+            int slash = name.lastIndexOf('/');
+            if (slash < 0) return false;
+            name = name.substring(0, slash);
+        }
+    }
+
+    private static boolean isSafe(String name) {
+        if (name.startsWith("/")) return false;
+        for (String part : name.split("/")) {
+            if (part.equals("..")) return false;
+        }
+        return true;
+    }
+
+    static String globToRegex(String glob) {
+        // "dir/" matches the directory, as "dir" does
+        if (glob.endsWith("/")) glob = glob.substring(0, glob.length() - 1);
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -1,29 +1,78 @@
 package glacierHelper;
 import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
 
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
-import org.apache.commons.compress.utils.IOUtils;
 
 /**
- * Creates a tar.gz archive of the specified directory without creating a
- * temporary file, and sends it through the pre-configured PipedOutputStream.
+ * Creates a tar.gz archive (or tar compressed with another CompressionCodec)
+ * of the specified directory without creating a temporary file, and sends it through the pre-configured output stream
+ * (a ChunkChannel's stream, or a PipedOutputStream).
+ *
+ * Entries are added in a deterministic order (see DirectoryScanner); the
+ * tree is listed, and files are opened and read ahead, on background threads.
+ *
+ * With setCheckpoints(), the state of the archiver is recorded every so
+ * often, so that an interrupted upload can produce the archive again from
+ * near the first missing part (resumeFrom()) instead of from the start.
  *
  * Some portion of this code taken from: http://www.thoughtspark.org/node/53
  */
 public class TarGzStream implements Runnable {
     private int bufferSize = 1024 * 1024;
     private boolean verbose = true;
+    // compression applied to the tar stream (gzip unless set otherwise)
+    private CompressionCodec codec = CompressionCodec.forName(CompressionCodec.DEFAULT);
+    // number of threads listing directories, and reading files ahead of the tar writer
+    private int ioThreads = 4;
+    // files at least this large are read through memory-mapped regions, others through FileChannel reads
+    private long mmapThreshold = 64L * 1024 * 1024;
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int RECORD_SIZE = 512;
+    private byte[] copyBuffer;
+
+    // store already-compressed files at level 0 instead of deflating them
+    private boolean adaptiveCompression = false;
+    private AdjustableCompression adjustable = null;
+    private int normalLevel;
+    private CompressibilityDetector detector;
+    private long storedFiles = 0;
+    private long storedBytes = 0;
+    private long deflatedBytes = 0;
+    private long deflateNanos = 0;
+
+    private static final Metrics.Stage readStage = Metrics.global().stage("read");
+    // tar + compression, including the time blocked on the consumer of the output
+    private static final Metrics.Stage compressStage = Metrics.global().stage("compress");
+
+    // checkpoints of the archiver state, kept in the partial upload status
+    private PartialUploadStatus checkpointStatus = null;
+    private long partSize;
+    private long checkpointInterval;
+    private ParallelGzipOutputStream checkpointable = null;
+    private CountingOutputStream tarCounter;
+    private long nextCheckpoint;
+    private ArchiveCheckpoint resumeFrom = null;
+    private long resumeOffset = 0;
+    // file being written
+    private long entryIndex = 0;
+    private String entryName;
+    private long entrySize;
+    private long contentStart;
+    private long contentWritten;
 
     private String directoryPath;
-    private PipedOutputStream pipeOut;
-    private BufferedOutputStream bOut;
-    private GzipCompressorOutputStream gzOut;
+    private OutputStream out;
+    private OutputStream gzOut;
     private TarArchiveOutputStream tOut;
 
     /**
@@ -35,19 +84,148 @@ public class TarGzStream implements Runnable {
 
     public void setVerbose(boolean verbose) { this.verbose = verbose; }
     public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
+    public void setCodec(CompressionCodec codec) { this.codec = codec; }
+    public void setIoThreads(int ioThreads) { this.ioThreads = Math.max(1, ioThreads); }
+    public void setMmapThreshold(long mmapThreshold) { this.mmapThreshold = mmapThreshold; }
+    public void setAdaptiveCompression(boolean adaptiveCompression) { this.adaptiveCompression = adaptiveCompression; }
+
+    /**
+     * @return bytes of heap the archiver holds at most: the files read
+     * ahead (see FilePrefetcher), the copy buffer and the compressor.
+     * Memory-mapped regions of large files are not on the heap.
+     */
+    public long getMemoryFootprint() {
+        return (long) FilePrefetcher.DEFAULT_WINDOW * FilePrefetcher.DEFAULT_HEAD_SIZE + bufferSize + codec.getMemoryFootprint();
+    }
+
+    /**
+     * Takes checkpoints of the archiver state about every quarter part of tar
+     * stream, and keeps the last one within each part in the status.
+     * Call after setting the codec and adaptive compression.
+     *
+     * Only gzip supports checkpoints. The tar stream is then written in
+     * 512-byte blocks, and compressed by ParallelGzipOutputStream even with
+     * one thread, so the archive differs from one made without checkpoints.
+     */
+    public void setCheckpoints(PartialUploadStatus status, long partSize) {
+        if (!(codec instanceof GzipCodec)) {
+            System.err.println("Checkpoints are only supported with gzip; a resumed upload reads the directory from the start.");
+            return;
+        }
+        this.checkpointStatus = status;
+        this.partSize = partSize;
+        this.checkpointInterval = Math.max(partSize / 4, RECORD_SIZE);
+        status.setArchiveSettings("gzip level=" + codec.getLevel() + " adaptive=" + adaptiveCompression
+                + " block=" + ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE + " interval=" + checkpointInterval
+                + " dir=" + directoryPath);
+    }
+
+    /**
+     * Makes the archive start at the given offset, produced from the latest
+     * checkpoint before it. Must be called before prepareOutputStream().
+     *
+     * @param offset part boundary where the uploader would like to start
+     * @return offset at which the archive will start: the given one, or 0 if
+     * there is no checkpoint to start from.
+     */
+    public long resumeFrom(long offset) {
+        if (checkpointStatus == null || offset == 0) return 0;
+        for (long part = offset / partSize - 1; part >= 0; part--) {
+            ArchiveCheckpoint checkpoint = checkpointStatus.getCheckpoint(part);
+            if (checkpoint != null && checkpoint.getCompressedOffset() <= offset) {
+                resumeFrom = checkpoint;
+                resumeOffset = offset;
+                if (verbose) System.out.printf("Resuming the archive in %s; %2.2f MB produced again before byte %d.\n",
+                        checkpoint.getEntryName(), (offset - checkpoint.getCompressedOffset()) / (1024.0 * 1024), offset);
+                return offset;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Walks the directory (without reading files), and returns the size of
+     * the tar stream it makes: an upper bound of the archive size, as a hint
+     * for PartSizeChooser, but for a little compression overhead on
+     * incompressible files.
+     */
+    public long estimateSize() {
+        DirectoryScanner scanner = new DirectoryScanner(directoryPath, ioThreads);
+        long size = 0;
+        long files = 0;
+        try {
+            DirectoryScanner.Entry entry;
+            while ((entry = scanner.next()) != null) {
+                String name = entry.isDirectory() ? entry.getName() + "/" : entry.getName();
+                int nameLength = name.getBytes().length;
+                if (nameLength >= 100) size += RECORD_SIZE + roundUp(nameLength + 1); // GNU long name entry
+                size += RECORD_SIZE;
+                if (entry.isFile()) size += roundUp(entry.getFile().length());
+                files++;
+            }
+        } finally {
+            scanner.close();
+        }
+        if (verbose) System.out.printf("Scanned %d entries: %2.2f GB of tar stream.\n", files, size / (1024.0 * 1024 * 1024));
+        // end of archive, and padding to a 10KB block
+        return size + 2 * RECORD_SIZE + 10240;
+    }
+
+    private static long roundUp(long size) {
+        return (size + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
 
     /**
      * Initialize necessary streams
-     * 
+     *
      * @return PipedOutputStream, through which the archive will be sent later on.
      */
     public PipedOutputStream prepareOutputStream() {
+        PipedOutputStream pipeOut = new PipedOutputStream();
+        prepareOutputStream(new BufferedOutputStream(pipeOut, bufferSize));
+        return pipeOut;
+    }
+
+    /**
+     * Initialize necessary streams
+     *
+     * @param out through which the archive will be sent later on, e.g. ChunkChannel.getOutputStream().
+     */
+    public void prepareOutputStream(OutputStream out) {
         try {
-            pipeOut = new PipedOutputStream();
-            bOut = new BufferedOutputStream(pipeOut, bufferSize);
-            gzOut = new GzipCompressorOutputStream(bOut);
+            this.out = out;
+            codec.setAdjustable(adaptiveCompression);
+            if (checkpointStatus != null) {
+                // output before the requested offset is produced again, but not sent
+                OutputStream target = out;
+                ParallelGzipOutputStream.Checkpoint gzipFrom = null;
+                if (resumeFrom != null) {
+                    gzipFrom = resumeFrom.getGzipCheckpoint();
+                    target = new SkippingOutputStream(out, resumeOffset - gzipFrom.getCompressedOffset());
+                }
+                checkpointable = ((GzipCodec) codec).compressResumable(target, gzipFrom);
+                gzOut = checkpointable;
+            } else {
+                gzOut = codec.compress(out);
+            }
+            if (adaptiveCompression) {
+                if (gzOut instanceof AdjustableCompression) {
+                    adjustable = (AdjustableCompression) gzOut;
+                    normalLevel = adjustable.getLevel();
+                    detector = new CompressibilityDetector();
+                } else {
+                    System.err.println("Adaptive compression is not supported with codec " + codec.getName() + "; ignored.");
+                }
+            }
 
-            tOut = new TarArchiveOutputStream(gzOut);
+            if (checkpointable != null) {
+                // one record per block, so that the tar writer holds back no more than a record
+                tarCounter = new CountingOutputStream(gzOut, (resumeFrom != null) ? resumeFrom.getTarOffset() : 0);
+                tOut = new ReproducibleTarOutputStream(tarCounter, RECORD_SIZE, RECORD_SIZE);
+                nextCheckpoint = tarCounter.getCount() + checkpointInterval;
+            } else {
+                tOut = new ReproducibleTarOutputStream(gzOut);
+            }
 
             // LONGFILE_POSIX does not work well for long pathnames.
             // appears to be some problem with TarArchiveOutputStream.putArchiveEntry, where
@@ -60,7 +238,6 @@ public class TarGzStream implements Runnable {
             e.printStackTrace();
             System.exit(1);
         }
-        return pipeOut;
     }
 
     /**
@@ -69,52 +246,265 @@ public class TarGzStream implements Runnable {
      */
     public void startSendingData() {
         try {
-            addFileToTarGz(tOut, directoryPath, "");
+            sendData();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
-        } finally {
-            try {
-                tOut.finish();
+        }
+    }
 
-                tOut.close();
-                gzOut.close();
-                bOut.close();
+    /**
+     * Sends the tar.gz archive on a thread of its own, into the channel
+     * whose output stream was given to prepareOutputStream(). Any failure,
+     * Errors included, aborts the channel, so that the consumer does not
+     * wait for data that will never come.
+     *
+     * @return the thread, to join
+     */
+    public Thread startSendingData(final ChunkChannel channel) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    sendData();
+                } catch (Throwable t) {
+                    channel.abort(t);
+                }
+            }
+        }, "tar-" + directoryPath);
+        thread.start();
+        return thread;
+    }
 
-                pipeOut.flush();
-                pipeOut.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
+    /**
+     * Same as startSendingData(), but failures are thrown to the caller
+     * instead of ending the process. The output stream is then left
+     * unfinished, so that the consumer can be told (see ChunkChannel.abort())
+     * rather than take a truncated archive for a complete one.
+     */
+    public void sendData() throws IOException {
+        final FilePrefetcher prefetcher = new FilePrefetcher(new DirectoryScanner(directoryPath, ioThreads), ioThreads);
+        Metrics.Gauge prefetchPending = new Metrics.Gauge() {
+            public long value() { return prefetcher.getPendingCount(); }
+        };
+        Metrics.global().addGauge("glacier_prefetch_pending", "Files being read ahead, or read and waiting for the archiver", prefetchPending);
+        boolean closed = false;
+        try {
+            if (resumeFrom != null) resumeEntry(prefetcher);
+            FilePrefetcher.PrefetchedFile file;
+            while ((file = prefetcher.next()) != null) {
+                addFileToTarGz(tOut, file);
+                entryIndex++;
             }
-            if (verbose) System.out.println("tar.gz stream done");
+
+            tOut.finish();
+
+            tOut.close();
+            gzOut.close();
+
+            out.flush();
+            out.close();
+            closed = true;
+        } finally {
+            prefetcher.close();
+            // the compressor's threads and native memory are not released by a failed close()
+            if (!closed && gzOut instanceof AbortableCompression) ((AbortableCompression) gzOut).abort();
+            Metrics.global().removeGauge("glacier_prefetch_pending", prefetchPending);
         }
+        if (verbose) System.out.println("tar.gz stream done");
+        if (adjustable != null) printAdaptiveCompressionReport();
     }
 
-    private void addFileToTarGz(TarArchiveOutputStream tOut, String path, String base) throws IOException {
-        File f = new File(path);
-        String entryName = base + f.getName();
-        TarArchiveEntry tarEntry = new TarArchiveEntry(f, entryName);
+    private void addFileToTarGz(TarArchiveOutputStream tOut, FilePrefetcher.PrefetchedFile file) throws IOException {
+        String path = file.getEntry().getFile().getAbsolutePath();
 
-        tOut.putArchiveEntry(tarEntry);
+        tOut.putArchiveEntry(file.getTarEntry());
 
-        if (f.isFile()) {
+        if (file.getEntry().isFile()) {
             if (verbose) System.out.println("adding file:"+ path);
 
-            IOUtils.copy(new FileInputStream(f), tOut);
+            long size = file.getTarEntry().getSize();
+            boolean store = false;
+            if (adjustable != null) {
+                store = detector.isIncompressible(file.getEntry().getFile().getName(), size, file.getHead(), file.getHeadLength());
+                adjustable.setLevel(store ? 0 : normalLevel);
+            }
+
+            entryName = file.getEntry().getName();
+            entrySize = size;
+            contentWritten = 0;
+            // the tar writer holds back the last record of the header
+            if (tarCounter != null) contentStart = tarCounter.getCount() + RECORD_SIZE;
+
+            long start = System.nanoTime();
+            try {
+                writeContent(tOut, file.getHead(), 0, file.getHeadLength());
+                if (file.getRestChannel() != null) {
+                    copyFileContent(tOut, file.getRestChannel(), size);
+                }
+            } finally {
+                file.close();
+            }
+
+            if (store) {
+                storedFiles++;
+                storedBytes += size;
+            } else {
+                deflatedBytes += size;
+                deflateNanos += System.nanoTime() - start;
+            }
 
             tOut.closeArchiveEntry();
-        } else {
+            if (checkpointable != null && size > 0) checkpointAtEndOfFile();
+        } else if (file.getEntry().isDirectory()) {
             if (verbose) System.out.println("entering directory:"+ path);
 
             tOut.closeArchiveEntry();
+        } else {
+            System.err.println("Warning: " + path + " is not a regular file (dangling symlink, FIFO, device...): archived without content");
+
+            tOut.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Writes the rest of the file the resume checkpoint was taken in, then
+     * goes on with the tar writer from the next entry. The rest is written
+     * below the tar writer, holding back the last record the way the tar
+     * writer does, so that the checkpoints that follow fall where they did.
+     */
+    private void resumeEntry(FilePrefetcher prefetcher) throws IOException {
+        ArchiveCheckpoint checkpoint = resumeFrom;
+        prefetcher.skip(checkpoint.getEntryIndex());
+        FilePrefetcher.PrefetchedFile file = prefetcher.next();
+        if (file == null || !file.getEntry().getName().equals(checkpoint.getEntryName())
+                || file.getTarEntry().getSize() != checkpoint.getEntrySize()) {
+            if (file != null) file.close();
+            throw new IOException("The directory changed since the interrupted upload (at " + checkpoint.getEntryName()
+                    + "); cannot resume. Delete the bookmark to upload from the start.");
+        }
+        if (verbose) System.out.println("resuming file:" + file.getEntry().getFile().getAbsolutePath());
+
+        checkpointable.setLevel(checkpoint.getLevel());
+        entryIndex = checkpoint.getEntryIndex();
+        entryName = checkpoint.getEntryName();
+        entrySize = checkpoint.getEntrySize();
+        contentWritten = checkpoint.getContentOffset();
+        contentStart = checkpoint.getTarOffset() - contentWritten;
+
+        TrailingRecordOutputStream raw = new TrailingRecordOutputStream(tarCounter);
+        try {
+            int headOffset = (int) Math.min(contentWritten, file.getHeadLength());
+            writeContent(raw, file.getHead(), headOffset, file.getHeadLength() - headOffset);
+            FileChannel rest = file.getRestChannel();
+            if (rest != null) {
+                rest.position(Math.max(rest.position(), contentWritten));
+                copyFileContent(raw, rest, entrySize);
+            }
+        } finally {
+            file.close();
+        }
+        raw.write(new byte[(int) (roundToRecord(entrySize) - entrySize)]);
+        checkpointAtEndOfFile();
+        raw.release();
+        entryIndex++;
+    }
 
-            File[] children = f.listFiles();
+    /**
+     * Writes file content, splitting it at the first record boundary where a
+     * checkpoint is due. A checkpoint can be taken once a record of the file
+     * is held back by the tar writer, as that record can be read again.
+     */
+    private void writeContent(OutputStream target, byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int total = len;
+        while (checkpointable != null) {
+            // first content offset at which the compressor will have seen enough
+            long due = Math.max(nextCheckpoint - contentStart + RECORD_SIZE, Math.max(RECORD_SIZE, contentWritten));
+            due = roundToRecord(due);
+            if (due >= contentWritten + len) break;
+
+            int n = (int) (due - contentWritten);
+            target.write(b, off, n);
+            contentWritten += n;
+            off += n;
+            len -= n;
+            takeCheckpoint(contentWritten - RECORD_SIZE);
+        }
+        target.write(b, off, len);
+        contentWritten += len;
+        compressStage.record(total, start);
+    }
+
+    private void checkpointAtEndOfFile() throws IOException {
+        long held = roundToRecord(entrySize) - RECORD_SIZE;
+        if (contentStart + held >= nextCheckpoint) takeCheckpoint(held);
+    }
+
+    private void takeCheckpoint(long contentOffset) throws IOException {
+        ParallelGzipOutputStream.Checkpoint gzip = checkpointable.checkpoint();
+        if (gzip.getUncompressedOffset() != contentStart + contentOffset) {
+            throw new IllegalStateException("tar stream out of step at checkpoint in " + entryName);
+        }
+        checkpointStatus.setCheckpoint(gzip.getCompressedOffset() / partSize,
+                new ArchiveCheckpoint(entryIndex, entryName, entrySize, contentOffset, gzip, checkpointable.getLevel()));
+        nextCheckpoint = gzip.getUncompressedOffset() + checkpointInterval;
+    }
 
-            if (children != null) {
-                for (File child : children) {
-                    addFileToTarGz(tOut, child.getAbsolutePath(), entryName + "/");
+    private static long roundToRecord(long n) {
+        return (n + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * Reports what adaptive compression skipped. The time saved is estimated
+     * from the rate at which the other files were read and deflated.
+     * Goes to stderr, as stdout may be carrying the archive.
+     */
+    private void printAdaptiveCompressionReport() {
+        double mb = 1024 * 1024;
+        System.err.printf("Adaptive compression: stored %d already-compressed files (%.1f MB) without deflating.\n",
+                storedFiles, storedBytes / mb);
+        if (deflatedBytes > 0 && deflateNanos > 0) {
+            double deflateRate = deflatedBytes / (deflateNanos / 1e9); // bytes/sec
+            System.err.printf("  other files deflated at %.1f MB/s; estimated time saved: %.1f s\n",
+                    deflateRate / mb, storedBytes / deflateRate);
+        }
+    }
+
+    /**
+     * Copies the file from the current position of the channel up to size
+     * into the tar stream, in bufferSize pieces. Large files are read from
+     * memory-mapped regions, so the page cache is copied straight into the
+     * copy buffer; smaller ones are read with plain channel reads.
+     * The tar and gzip streams only take byte[], so that single copy remains.
+     */
+    private void copyFileContent(OutputStream target, FileChannel channel, long size) throws IOException {
+        if (copyBuffer == null) copyBuffer = new byte[bufferSize];
+        long position = channel.position();
+
+        if (size >= mmapThreshold) {
+            while (position < size) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                while (mapped.hasRemaining()) {
+                    int n = Math.min(copyBuffer.length, mapped.remaining());
+                    long start = System.nanoTime();
+                    mapped.get(copyBuffer, 0, n);
+                    readStage.record(n, start);
+                    writeContent(target, copyBuffer, 0, n);
                 }
+                position += length;
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(copyBuffer);
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(copyBuffer.length, size - position));
+                long start = System.nanoTime();
+                int n = channel.read(buffer);
+                if (n == -1) break;
+                readStage.record(n, start);
+                writeContent(target, copyBuffer, 0, n);
+                position += n;
             }
         }
     }
@@ -126,4 +516,118 @@ public class TarGzStream implements Runnable {
     public void run() {
         startSendingData();
     }
+
+    /**
+     * Dates the GNU long name and pax header entries that the tar writer adds
+     * on its own with the entry they belong to, instead of the current time,
+     * so that the same tree always gives the same archive.
+     */
+    private static class ReproducibleTarOutputStream extends TarArchiveOutputStream {
+        private Date modTime = new Date(0);
+
+        ReproducibleTarOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        ReproducibleTarOutputStream(OutputStream out, int blockSize, int recordSize) {
+            super(out, blockSize, recordSize);
+        }
+
+        @Override
+        public void putArchiveEntry(ArchiveEntry archiveEntry) throws IOException {
+            TarArchiveEntry entry = (TarArchiveEntry) archiveEntry;
+            if (entry.isGNULongNameEntry() || entry.isPaxHeader()) {
+                entry.setModTime(modTime);
+            } else {
+                modTime = entry.getModTime();
+            }
+            super.putArchiveEntry(entry);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        long getCount() { return count; }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Discards the first [skip] bytes written.
+     */
+    private static class SkippingOutputStream extends FilterOutputStream {
+        private long skip;
+
+        SkippingOutputStream(OutputStream out, long skip) {
+            super(out);
+            this.skip = skip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int n = (int) Math.min(skip, len);
+            skip -= n;
+            if (len > n) out.write(b, off + n, len - n);
+        }
+    }
+
+    /**
+     * Passes on all but the last RECORD_SIZE bytes written, until release().
+     */
+    private static class TrailingRecordOutputStream extends FilterOutputStream {
+        private byte[] held = new byte[RECORD_SIZE];
+        private int heldLength = 0;
+
+        TrailingRecordOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int pass = heldLength + len - RECORD_SIZE;
+            if (pass <= 0) {
+                System.arraycopy(b, off, held, heldLength, len);
+                heldLength += len;
+                return;
+            }
+            int fromHeld = Math.min(pass, heldLength);
+            out.write(held, 0, fromHeld);
+            out.write(b, off, pass - fromHeld);
+            int kept = heldLength - fromHeld;
+            System.arraycopy(held, fromHeld, held, 0, kept);
+            System.arraycopy(b, off + pass - fromHeld, held, kept, RECORD_SIZE - kept);
+            heldLength = RECORD_SIZE;
+        }
+
+        void release() throws IOException {
+            out.write(held, 0, heldLength);
+            heldLength = 0;
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package glacierHelper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Paces the reading of a part body with a RateLimiter.
+ *
+ * The SDK reads the whole body once to sign the request, resets it, and
+ * reads it again while sending it (again after a reset if the request is
+ * retried). Only reads after a reset() are charged, so that what is paced
+ * is what goes over the network.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private RateLimiter limiter;
+    private boolean sending = false;
+
+    public ThrottledInputStream(InputStream in, RateLimiter limiter) {
+        super(in);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) charge(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) charge(n);
+        return n;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        sending = true;
+    }
+
+    private void charge(int n) throws InterruptedIOException {
+        if (!sending) return;
+        try {
+            limiter.acquire(n);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+}
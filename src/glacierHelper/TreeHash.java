@@ -0,0 +1,107 @@
+package glacierHelper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Incremental SHA-256 tree hash, as defined by Glacier.
+ *
+ * Bytes are hashed as they are fed through update(); each 1MB leaf is
+ * digested as soon as it fills, and completed subtrees are combined on the
+ * fly, so only O(log n) digests are kept and the data is never re-read.
+ * Gives the same result as TreeHashGenerator.calculateTreeHash().
+ *
+ * Pre-computed digests (e.g. part checksums) can be fed through
+ * appendDigest() to build the archive checksum from part checksums.
+ */
+public class TreeHash {
+    public static final int LEAF_SIZE = 1024 * 1024;
+
+    private MessageDigest leafDigest;
+    private MessageDigest nodeDigest;
+    private long leafBytes = 0;
+    private long length = 0;
+
+    // completed subtrees, from the largest (left) to the smallest (right)
+    private List<byte[]> nodes = new ArrayList<byte[]>();
+    private List<Integer> levels = new ArrayList<Integer>();
+
+    public TreeHash() {
+        try {
+            leafDigest = MessageDigest.getInstance("SHA-256");
+            nodeDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return number of bytes fed through update() so far.
+     */
+    public long getLength() { return length; }
+
+    public void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = (int) Math.min(len, LEAF_SIZE - leafBytes);
+            leafDigest.update(b, off, n);
+            leafBytes += n;
+            length += n;
+            off += n;
+            len -= n;
+            if (leafBytes == LEAF_SIZE) finishLeaf();
+        }
+    }
+
+    /**
+     * Adds a digest of a whole subtree as the next leaf.
+     * Must not be called while a leaf is partially filled by update().
+     */
+    public void appendDigest(byte[] digest) {
+        if (leafBytes != 0) throw new IllegalStateException("a leaf is partially filled");
+        push(digest.clone(), 0);
+    }
+
+    /**
+     * Completes the hash. The object must not be updated afterwards.
+     */
+    public byte[] digest() {
+        if (leafBytes != 0 || nodes.isEmpty()) finishLeaf();
+
+        // fold the remaining subtrees from right to left
+        byte[] result = nodes.get(nodes.size() - 1);
+        for (int i = nodes.size() - 2; i >= 0; i--) {
+            result = combine(nodes.get(i), result);
+        }
+        return result;
+    }
+
+    public String digestHex() {
+        return BinaryUtils.toHex(digest());
+    }
+
+    private void finishLeaf() {
+        push(leafDigest.digest(), 0);
+        leafBytes = 0;
+    }
+
+    private void push(byte[] digest, int level) {
+        // merge with the subtree on the left while both are of the same height
+        while (!levels.isEmpty() && levels.get(levels.size() - 1) == level) {
+            levels.remove(levels.size() - 1);
+            digest = combine(nodes.remove(nodes.size() - 1), digest);
+            level++;
+        }
+        nodes.add(digest);
+        levels.add(level);
+    }
+
+    private byte[] combine(byte[] left, byte[] right) {
+        nodeDigest.update(left);
+        nodeDigest.update(right);
+        return nodeDigest.digest();
+    }
+}
@@ -0,0 +1,310 @@
+package glacierHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+
+/**
+ * Uploads several archives at once within one process. They share the
+ * client (and so its HTTP connections), a pool of upload workers, a
+ * bandwidth limit and a memory budget.
+ *
+ * Each archive has its own StreamUploader and, if given a bookmark name,
+ * its own PartialUploadStatus. Archives start in the order submitted, as
+ * soon as a slot and the memory budget allow: an archive reserves the
+ * part buffers its uploader may hold at most (and, for a directory, what
+ * its archiver may hold) before it starts, and gives them back when done. A failed archive does not affect the others.
+ * They also share a RetryPolicy, and so its CircuitBreaker: throttling
+ * is per account, so when it trips, all archives pause.
+ */
+public class UploadEngine {
+    // chunks (1MB each) a tar.gz stream may fill ahead of its uploader
+    private static final int CHANNEL_SLACK_CHUNKS = 16;
+
+    private AmazonGlacierClient client;
+    private ExecutorService workers;
+    private ExecutorService archives;
+    private Semaphore memory;
+    private int memoryChunks;
+    private RateLimiter rateLimiter = null;
+    private RetryPolicy retryPolicy;
+    private VaultCatalog catalog = null;
+    private long partSize = 0;
+    private int maxArchives;
+    private long memoryBudget;
+    private int concurrency = 2;
+    private boolean verbose = true;
+
+    /**
+     * An archive to upload: the tar.gz of a directory, a file, or a stream.
+     * Files are opened, and directories prescanned, only when the archive
+     * starts, so that a named pipe waiting for its writer, or a large tree,
+     * does not hold up the others.
+     */
+    public static class Archive {
+        private String name;
+        private String vaultName;
+        private String description;
+        private String bookmark;
+        private TarGzStream tarGz;
+        private InputStream in;
+        private File file;
+        private long sizeHint = -1;
+        private boolean prescan = false;
+        // set on submit
+        private PartialUploadStatus status = null;
+        private long partSize;
+
+        private Archive(String name, String vaultName, String description, String bookmark, TarGzStream tarGz, InputStream in, File file) {
+            this.name = name;
+            this.vaultName = vaultName;
+            this.description = description;
+            this.bookmark = bookmark;
+            this.tarGz = tarGz;
+            this.in = in;
+            this.file = file;
+        }
+
+        /**
+         * @param tarGz configured, but without prepareOutputStream() called
+         * @param bookmark bookmark name, or null if the upload need not be resumable
+         */
+        public static Archive fromDirectory(String name, String vaultName, String description, String bookmark, TarGzStream tarGz) {
+            return new Archive(name, vaultName, description, bookmark, tarGz, null, null);
+        }
+
+        /**
+         * @param file regular file or named pipe, opened when the archive starts;
+         * the size of a regular file is its size hint
+         * @param bookmark bookmark name, or null if the upload need not be resumable
+         */
+        public static Archive fromFile(String name, String vaultName, String description, String bookmark, File file) {
+            Archive archive = new Archive(name, vaultName, description, bookmark, null, null, file);
+            if (file.isFile()) archive.setSizeHint(file.length());
+            return archive;
+        }
+
+        /**
+         * @param bookmark bookmark name, or null if the upload need not be resumable
+         */
+        public static Archive fromStream(String name, String vaultName, String description, String bookmark, InputStream in) {
+            return new Archive(name, vaultName, description, bookmark, null, in, null);
+        }
+
+        public String getName() { return name; }
+
+        /**
+         * @param sizeHint expected archive size, to choose the part size from (see PartSizeChooser)
+         */
+        public void setSizeHint(long sizeHint) { this.sizeHint = sizeHint; }
+
+        /**
+         * Estimates the size of a directory's tar.gz when the archive starts
+         * (see TarGzStream.estimateSize()), as its size hint.
+         */
+        public void setPrescan(boolean prescan) { this.prescan = prescan; }
+    }
+
+    /**
+     * @param client shared by all uploads. Its configuration should allow
+     * as many connections as there are workers.
+     * @param workers number of parts uploaded at the same time, over all archives
+     * @param maxArchives number of archives uploaded at the same time
+     * @param memoryBudget bytes of part buffers and archiver buffers, over all archives
+     */
+    public UploadEngine(AmazonGlacierClient client, int workers, int maxArchives, long memoryBudget) {
+        this.client = client;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), daemonThreads("upload-worker"));
+        this.archives = Executors.newFixedThreadPool(Math.max(1, maxArchives), daemonThreads("archive"));
+        this.maxArchives = Math.max(1, maxArchives);
+        this.memoryBudget = memoryBudget;
+        this.memoryChunks = (int) Math.min(Integer.MAX_VALUE, memoryBudget / ChunkPool.DEFAULT_CHUNK_SIZE);
+        this.memory = new Semaphore(memoryChunks, true);
+        this.retryPolicy = new RetryPolicy();
+        this.retryPolicy.setCircuitBreaker(new CircuitBreaker());
+    }
+
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+    public void setRateLimiter(RateLimiter rateLimiter) { this.rateLimiter = rateLimiter; }
+    public void setRetryPolicy(RetryPolicy retryPolicy) { this.retryPolicy = retryPolicy; }
+    /**
+     * Part size of all uploads. By default, it is chosen for each archive
+     * from its size hint, and the memory budget shared by maxArchives.
+     */
+    public void setPartSize(long partSize) { this.partSize = partSize; }
+    /** number of parts of a single archive uploaded at the same time */
+    public void setConcurrency(int concurrency) { this.concurrency = Math.max(1, concurrency); }
+    /** records the archives, with their names as source paths, once uploaded */
+    public void setCatalog(VaultCatalog catalog) { this.catalog = catalog; }
+
+    /**
+     * Queues the archive for upload. Settings must not be changed after the first submit.
+     *
+     * @return the archive ID, once uploaded.
+     */
+    public Future<String> submit(final Archive archive) {
+        if (archive.bookmark != null) archive.status = new PartialUploadStatus(archive.bookmark);
+        final boolean prescan = archive.prescan && archive.tarGz != null;
+        // without a prescan, an archive too large for the budget is reported right away
+        final int planned = prescan ? 0 : plan(archive);
+        return archives.submit(new Callable<String>() {
+            public String call() throws Exception {
+                int chunks = planned;
+                if (prescan) {
+                    archive.setSizeHint(archive.tarGz.estimateSize());
+                    chunks = plan(archive);
+                }
+                memory.acquire(chunks);
+                try {
+                    return upload(archive);
+                } finally {
+                    memory.release(chunks);
+                }
+            }
+        });
+    }
+
+    /**
+     * Chooses the part size of the archive.
+     *
+     * @return chunks of memory to reserve for it
+     */
+    private int plan(Archive archive) {
+        PartSizeChooser chooser = new PartSizeChooser();
+        chooser.setVerbose(false);
+        chooser.setConcurrency(concurrency);
+        chooser.setMemoryBudget(memoryBudget / maxArchives);
+        chooser.setSizeHint(archive.sizeHint);
+        if (partSize > 0) chooser.setPartSize(partSize);
+        archive.partSize = chooser.choose(archive.status);
+
+        int chunks = chunksNeeded(archive);
+        if (chunks > memoryChunks) {
+            throw new IllegalArgumentException(archive.getName() + " needs " + chunks
+                    + " MB of buffers, more than the memory budget of " + memoryChunks + " MB");
+        }
+        return chunks;
+    }
+
+    /**
+     * Waits for the queued archives to finish, and stops the threads.
+     */
+    public void shutdown() throws InterruptedException {
+        archives.shutdown();
+        archives.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        workers.shutdown();
+    }
+
+    /**
+     * Part buffers for [concurrency] parts in flight and the one being read,
+     * plus for a directory the chunks its tar.gz stream may fill ahead (see
+     * StreamUploader.openChannel()) and the archiver's own buffers.
+     */
+    private int chunksNeeded(Archive archive) {
+        int chunksPerPart = (int) ((archive.partSize + ChunkPool.DEFAULT_CHUNK_SIZE - 1) / ChunkPool.DEFAULT_CHUNK_SIZE);
+        int chunks = chunksPerPart * (concurrency + 1);
+        if (archive.tarGz != null) {
+            long archiver = archive.tarGz.getMemoryFootprint();
+            chunks += CHANNEL_SLACK_CHUNKS + (int) ((archiver + ChunkPool.DEFAULT_CHUNK_SIZE - 1) / ChunkPool.DEFAULT_CHUNK_SIZE);
+        }
+        return chunks;
+    }
+
+    private String upload(Archive archive) throws Exception {
+        long start = System.currentTimeMillis();
+        if (verbose) System.out.println("[" + archive.getName() + "] started, " + archive.partSize / (1024 * 1024) + " MB parts");
+
+        InputStream in = (archive.file != null) ? new FileInputStream(archive.file) : archive.in;
+        StreamUploader uploader = new StreamUploader(client, archive.vaultName, archive.description, in);
+        PartialUploadStatus status = archive.status;
+        if (status != null) uploader.setPartialUploadStatus(status);
+        uploader.setVerbose(false);
+        uploader.setPartSize(archive.partSize);
+        uploader.setConcurrency(concurrency);
+        uploader.setWorkers(workers);
+        uploader.setRateLimiter(rateLimiter);
+        uploader.setRetryPolicy(retryPolicy);
+        if (catalog != null) {
+            // "-" is stdin
+            uploader.setCatalog(catalog, archive.getName().equals("-") ? null : new File(archive.getName()).getAbsolutePath());
+        }
+
+        String archiveId;
+        if (archive.tarGz != null) {
+            archiveId = uploadDirectory(archive, uploader, status);
+        } else {
+            try {
+                archiveId = uploader.uploadStream();
+            } finally {
+                in.close();
+            }
+        }
+
+        if (verbose) {
+            double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            System.out.printf("[%s] done: %2.2f GB in %.0f s (%.1f MB/s), archive ID: %s\n", archive.getName(),
+                    uploader.getTotalLength() / (1024.0 * 1024 * 1024), seconds,
+                    uploader.getTotalLength() / (1024.0 * 1024) / seconds, archiveId);
+        }
+        return archiveId;
+    }
+
+    /**
+     * Produces the tar.gz on a thread of its own, into the uploader's
+     * channel. Whichever side fails first aborts the channel, so that the
+     * other one stops as well.
+     */
+    private String uploadDirectory(Archive archive, StreamUploader uploader, PartialUploadStatus status) throws Exception {
+        final TarGzStream tarGz = archive.tarGz;
+        final ChunkChannel channel = uploader.openChannel(CHANNEL_SLACK_CHUNKS);
+        tarGz.setVerbose(false);
+        if (status != null) {
+            tarGz.setCheckpoints(status, uploader.getPartSize());
+            uploader.setStartOffset(tarGz.resumeFrom(uploader.getResumeOffset()));
+        }
+        tarGz.prepareOutputStream(channel.getOutputStream());
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    tarGz.sendData();
+                } catch (Throwable t) {
+                    // Errors too (e.g. OutOfMemoryError), or the uploader would wait forever
+                    channel.abort(t);
+                }
+            }
+        }, "tar-" + archive.getName());
+        producer.setDaemon(true);
+        producer.start();
+        try {
+            return uploader.uploadStream();
+        } catch (Exception e) {
+            channel.abort(e);
+            throw e;
+        } catch (Error e) {
+            channel.abort(e);
+            throw e;
+        } finally {
+            producer.join();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
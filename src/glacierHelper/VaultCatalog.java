@@ -0,0 +1,476 @@
+package glacierHelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Local list of the archives of a vault, kept up to date by the uploaders
+ * (see StreamUploader.setCatalog()) and by deletions, so that listing the
+ * vault or planning deletions does not need an inventory retrieval job,
+ * which takes hours.
+ *
+ * The catalog is an append-only text file, one change per line, with
+ * tab-separated, URL-encoded fields:
+ *   + ID SIZE TREE_HASH CREATED DESCRIPTION SOURCE   (archive uploaded)
+ *   - ID DELETED                                     (archive deleted)
+ *   I INVENTORY_DATE                                 (reconciled with an inventory)
+ *   V VAULT_NAME                                     (the vault it lists, first)
+ * Times are in ms since the epoch. It is read into memory when opened,
+ * indexed by ID and by source path. A torn last line is dropped. A catalog
+ * is only opened for the vault it lists, so that deleting from or
+ * reconciling with another vault does not empty it; a catalog written
+ * before the vault was recorded takes the vault of its next change.
+ *
+ * reconcile() brings the catalog in line with an inventory, which lists
+ * the vault as it was up to a day before: archives the catalog does not
+ * know of are added, and archives created before the inventory but not in
+ * it are dropped. Changes made after the inventory are kept. The file is
+ * then rewritten without superseded lines.
+ *
+ * Several processes may share the catalog: each change and each rewrite
+ * holds a lock on CATALOG.lock (the catalog itself is replaced when
+ * rewritten), under which the lines the others appended since are replayed
+ * first, or the whole catalog reloaded if one of them rewrote it. The lock
+ * file counts the rewrites, for that purpose.
+ */
+public class VaultCatalog {
+    private static final String ADD = "+";
+    private static final String DELETE = "-";
+    private static final String INVENTORY = "I";
+    private static final String VAULT = "V";
+
+    private File file;
+    private String vaultName;
+    private String recordedVault = null;
+    private File lockFile;
+    // bytes of the catalog replayed or written by this instance, and number of rewrites then
+    private long length = 0;
+    private long generation = 0;
+    // in upload order
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private TreeMap<String, Set<String>> bySource = new TreeMap<String, Set<String>>();
+    // deletions not seen in an inventory yet, with their time
+    private Map<String, Long> deleted = new HashMap<String, Long>();
+    private long inventoryDate = 0;
+
+    /**
+     * An archive in the catalog.
+     */
+    public static class Entry {
+        private String archiveId;
+        private long size;
+        private String treeHash;
+        private long created;
+        private String description;
+        private String sourcePath;
+
+        /**
+         * @param created upload time, in ms
+         * @param sourcePath what the archive was made of (directory or file), or null if unknown
+         */
+        public Entry(String archiveId, long size, String treeHash, long created, String description, String sourcePath) {
+            this.archiveId = archiveId;
+            this.size = size;
+            this.treeHash = treeHash;
+            this.created = created;
+            this.description = description;
+            this.sourcePath = sourcePath;
+        }
+
+        public String getArchiveId() { return archiveId; }
+        public long getSize() { return size; }
+        public String getTreeHash() { return treeHash; }
+        public long getCreated() { return created; }
+        public String getDescription() { return description; }
+        public String getSourcePath() { return sourcePath; }
+    }
+
+    /**
+     * Counts of the changes made by reconcile().
+     */
+    public static class Reconciliation {
+        private int added = 0;
+        private int updated = 0;
+        private int removed = 0;
+        private int notDeleted = 0;
+
+        /** archives found in the inventory only */
+        public int getAdded() { return added; }
+        /** archives whose size or tree hash differed from the inventory's */
+        public int getUpdated() { return updated; }
+        /** archives created before the inventory, but not in it */
+        public int getRemoved() { return removed; }
+        /** archives deleted before the inventory, but still in it */
+        public int getNotDeleted() { return notDeleted; }
+
+        @Override
+        public String toString() {
+            return added + " added, " + updated + " updated, " + removed + " removed, " + notDeleted + " deletions that did not happen";
+        }
+    }
+
+    /**
+     * Opens the catalog, creating it on first change if it does not exist.
+     *
+     * @throws IOException if it is the catalog of another vault
+     */
+    public VaultCatalog(File file, String vaultName) throws IOException {
+        this.file = file;
+        this.vaultName = vaultName;
+        this.lockFile = new File(file.getPath() + ".lock");
+        // loads the catalog
+        lock().close();
+    }
+
+    public synchronized Entry get(String archiveId) {
+        return entries.get(archiveId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the archives, in upload order
+     */
+    public synchronized List<Entry> list() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * @return the archives made of the path or of what is under it, e.g. "/data/photos"
+     */
+    public synchronized List<Entry> findBySource(String pathPrefix) {
+        List<Entry> found = new ArrayList<Entry>();
+        String prefix = pathPrefix.endsWith("/") ? pathPrefix.substring(0, pathPrefix.length() - 1) : pathPrefix;
+        for (Map.Entry<String, Set<String>> source : bySource.tailMap(prefix, true).entrySet()) {
+            String path = source.getKey();
+            if (!path.startsWith(prefix)) break;
+            if (path.length() > prefix.length() && path.charAt(prefix.length()) != '/') continue;
+            for (String id : source.getValue()) found.add(entries.get(id));
+        }
+        return found;
+    }
+
+    /**
+     * @return date of the last inventory reconciled, in ms, or 0
+     */
+    public synchronized long getInventoryDate() {
+        return inventoryDate;
+    }
+
+    public synchronized void add(Entry entry) throws IOException {
+        append(ADD, entry.archiveId, String.valueOf(entry.size), entry.treeHash, String.valueOf(entry.created),
+                entry.description, entry.sourcePath);
+        put(entry);
+    }
+
+    /**
+     * Records that the archive was deleted.
+     */
+    public synchronized void remove(String archiveId) throws IOException {
+        long now = System.currentTimeMillis();
+        append(DELETE, archiveId, String.valueOf(now));
+        drop(archiveId);
+        deleted.put(archiveId, now);
+    }
+
+    /**
+     * Brings the catalog in line with the inventory, read as it downloads.
+     */
+    public synchronized Reconciliation reconcile(InventoryReader inventory) throws IOException {
+        long date = -1;
+        List<InventoryArchive> archives = new ArrayList<InventoryArchive>();
+        InventoryArchive read;
+        while ((read = inventory.read()) != null) {
+            // the date comes before the archives
+            if (date < 0) date = parseDate(inventory.getInventoryDate());
+            archives.add(read);
+        }
+        if (date < 0) date = parseDate(inventory.getInventoryDate());
+
+        // not while the inventory downloads, which would hold up the uploaders
+        RandomAccessFile lock = lock();
+        try {
+            Reconciliation result = reconcile(archives, date);
+            rewrite(lock);
+            return result;
+        } finally {
+            lock.close();
+        }
+    }
+
+    private Reconciliation reconcile(List<InventoryArchive> archives, long date) {
+        Reconciliation result = new Reconciliation();
+        Set<String> seen = new HashSet<String>();
+        for (InventoryArchive archive : archives) {
+            String id = archive.getArchiveId();
+            seen.add(id);
+            long created = (archive.getCreationDate() != null) ? archive.getCreationDate().getTime() : 0;
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                // deleted since the inventory was taken, unless the deletion is older
+                Long deletedAt = deleted.get(id);
+                if (deletedAt != null && deletedAt > date) continue;
+                if (deletedAt != null) {
+                    result.notDeleted++;
+                    deleted.remove(id);
+                } else {
+                    result.added++;
+                }
+                put(new Entry(id, archive.getSize(), archive.getTreeHash(), created, archive.getDescription(), null));
+            } else if (entry.size != archive.getSize() || !String.valueOf(archive.getTreeHash()).equals(entry.treeHash)) {
+                result.updated++;
+                put(new Entry(id, archive.getSize(), archive.getTreeHash(), created, archive.getDescription(), entry.sourcePath));
+            }
+        }
+
+        Iterator<Entry> it = new ArrayList<Entry>(entries.values()).iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!seen.contains(entry.archiveId) && entry.created < date) {
+                result.removed++;
+                drop(entry.archiveId);
+            }
+        }
+        // deletions the inventory confirms are not needed anymore
+        Iterator<Map.Entry<String, Long>> deletions = deleted.entrySet().iterator();
+        while (deletions.hasNext()) {
+            Map.Entry<String, Long> deletion = deletions.next();
+            if (deletion.getValue() < date && !seen.contains(deletion.getKey())) deletions.remove();
+        }
+        inventoryDate = date;
+        return result;
+    }
+
+    private long parseDate(String date) throws IOException {
+        if (date == null) throw new IOException("The inventory has no InventoryDate");
+        try {
+            return new DateUtils().parseIso8601Date(date).getTime();
+        } catch (ParseException e) {
+            throw new IOException("Invalid InventoryDate: " + date, e);
+        }
+    }
+
+    private void put(Entry entry) {
+        drop(entry.archiveId);
+        entries.put(entry.archiveId, entry);
+        if (entry.sourcePath != null) {
+            Set<String> ids = bySource.get(entry.sourcePath);
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                bySource.put(entry.sourcePath, ids);
+            }
+            ids.add(entry.archiveId);
+        }
+    }
+
+    private void drop(String archiveId) {
+        Entry entry = entries.remove(archiveId);
+        if (entry != null && entry.sourcePath != null) {
+            Set<String> ids = bySource.get(entry.sourcePath);
+            ids.remove(archiveId);
+            if (ids.isEmpty()) bySource.remove(entry.sourcePath);
+        }
+    }
+
+    /**
+     * Locks the catalog against the other processes, and catches up with
+     * their changes.
+     *
+     * @return the lock file, to close to release the lock
+     */
+    private RandomAccessFile lock() throws IOException {
+        RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+        boolean locked = false;
+        try {
+            lock.getChannel().lock();
+            long current = (lock.length() >= 8) ? lock.readLong() : 0;
+            if (current != generation || file.length() < length) {
+                // rewritten by another process: what was read is stale
+                clear();
+                generation = current;
+            }
+            if (file.exists() && file.length() > length) read(lock);
+            locked = true;
+            return lock;
+        } finally {
+            if (!locked) lock.close();
+        }
+    }
+
+    private void clear() {
+        entries.clear();
+        bySource.clear();
+        deleted.clear();
+        inventoryDate = 0;
+        recordedVault = null;
+        length = 0;
+    }
+
+    /**
+     * Replays the lines after the ones read or written already.
+     */
+    private void read(RandomAccessFile lock) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        boolean torn = false;
+        long end;
+        try {
+            FileChannel channel = in.getChannel();
+            end = channel.size();
+            // a last line without its end of line was torn by a crash, even if its fields look complete
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, end - 1);
+            torn = last.get(0) != '\n';
+            channel.position(length);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next != null || !torn) replay(line);
+                line = next;
+            }
+        } finally {
+            in.close();
+        }
+        if (recordedVault != null && !recordedVault.equals(vaultName)) {
+            throw new IOException(file + " is the catalog of the vault " + recordedVault + ", not of " + vaultName);
+        }
+        length = end;
+        // so that the next line is not appended to the torn one
+        if (torn) rewrite(lock);
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split("\t", -1);
+        // the first field is the type of the line, as is
+        for (int i = 1; i < fields.length; i++) fields[i] = decode(fields[i]);
+        try {
+            if (ADD.equals(fields[0]) && fields.length == 7) {
+                deleted.remove(fields[1]);
+                put(new Entry(fields[1], Long.parseLong(fields[2]), fields[3], Long.parseLong(fields[4]), fields[5], fields[6]));
+            } else if (DELETE.equals(fields[0]) && fields.length == 3) {
+                drop(fields[1]);
+                deleted.put(fields[1], Long.parseLong(fields[2]));
+            } else if (VAULT.equals(fields[0]) && fields.length == 2) {
+                recordedVault = fields[1];
+            } else if (INVENTORY.equals(fields[0]) && fields.length == 2) {
+                inventoryDate = Long.parseLong(fields[1]);
+            } else {
+                System.err.println("Ignoring invalid line in " + file + ": " + line);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid line in " + file + ": " + line);
+        }
+    }
+
+    private void append(String... fields) throws IOException {
+        RandomAccessFile lock = lock();
+        try {
+            // the vault goes first, in the same write
+            String text = (recordedVault == null) ? line(VAULT, vaultName) + line(fields) : line(fields);
+            byte[] line = text.getBytes("UTF-8");
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(line);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            length += line.length;
+            recordedVault = vaultName;
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Writes the current state to a new file, which then replaces the
+     * catalog, and counts the rewrite in the lock file. The lock must be held.
+     */
+    private void rewrite(RandomAccessFile lock) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(line(VAULT, vaultName));
+            writer.write(line(INVENTORY, String.valueOf(inventoryDate)));
+            for (Entry entry : entries.values()) {
+                writer.write(line(ADD, entry.archiveId, String.valueOf(entry.size), entry.treeHash, String.valueOf(entry.created),
+                        entry.description, entry.sourcePath));
+            }
+            for (Map.Entry<String, Long> deletion : deleted.entrySet()) {
+                writer.write(line(DELETE, deletion.getKey(), String.valueOf(deletion.getValue())));
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+        recordedVault = vaultName;
+        length = file.length();
+        generation++;
+        lock.seek(0);
+        lock.writeLong(generation);
+    }
+
+    private static String line(String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) line.append('\t');
+            line.append((i > 0) ? encode(fields[i]) : fields[i]);
+        }
+        return line.append('\n').toString();
+    }
+
+    private static String encode(String s) {
+        if (s == null) return "";
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the field, or null if it is empty
+     */
+    private static String decode(String s) {
+        if (s.length() == 0) return null;
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
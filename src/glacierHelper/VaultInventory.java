@@ -1,163 +1,183 @@
 package glacierHelper;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.map.ObjectMapper;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.policy.Policy;
-import com.amazonaws.auth.policy.Principal;
-import com.amazonaws.auth.policy.Resource;
-import com.amazonaws.auth.policy.Statement;
-import com.amazonaws.auth.policy.Statement.Effect;
-import com.amazonaws.auth.policy.actions.SQSActions;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
 import com.amazonaws.services.glacier.model.GetJobOutputRequest;
 import com.amazonaws.services.glacier.model.GetJobOutputResult;
 import com.amazonaws.services.glacier.model.InitiateJobRequest;
 import com.amazonaws.services.glacier.model.InitiateJobResult;
 import com.amazonaws.services.glacier.model.JobParameters;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
 import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.CreateTopicRequest;
-import com.amazonaws.services.sns.model.CreateTopicResult;
-import com.amazonaws.services.sns.model.DeleteTopicRequest;
-import com.amazonaws.services.sns.model.SubscribeRequest;
-import com.amazonaws.services.sns.model.SubscribeResult;
-import com.amazonaws.services.sns.model.UnsubscribeRequest;
 import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueRequest;
-import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.DeleteQueueRequest;
-import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
-import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 
+/**
+ * Retrieves the inventory of a vault. The job is waited for with a
+ * JobWatcher: by default one made for the job, notified through its own
+ * topic and queue (deleted afterwards); setJobWatcher() shares one.
+ */
 public class VaultInventory {
-    private static long sleepTime = 600; 
+    private static long sleepTime = 600; // longest time between DescribeJob calls
 
     private AmazonGlacierClient client;
 
-    private String snsTopicName;
-    private String sqsQueueName;
-    private String sqsQueueARN;
-    private String sqsQueueURL;
-    private String snsTopicARN;
-    private String snsSubscriptionARN;
+    private String channelName;
     private AmazonSQSClient sqsClient;
     private AmazonSNSClient snsClient;
+    private JobWatcher watcher = null;
 
     private String vaultName = null;
+    private String jobId = null;
 
     public VaultInventory (String region, String vaultName, AWSCredentials credentials) {
+        this(region, null, vaultName, credentials);
+    }
+
+    /**
+     * @param endpoint URL of a server of Glacier, SNS and SQS (e.g. a LocalGlacierServer), or null for the region's
+     */
+    public VaultInventory (String region, String endpoint, String vaultName, AWSCredentials credentials) {
         this.vaultName = vaultName;
 
         client = new AmazonGlacierClient(credentials);
-        client.setEndpoint("https://glacier." + region + ".amazonaws.com");
+        client.setEndpoint((endpoint != null) ? endpoint : "https://glacier." + region + ".amazonaws.com");
         sqsClient = new AmazonSQSClient(credentials);
-        sqsClient.setEndpoint("https://sqs." + region + ".amazonaws.com");
+        sqsClient.setEndpoint((endpoint != null) ? endpoint : "https://sqs." + region + ".amazonaws.com");
         snsClient = new AmazonSNSClient(credentials);
-        snsClient.setEndpoint("https://sns." + region + ".amazonaws.com");
+        snsClient.setEndpoint((endpoint != null) ? endpoint : "https://sns." + region + ".amazonaws.com");
 
         String uniqid = vaultName.substring(0, Math.min(vaultName.length(), 10)) + Integer.toString((int)Math.floor(Math.random()*10000));
-        snsTopicName = "TOPIC_" + uniqid;
-        sqsQueueName = "QUEUE_" + uniqid;
+        channelName = "INVENTORY_" + uniqid;
     }
 
+    /**
+     * @param watcher watcher of the vault's jobs, shared with others (and
+     * closed by the caller), instead of one made for each inventory job
+     */
+    public void setJobWatcher(JobWatcher watcher) { this.watcher = watcher; }
+
+    /**
+     * Holds all IDs in memory; openInventory() reads them one at a time.
+     */
     public List<String> getArchiveIDs() throws IOException {
         List<String> list = new ArrayList<String>();
-        String inventoryStr = getResponseString();
-
-        // the "right" way is to parse the response as json - but will take a shortcut...
-        Pattern pattern = Pattern.compile("\"ArchiveId\"\\s*:\\s*\"([^\"]+)\"");
-        Matcher matcher = pattern.matcher(inventoryStr);
-        while (matcher.find()) list.add(matcher.group(1));
-
+        InventoryReader reader = openInventory();
+        try {
+            InventoryArchive archive;
+            while ((archive = reader.read()) != null) list.add(archive.getArchiveId());
+        } finally {
+            reader.close();
+        }
         return list;
     }
 
-    public String getResponseString() throws IOException {
-        System.out.println("Extracting inventory of" + vaultName);
-        System.out.println("Extraction may take hours; please be patient...");
+    /**
+     * Retrieves the inventory (which may take hours), and returns a reader
+     * of the archives it lists, parsed as they are downloaded. Must be closed.
+     */
+    public InventoryReader openInventory() throws IOException {
+        return new InventoryReader(openInventoryStream());
+    }
 
-        String result = null;
+    /**
+     * Like openInventory(), reusing the given job if possible (see openInventoryStream(String)).
+     */
+    public InventoryReader openInventory(String previousJobId) throws IOException {
+        return new InventoryReader(openInventoryStream(previousJobId));
+    }
 
+    /**
+     * Retrieves the inventory (which may take hours), and returns the JSON
+     * output of the job as it is downloaded. Must be closed.
+     */
+    public InputStream openInventoryStream() throws IOException {
+        return openInventoryStream(null);
+    }
+
+    /**
+     * Like openInventoryStream(), but uses the output of the given inventory
+     * job (e.g. started by a previous run) while Glacier still has it,
+     * rather than waiting hours for a new one.
+     */
+    public InputStream openInventoryStream(String previousJobId) throws IOException {
+        JobWatcher jobWatcher = watcher;
+        if (jobWatcher == null) {
+            jobWatcher = new JobWatcher(client, vaultName);
+            jobWatcher.setPollInterval(sleepTime);
+            jobWatcher.setVerbose(false);
+        }
         try {
-            setupSQS();
+            if (previousJobId != null && reuseJob(jobWatcher, previousJobId)) {
+                jobId = previousJobId;
+                return getJobOutput();
+            }
 
-            setupSNS();
+            System.out.println("Extracting inventory of " + vaultName);
+            System.out.println("Extraction may take hours; please be patient...");
 
-            String jobId = initiateJobRequest();
+            if (jobWatcher != watcher) jobWatcher.openChannel(snsClient, sqsClient, channelName);
+            jobId = initiateJobRequest(jobWatcher.getTopicARN());
             System.out.println("Jobid = " + jobId);
 
-            Boolean success = waitForJobToComplete(jobId, sqsQueueURL);
-            if (!success) { throw new Exception(); }
-
-            result = downloadJobOutput(jobId);
-
-            cleanUp();
-
-        } catch (Exception e) {
-            System.err.println("Archive retrieval failed.");
-            System.err.println(e);
-            throw new IOException();
+            jobWatcher.waitFor(jobId);
+            return getJobOutput();
+        } catch (IllegalStateException e) {
+            throw new IOException("Inventory retrieval job " + jobId + " failed", e);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for inventory job " + jobId, e);
+        } catch (AmazonClientException e) {
+            throw new IOException("Inventory retrieval failed: " + e, e);
+        } finally {
+            if (jobWatcher != watcher) jobWatcher.close();
         }
-
-        return result;
     }
 
-    private void setupSQS() {
-        CreateQueueRequest request = new CreateQueueRequest()
-        .withQueueName(sqsQueueName);
-        CreateQueueResult result = sqsClient.createQueue(request);  
-        sqsQueueURL = result.getQueueUrl();
-
-        GetQueueAttributesRequest qRequest = new GetQueueAttributesRequest()
-        .withQueueUrl(sqsQueueURL)
-        .withAttributeNames("QueueArn");
-
-        GetQueueAttributesResult qResult = sqsClient.getQueueAttributes(qRequest);
-        sqsQueueARN = qResult.getAttributes().get("QueueArn");
-
-        Policy sqsPolicy = 
-                new Policy().withStatements(
-                        new Statement(Effect.Allow)
-                        .withPrincipals(Principal.AllUsers)
-                        .withActions(SQSActions.SendMessage)
-                        .withResources(new Resource(sqsQueueARN)));
-        Map<String, String> queueAttributes = new HashMap<String, String>();
-        queueAttributes.put("Policy", sqsPolicy.toJson());
-        sqsClient.setQueueAttributes(new SetQueueAttributesRequest(sqsQueueURL, queueAttributes)); 
+    /**
+     * @return ID of the inventory job whose output was last opened, or null
+     */
+    public String getJobId() { return jobId; }
 
+    private InputStream getJobOutput() {
+        GetJobOutputRequest getJobOutputRequest = new GetJobOutputRequest()
+        .withVaultName(vaultName)
+        .withJobId(jobId);
+        GetJobOutputResult getJobOutputResult = client.getJobOutput(getJobOutputRequest);
+        return getJobOutputResult.getBody();
     }
-    private void setupSNS() {
-        CreateTopicRequest request = new CreateTopicRequest()
-        .withName(snsTopicName);
-        CreateTopicResult result = snsClient.createTopic(request);
-        snsTopicARN = result.getTopicArn();
-
-        SubscribeRequest request2 = new SubscribeRequest()
-        .withTopicArn(snsTopicARN)
-        .withEndpoint(sqsQueueARN)
-        .withProtocol("sqs");
-        SubscribeResult result2 = snsClient.subscribe(request2);
-
-        snsSubscriptionARN = result2.getSubscriptionArn();
+
+    /**
+     * Waits for the given inventory job, if still in progress.
+     *
+     * @return false if Glacier no longer has it (after a day), or it failed
+     */
+    private boolean reuseJob(JobWatcher jobWatcher, String previousJobId) throws InterruptedException {
+        try {
+            DescribeJobResult job = client.describeJob(new DescribeJobRequest()
+            .withVaultName(vaultName)
+            .withJobId(previousJobId));
+            if (!"InventoryRetrieval".equals(job.getAction())) return false;
+            if (!job.isCompleted()) System.out.println("Waiting for inventory job " + previousJobId + "...");
+            jobWatcher.waitFor(previousJobId);
+            System.out.println("Using the inventory of job " + previousJobId);
+            return true;
+        } catch (ResourceNotFoundException e) {
+            System.out.println("Inventory job " + previousJobId + " expired; starting a new one");
+            return false;
+        } catch (IllegalStateException e) {
+            System.out.println("Inventory job " + previousJobId + " failed; starting a new one");
+            return false;
+        }
     }
-    private String initiateJobRequest() {
+
+    private String initiateJobRequest(String snsTopicARN) {
 
         JobParameters jobParameters = new JobParameters()
         .withType("inventory-retrieval")
@@ -171,63 +191,4 @@ public class VaultInventory {
 
         return response.getJobId();
     }
-
-    private Boolean waitForJobToComplete(String jobId, String sqsQueueUrl) throws InterruptedException, JsonParseException, IOException {
-
-        Boolean messageFound = false;
-        Boolean jobSuccessful = false;
-        ObjectMapper mapper = new ObjectMapper();
-        JsonFactory factory = mapper.getJsonFactory();
-
-        while (!messageFound) {
-            List<Message> msgs = sqsClient.receiveMessage(
-                    new ReceiveMessageRequest(sqsQueueUrl).withMaxNumberOfMessages(10)).getMessages();
-
-            if (msgs.size() > 0) {
-                for (Message m : msgs) {
-                    JsonParser jpMessage = factory.createJsonParser(m.getBody());
-                    JsonNode jobMessageNode = mapper.readTree(jpMessage);
-                    String jobMessage = jobMessageNode.get("Message").getTextValue();
-
-                    JsonParser jpDesc = factory.createJsonParser(jobMessage);
-                    JsonNode jobDescNode = mapper.readTree(jpDesc);
-                    String retrievedJobId = jobDescNode.get("JobId").getTextValue();
-                    String statusCode = jobDescNode.get("StatusCode").getTextValue();
-                    if (retrievedJobId.equals(jobId)) {
-                        messageFound = true;
-                        if (statusCode.equals("Succeeded")) {
-                            jobSuccessful = true;
-                        }
-                    }
-                }
-
-            } else {
-                Thread.sleep(sleepTime * 1000); 
-            }
-        }
-        return (messageFound && jobSuccessful);
-    }
-
-    private String downloadJobOutput(String jobId) throws IOException {
-        StringBuilder sb = new StringBuilder();
-
-        GetJobOutputRequest getJobOutputRequest = new GetJobOutputRequest()
-        .withVaultName(vaultName)
-        .withJobId(jobId);
-        GetJobOutputResult getJobOutputResult = client.getJobOutput(getJobOutputRequest);
-
-        BufferedReader in = new BufferedReader(new InputStreamReader(getJobOutputResult.getBody()));
-        String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-            sb.append(inputLine);
-        }
-
-        return sb.toString();
-    }
-
-    private void cleanUp() {
-        snsClient.unsubscribe(new UnsubscribeRequest(snsSubscriptionARN));
-        snsClient.deleteTopic(new DeleteTopicRequest(snsTopicARN));
-        sqsClient.deleteQueue(new DeleteQueueRequest(sqsQueueURL));
-    }
 }
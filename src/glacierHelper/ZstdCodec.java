@@ -0,0 +1,40 @@
+package glacierHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * zstd, through zstd-jni. Several threads use zstd's own multi-threaded
+ * compression (workers); the output is a regular zstd frame either way.
+ */
+public class ZstdCodec extends CompressionCodec {
+    private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+    @Override
+    public String getName() { return "zstd"; }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        ZstdOutputStream zstdOut = new ZstdOutputStream(out, (level == DEFAULT_LEVEL) ? DEFAULT_ZSTD_LEVEL : level);
+        if (threads > 1) zstdOut.setWorkers(threads);
+        return zstdOut;
+    }
+
+    /**
+     * The stream's output buffer; the compression window and the workers'
+     * buffers are native memory, outside the heap.
+     */
+    @Override
+    public long getMemoryFootprint() {
+        return 256 * 1024;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new ZstdInputStream(in);
+    }
+}